@@ -0,0 +1,318 @@
+package benchmark;
+
+import common.BinaryFrame;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import server.AbstractServer;
+import server.ParsedRequest;
+import server.RequestParser;
+import server.ServerLogger;
+import server.ServerTCP;
+
+/**
+ * Microbenchmarks for the server's request path.
+ * Every benchmark runs for each combination of key size, value size, hit ratio and
+ * thread count, with a warmup phase followed by a measured phase, and reports
+ * throughput, average time per operation and bytes allocated per operation.
+ * Results are only comparable between runs on the same machine and JVM flags.
+ *
+ * Run from an empty directory, the server benchmarks write to server.log:
+ * "java benchmark.ServerBenchmark [-b names] [-k keySizes] [-v valueSizes] [-h hitRatios]
+ * [-t threadCounts] [-w warmupSeconds] [-m measureSeconds]", where lists are comma separated.
+ */
+public class ServerBenchmark {
+
+  private static final int KEYS = 10_000; // distinct keys in the store
+  private static final int OPS_PER_CHECK = 256; // operations between checks of the clock
+
+  private static volatile long sink; // consumes results so they are not optimized away
+  private static final PrintStream results = System.out; // the server's own printing is discarded
+
+  private final int keySize;
+  private final int valueSize;
+  private final double hitRatio;
+  private final AbstractServer server;
+  private final String[] keys; // stored keys
+  private final String[] missingKeys; // keys never stored
+  private final String value;
+
+  /**
+   * Constructor. Builds a server whose store holds every key.
+   * @param keySize length of each key
+   * @param valueSize length of each value
+   * @param hitRatio share of lookups that find their key
+   */
+  public ServerBenchmark(int keySize, int valueSize, double hitRatio) {
+    this.keySize = keySize;
+    this.valueSize = valueSize;
+    this.hitRatio = hitRatio;
+    this.server = new ServerTCP();
+    this.keys = new String[KEYS];
+    this.missingKeys = new String[KEYS];
+    Random random = new Random(42);
+    this.value = text(random, valueSize);
+    for (int i = 0; i < KEYS; i++) {
+      this.keys[i] = text(random, keySize);
+      this.missingKeys[i] = "x" + text(random, keySize - 1);
+      this.server.put(this.keys[i], this.value);
+    }
+  }
+
+  /**
+   * Method creates the operation under test for one thread.
+   * Each call to the returned function performs one operation and returns its result.
+   * @param name of the benchmark
+   * @return operation, taking the iteration number
+   */
+  public IntFunction<Object> operation(String name) {
+    Random random = new Random(Thread.currentThread().getId());
+    int[] order = new int[1024]; // precomputed key choices, so choosing costs nothing
+    boolean[] hits = new boolean[1024];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = random.nextInt(KEYS);
+      hits[i] = random.nextDouble() < this.hitRatio;
+    }
+    String[] packets = new String[order.length];
+    String[][] parsed = new String[order.length][];
+    String[] messages = new String[order.length];
+    byte[][] packetBytes = new byte[order.length][];
+    for (int i = 0; i < order.length; i++) {
+      String key = hits[i] ? this.keys[order[i]] : this.missingKeys[order[i]];
+      messages[i] = i % 2 == 0 ? "put, " + key + ", " + this.value : "get, " + key;
+      packets[i] = this.server.getChecksum(messages[i]);
+      parsed[i] = this.server.extractChecksum(packets[i]);
+      packetBytes[i] = packets[i].getBytes();
+    }
+    switch (name) {
+      case "processMessage":
+        return i -> this.server.processMessage(messages[i & 1023]);
+      case "keyValueRequest":
+        return i -> this.server.keyValueRequest(this.server.processMessage(messages[i & 1023]));
+      case "processRequest":
+        return i -> this.server.processRequest(parsed[i & 1023]);
+      case "parser": {
+        RequestParser parser = new RequestParser();
+        ParsedRequest request = new ParsedRequest();
+        ByteBuffer[] buffers = new ByteBuffer[order.length];
+        for (int i = 0; i < order.length; i++) {
+          buffers[i] = ByteBuffer.wrap(packetBytes[i]);
+        }
+        return i -> parser.parse(buffers[i & 1023], 0, packetBytes[i & 1023].length, request);
+      }
+      case "put":
+        return i -> this.server.put(this.keys[order[i & 1023]], this.value);
+      case "get":
+        return i -> this.server.get(hits[i & 1023] ? this.keys[order[i & 1023]]
+                : this.missingKeys[order[i & 1023]]);
+      case "delete": // a hit puts the key back through put, so the store stays full
+        return i -> {
+          int n = i & 1023;
+          String key = hits[n] ? this.keys[order[n]] : this.missingKeys[order[n]];
+          String result = this.server.delete(key);
+          if (hits[n]) {
+            this.server.put(key, this.value);
+          }
+          return result;
+        };
+      case "calculateChecksum":
+        return i -> this.server.calculateChecksum(messages[i & 1023]);
+      case "validateMessage":
+        return i -> this.server.validateMessage(parsed[i & 1023]);
+      case "extractChecksum":
+        return i -> this.server.extractChecksum(packets[i & 1023]);
+      case "frameCrc32":
+      case "frameCrc32c": { // decode, checksum included, of a put frame with the value
+        byte version = name.equals("frameCrc32c") ? BinaryFrame.VERSION_CRC32C
+                : BinaryFrame.VERSION;
+        ByteBuffer frame = ByteBuffer.wrap(BinaryFrame.request(version, BinaryFrame.PUT, 1,
+                this.keys[order[0]], this.value).toBytes());
+        return i -> {
+          try {
+            return BinaryFrame.decode(frame.duplicate());
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        };
+      }
+      case "logMessage": {
+        ServerLogger logger = new ServerLogger("benchmark.log");
+        return i -> {
+          logger.logMessage(messages[i & 1023]);
+          return null;
+        };
+      }
+      default:
+        throw new IllegalArgumentException("Unknown benchmark " + name + ".");
+    }
+  }
+
+  /**
+   * Method runs one benchmark on the given number of threads and prints a result row.
+   * @param name of the benchmark
+   * @param threads running the operation at once
+   * @param warmupMillis before measuring
+   * @param measureMillis of measurement
+   * @throws InterruptedException
+   */
+  public void run(String name, int threads, long warmupMillis, long measureMillis)
+          throws InterruptedException {
+    com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    AtomicBoolean measuring = new AtomicBoolean(false);
+    AtomicBoolean stopped = new AtomicBoolean(false);
+    long[] ops = new long[threads];
+    long[] nanos = new long[threads];
+    long[] bytes = new long[threads];
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      int index = t;
+      Thread thread = new Thread(() -> {
+        IntFunction<Object> operation = this.operation(name);
+        long hash = 0;
+        int i = 0;
+        while (!measuring.get()) { // warmup
+          for (int j = 0; j < OPS_PER_CHECK; j++) {
+            hash += System.identityHashCode(operation.apply(i++));
+          }
+        }
+        long count = 0;
+        long startBytes = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        while (!stopped.get()) {
+          for (int j = 0; j < OPS_PER_CHECK; j++) {
+            hash += System.identityHashCode(operation.apply(i++));
+          }
+          count += OPS_PER_CHECK;
+        }
+        nanos[index] = System.nanoTime() - start;
+        bytes[index] = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+        ops[index] = count;
+        sink += hash;
+        done.countDown();
+      }, "benchmark-" + t);
+      thread.start();
+    }
+    Thread.sleep(warmupMillis);
+    measuring.set(true);
+    Thread.sleep(measureMillis);
+    stopped.set(true);
+    done.await();
+    long totalOps = 0;
+    double opsPerSecond = 0;
+    long totalNanos = 0;
+    long totalBytes = 0;
+    for (int t = 0; t < threads; t++) {
+      totalOps += ops[t];
+      totalNanos += nanos[t];
+      totalBytes += bytes[t];
+      opsPerSecond += ops[t] * 1e9 / nanos[t];
+    }
+    results.printf("%-18s %6d %7d %5.2f %4d %14.0f %10.1f %10.1f%n", name, this.keySize,
+            this.valueSize, this.hitRatio, threads, opsPerSecond, (double) totalNanos / totalOps,
+            (double) totalBytes / totalOps);
+  }
+
+  /**
+   * Main driver for the benchmarks.
+   * @param args options, see the class comment
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws InterruptedException {
+    List<String> names = List.of("processMessage", "keyValueRequest", "processRequest", "parser",
+            "put", "get", "delete", "calculateChecksum", "validateMessage", "extractChecksum",
+            "frameCrc32", "frameCrc32c", "logMessage");
+    int[] keySizes = {16};
+    int[] valueSizes = {16, 1024};
+    double[] hitRatios = {0.9};
+    int[] threadCounts = {1, Runtime.getRuntime().availableProcessors()};
+    long warmup = 2;
+    long measure = 3;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String option = args[i + 1];
+      switch (args[i]) {
+        case "-b":
+          names = List.of(option.split(","));
+          break;
+        case "-k":
+          keySizes = ints(option);
+          break;
+        case "-v":
+          valueSizes = ints(option);
+          break;
+        case "-h":
+          hitRatios = doubles(option);
+          break;
+        case "-t":
+          threadCounts = ints(option);
+          break;
+        case "-w":
+          warmup = Long.parseLong(option);
+          break;
+        case "-m":
+          measure = Long.parseLong(option);
+          break;
+        default:
+          results.println("Unknown option " + args[i] + ".");
+      }
+    }
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    results.printf("%-18s %6s %7s %5s %4s %14s %10s %10s%n", "benchmark", "key", "value",
+            "hit", "thr", "ops/s", "ns/op", "B/op");
+    for (int keySize : keySizes) {
+      for (int valueSize : valueSizes) {
+        for (double hitRatio : hitRatios) {
+          ServerBenchmark benchmark = new ServerBenchmark(keySize, valueSize, hitRatio);
+          for (String name : names) {
+            for (int threads : threadCounts) {
+              benchmark.run(name, threads, TimeUnit.SECONDS.toMillis(warmup),
+                      TimeUnit.SECONDS.toMillis(measure));
+            }
+          }
+        }
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Helper method to make random lower case text.
+   * @param random source
+   * @param length of the text
+   * @return text
+   */
+  private static String text(Random random, int length) {
+    char[] chars = new char[Math.max(1, length)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+
+  private static int[] ints(String list) {
+    String[] parts = list.split(",");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i].trim());
+    }
+    return values;
+  }
+
+  private static double[] doubles(String list) {
+    String[] parts = list.split(",");
+    double[] values = new double[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Double.parseDouble(parts[i].trim());
+    }
+    return values;
+  }
+}
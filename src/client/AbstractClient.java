@@ -1,13 +1,21 @@
 package client;
 
+import common.BatchResult;
+import common.BinaryFrame;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.function.BiConsumer;
 import java.util.zip.CRC32;
 
 /**
@@ -15,9 +23,16 @@ import java.util.zip.CRC32;
  */
 public abstract class AbstractClient {
 
+  public static final int DEFAULT_SCAN_PAGE = 1000; // keys per SCAN request
+  private static final int CHECKSUM_HEADER = 11; // longest checksum and ':'
+  private static final int LOG_VALUE_LENGTH = 1024; // longest value logged whole
+
   protected String protocol;
   protected HashMap<String, String> hashMap;
   protected ClientLogger logger;
+  protected boolean binaryProtocol; // true once requests are sent as binary frames
+  protected int nextRequestId; // id of the last binary request sent
+  protected byte frameVersion = BinaryFrame.VERSION; // version, and checksum, of frames sent
 
   /**
    * Constructor. Initializes a new key, value store
@@ -30,7 +45,7 @@ public abstract class AbstractClient {
   }
   /**
    * Method collectInput takes in a message from the user to pass to the server.server.
-   * The method ensures the message is at least 1 character and less than 80.
+   * The method ensures the message is at least 1 character and fits in one text packet.
    *
    * @return message string
    */
@@ -40,14 +55,24 @@ public abstract class AbstractClient {
     System.out.println("Enter message to send to server. Type 'q' to quit:");
     String message = input.readLine();
     // ensure message length
-    while (message.length() > 80 | message.trim().isEmpty()) {
-      System.out.println("Please keep message between 1 and 80 characters.");
+    while (utf8Length(message) > this.maxMessageLength() | message.trim().isEmpty()) {
+      System.out.println("Please keep message between 1 and " + this.maxMessageLength() +
+              " bytes.");
       System.out.println("Enter a new message to send to server.server:");
       message = input.readLine();
     }
     return message;
   }
 
+  /**
+   * Method returns the longest text message this client sends, leaving room for the
+   * checksum header. Larger values are sent as binary frames.
+   * @return length in UTF-8 bytes
+   */
+  protected int maxMessageLength() {
+    return 65535 - CHECKSUM_HEADER; // the most writeUTF sends
+  }
+
   /**
    * Method to extract checksum from header and return
    * checksum split from request.
@@ -110,6 +135,328 @@ public abstract class AbstractClient {
   }
 
 
+  /**
+   * Method creates a binary request frame with the next request id.
+   * @param opcode of the request, BinaryFrame.PUT, GET or DELETE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return request frame
+   */
+  public BinaryFrame createRequest(byte opcode, String key, String value) {
+    return BinaryFrame.request(this.frameVersion, opcode, this.newRequestId(), key, value);
+  }
+
+  /**
+   * Method returns the id for the next binary request.
+   * @return request id
+   */
+  protected int newRequestId() {
+    return ++this.nextRequestId;
+  }
+
+  /**
+   * Method chooses the checksum of the binary frames this client sends. CRC32C is
+   * computed in hardware on current CPUs, CRC32 is understood by older servers.
+   * @param crc32c true for CRC32C frames, false for CRC32 frames
+   */
+  public void useCrc32c(boolean crc32c) {
+    this.frameVersion = crc32c ? BinaryFrame.VERSION_CRC32C : BinaryFrame.VERSION;
+  }
+
+  /**
+   * Method to check and log a binary response frame from the server.
+   * @param response frame from server
+   * @return response value, or an error if the frame is malformed
+   */
+  public String readResponse(BinaryFrame response) {
+    if (!response.isChecksumValid()) { // handle any malformed replies
+      this.logger.logMessage("Packet received from server malformed.");
+      return "Datagram packet malformed.";
+    }
+    if (BinaryFrame.isBatch(response.getOpcode()) && response.getStatus() == BinaryFrame.OK) {
+      this.logger.logMessage("Batch response received from server: " +
+              response.getValueLength() + " bytes.");
+      return "";
+    }
+    if (response.getStatus() == BinaryFrame.REDIRECT) {
+      String result = "Response too large for a datagram, use TCP port " +
+              response.getValueString() + ".";
+      this.logger.logMessage(result);
+      return result;
+    }
+    if (response.getValueLength() > LOG_VALUE_LENGTH) { // a large value isn't logged whole
+      this.logger.logMessage("Return message received from server: value, " +
+              response.getValueLength() + " bytes.");
+      return response.getValueString();
+    }
+    String result = response.getValueString();
+    this.logger.logMessage("Return message received from server: " + result);
+    return result;
+  }
+
+  /**
+   * Method gets the values of many keys with as few requests as possible.
+   * @param keys to look up
+   * @return value of each key in the same order, null where a key doesn't exist
+   * @throws IOException if the server can't be reached or rejects the batch
+   * @throws IllegalArgumentException if a key is null
+   */
+  public List<String> mget(List<String> keys) throws IOException {
+    BatchResult result = this.batch(BinaryFrame.MGET, keys, null);
+    List<String> values = new ArrayList<String>(keys.size());
+    for (int i = 0; i < result.size(); i++) {
+      values.add(result.getStatus(i) == BinaryFrame.OK ? result.getValue(i) : null);
+    }
+    return values;
+  }
+
+  /**
+   * Method puts many key, value pairs with as few requests as possible.
+   * @param entries to store
+   * @return number of keys that were new to the store
+   * @throws IOException if the server can't be reached or rejects the batch
+   * @throws IllegalArgumentException if a key or value is null
+   */
+  public int mput(Map<String, String> entries) throws IOException {
+    BatchResult result = this.batch(BinaryFrame.MPUT, new ArrayList<String>(entries.keySet()),
+            new ArrayList<String>(entries.values()));
+    return this.count(result, BinaryFrame.NOT_FOUND);
+  }
+
+  /**
+   * Method removes many keys with as few requests as possible.
+   * @param keys to remove
+   * @return number of keys that existed and were removed
+   * @throws IOException if the server can't be reached or rejects the batch
+   * @throws IllegalArgumentException if a key is null
+   */
+  public int mdelete(List<String> keys) throws IOException {
+    return this.count(this.batch(BinaryFrame.MDELETE, keys, null), BinaryFrame.OK);
+  }
+
+  /**
+   * Method passes every key starting with a prefix, in order, with its value, to an
+   * action, fetching them a page of DEFAULT_SCAN_PAGE keys at a time.
+   * @param prefix keys must start with
+   * @param action receiving each key and value
+   * @return number of keys passed
+   * @throws IOException if the server can't be reached or rejects the scan
+   */
+  public int scanPrefix(String prefix, BiConsumer<String, String> action) throws IOException {
+    return this.scanAll(null, null, prefix, action);
+  }
+
+  /**
+   * Method passes every key from one key up to another, in order, with its value, to an
+   * action, fetching them a page of DEFAULT_SCAN_PAGE keys at a time.
+   * @param from first key, inclusive, or null to start at the first key
+   * @param to key to stop before, or null for no upper bound
+   * @param action receiving each key and value
+   * @return number of keys passed
+   * @throws IOException if the server can't be reached or rejects the scan
+   */
+  public int scanRange(String from, String to, BiConsumer<String, String> action)
+          throws IOException {
+    return this.scanAll(from, to, null, action);
+  }
+
+  /**
+   * Method fetches one page of an ordered scan of keys and their values.
+   * @param from first key, inclusive, or null to start at the first key
+   * @param to key to stop before, or null for no upper bound
+   * @param prefix keys must start with, or null for any
+   * @param cursor returned with the previous page, or null for the first page
+   * @param limit of keys in the page, the server allows at most 10000
+   * @param action receiving each key and value
+   * @return cursor for the next page, or null once the scan is complete
+   * @throws IOException if the server can't be reached or rejects the scan
+   */
+  public String scan(String from, String to, String prefix, String cursor, int limit,
+                     BiConsumer<String, String> action) throws IOException {
+    BinaryFrame request = BinaryFrame.request(this.frameVersion, BinaryFrame.SCAN,
+            this.newRequestId(), (cursor != null ? cursor : "").getBytes(StandardCharsets.UTF_8),
+            BatchResult.pack(Arrays.asList(from != null ? from : "", to != null ? to : "",
+                    prefix != null ? prefix : "", Integer.toString(limit))));
+    BatchResult result = this.sendBatches(List.of(request)).get(0);
+    if (result.size() % 2 == 0) { // pairs of key and value, then the cursor
+      throw new IOException("Scan response malformed.");
+    }
+    int last = result.size() - 1;
+    for (int i = 0; i < last; i += 2) {
+      action.accept(result.getValue(i), result.getValue(i + 1));
+    }
+    this.logger.logMessage("Scan page of " + last / 2 + " keys received from server.");
+    return result.getStatus(last) == BinaryFrame.OK ? result.getValue(last) : null;
+  }
+
+  /**
+   * Method puts a key, value pair that the server deletes once a time to live has passed.
+   * @param key to store
+   * @param value to store
+   * @param ttlMillis time to live, positive
+   * @return response frame, or null if the server did not respond
+   * @throws IOException
+   */
+  public BinaryFrame putWithTtl(String key, String value, long ttlMillis) throws IOException {
+    return this.sendRequest(BinaryFrame.PUT_TTL, key, ttlMillis + " " + value);
+  }
+
+  /**
+   * Method sets the time to live of a key, after which the server deletes it.
+   * @param key to expire
+   * @param ttlMillis time to live, positive
+   * @return response frame, NOT_FOUND if the key doesn't exist, or null if the server
+   *         did not respond
+   * @throws IOException
+   */
+  public BinaryFrame expire(String key, long ttlMillis) throws IOException {
+    return this.sendRequest(BinaryFrame.EXPIRE, key, Long.toString(ttlMillis));
+  }
+
+  /**
+   * Method sends a request as a binary frame and waits for its response.
+   * @param opcode of the request, BinaryFrame.PUT, GET, DELETE, PUT_TTL or EXPIRE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame, or null if the server did not respond
+   * @throws IOException
+   */
+  public abstract BinaryFrame sendRequest(byte opcode, String key, String value)
+          throws IOException;
+
+  /**
+   * Method closes the client's socket when done.
+   * @throws IOException
+   */
+  public abstract void closeAll() throws IOException;
+
+  /**
+   * Method sends batch request frames and collects their results.
+   * @param requests batch frames, each within maxBatchRequestLength
+   * @return results of each request, in the same order
+   * @throws IOException
+   */
+  protected abstract List<BatchResult> sendBatches(List<BinaryFrame> requests)
+          throws IOException;
+
+  /**
+   * Method returns the longest batch request frame this client sends.
+   * @return length in bytes
+   */
+  protected abstract int maxBatchRequestLength();
+
+  /**
+   * Helper method to split a batch into request frames no longer than
+   * maxBatchRequestLength, send them, and join their results.
+   * @param opcode BinaryFrame.MGET, MPUT or MDELETE
+   * @param keys of the batch
+   * @param values for MPUT in the order of the keys, otherwise null
+   * @return results of every key, in order
+   * @throws IOException
+   * @throws IllegalArgumentException if a key or value is null
+   */
+  private BatchResult batch(byte opcode, List<String> keys, List<String> values)
+          throws IOException {
+    for (int i = 0; i < keys.size(); i++) { // List.of rejects contains(null)
+      if (keys.get(i) == null || values != null && values.get(i) == null) {
+        throw new IllegalArgumentException("Batch keys and values must not be null.");
+      }
+    }
+    int budget = this.maxBatchRequestLength() - BinaryFrame.MIN_LENGTH - 8; // two counts
+    List<BinaryFrame> requests = new ArrayList<BinaryFrame>();
+    int first = 0;
+    while (first < keys.size()) {
+      int end = first;
+      int length = 0;
+      while (end < keys.size()) {
+        int entry = 4 + utf8Length(keys.get(end)) +
+                (values != null ? 4 + utf8Length(values.get(end)) : 0);
+        if (end > first && length + entry > budget) {
+          break;
+        }
+        length += entry;
+        end++;
+      }
+      requests.add(BinaryFrame.request(this.frameVersion, opcode, this.newRequestId(),
+              BatchResult.pack(keys.subList(first, end)),
+              values != null ? BatchResult.pack(values.subList(first, end)) : new byte[0]));
+      first = end;
+    }
+    this.logger.logMessage("Batch of " + keys.size() + " keys sent to server in " +
+            requests.size() + " requests.");
+    byte[] statuses = new byte[keys.size()];
+    String[] results = new String[keys.size()];
+    int index = 0;
+    for (BatchResult result : this.sendBatches(requests)) {
+      for (int i = 0; i < result.size(); i++, index++) {
+        statuses[index] = result.getStatus(i);
+        results[index] = result.getValue(i);
+      }
+    }
+    return new BatchResult(statuses, results);
+  }
+
+  /**
+   * Helper method to scan page after page until the scan is complete.
+   * @param from first key, inclusive, or null
+   * @param to key to stop before, or null
+   * @param prefix keys must start with, or null
+   * @param action receiving each key and value
+   * @return number of keys passed
+   * @throws IOException
+   */
+  private int scanAll(String from, String to, String prefix, BiConsumer<String, String> action)
+          throws IOException {
+    int[] passed = new int[1];
+    String cursor = null;
+    do {
+      cursor = this.scan(from, to, prefix, cursor, DEFAULT_SCAN_PAGE, (key, value) -> {
+        passed[0]++;
+        action.accept(key, value);
+      });
+    } while (cursor != null);
+    return passed[0];
+  }
+
+  /**
+   * Helper method to count the keys of a batch with a given status.
+   * @param result of the batch
+   * @param status to count
+   * @return number of keys
+   */
+  private int count(BatchResult result, byte status) {
+    int count = 0;
+    for (int i = 0; i < result.size(); i++) {
+      if (result.getStatus(i) == status) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Helper method to find the UTF-8 length of a string without encoding it.
+   * @param text to measure
+   * @return length in bytes
+   */
+  private static int utf8Length(String text) {
+    int length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) { // a pair encodes to 4 bytes
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
   /**
    * Method to automatically populate client hashmap with dummy data.
    */
@@ -0,0 +1,779 @@
+package client;
+
+import common.BatchResult;
+import common.BinaryFrame;
+import common.ChunkAssembler;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Class to represent a non-blocking client. getAsync, putAsync and deleteAsync return at
+ * once with a CompletableFuture that is completed when the response arrives, so callers
+ * never park a thread per request. All I/O runs on a single thread selecting over a
+ * non-blocking SocketChannel, switched to binary frames, or DatagramChannel, however many
+ * requests are outstanding, and responses are matched to requests by request id.
+ * Each request has its own timeout, after which its future fails with a TimeoutException,
+ * and cancelling a future forgets its request. Over UDP a window of requests is kept in
+ * flight and retransmitted as ClientUDP does: once three requests sent after one have been
+ * answered, or on a timeout adapted from the measured round trip time. The server's dedup
+ * cache keeps a retried write from being applied twice. Over TCP large values are sent
+ * and received in chunks; over UDP a request too large for a datagram, or answered with a
+ * REDIRECT, fails, and should be sent with a TCP client instead.
+ * Futures are completed on the I/O thread, so stages that block should be added with the
+ * async variants of CompletableFuture's methods.
+ */
+public class AsyncClient extends AbstractClient {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = 15000;
+  private static final int UDP_WINDOW = 64; // datagram requests in flight
+  private static final int FAST_RETRANSMIT = 3; // later responses before retransmitting early
+  private static final int RECEIVE_BUFFER = 1 << 20; // room for bursts of datagrams
+  private static final int MAX_BATCH_REQUEST = 1 << 20; // bytes of keys and values per frame
+  private static final int BUFFER = 64 * 1024;
+
+  private final boolean udp;
+  private final Selector selector;
+  private final SocketChannel socketChannel; // over TCP, otherwise null
+  private final DatagramChannel datagramChannel; // over UDP, otherwise null
+  private final SelectionKey key;
+  private final Queue<Runnable> tasks; // from callers, run by the I/O thread
+  private final AtomicBoolean wakeupPending; // a wakeup is already on its way
+  private final AtomicInteger requestIds;
+  private final Thread ioThread;
+  private volatile boolean closed;
+  // used only by the I/O thread
+  private final Map<Integer, Pending> inFlight; // sent, by request id
+  private final ArrayDeque<Pending> waiting; // datagram requests beyond the window
+  private final Map<Long, ArrayDeque<Pending>> deadlines; // by timeout, so each is in order
+  private final ArrayDeque<ByteBuffer> writes; // frames not yet written to the socket
+  private final RttEstimator rtt;
+  private long transmissions; // datagrams sent, numbering each transmission
+  private ByteBuffer readBuffer;
+  private final ChunkAssembler chunks; // of large response values, over TCP
+
+  /**
+   * Constructor. Connects to the server, switching a TCP connection to binary frames,
+   * and starts the I/O thread.
+   * @param protocol "tcp" or "udp"
+   * @param host of the server
+   * @param port of the server
+   * @throws IOException if the server can't be reached or won't switch to binary frames
+   */
+  public AsyncClient(String protocol, String host, int port) throws IOException {
+    super();
+    if (!protocol.equalsIgnoreCase("tcp") && !protocol.equalsIgnoreCase("udp")) {
+      throw new IllegalArgumentException("Unknown protocol " + protocol + ".");
+    }
+    this.protocol = protocol.toLowerCase();
+    this.udp = this.protocol.equals("udp");
+    this.binaryProtocol = true;
+    this.tasks = new ConcurrentLinkedQueue<Runnable>();
+    this.wakeupPending = new AtomicBoolean();
+    // ids from a random start, so a new client reusing a UDP port isn't answered from the
+    // server's dedup cache
+    this.requestIds = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+    this.inFlight = new HashMap<Integer, Pending>();
+    this.waiting = new ArrayDeque<Pending>();
+    this.deadlines = new HashMap<Long, ArrayDeque<Pending>>();
+    this.writes = new ArrayDeque<ByteBuffer>();
+    this.rtt = new RttEstimator();
+    this.readBuffer = ByteBuffer.allocate(BUFFER);
+    this.chunks = new ChunkAssembler();
+    this.selector = Selector.open();
+    InetSocketAddress address = new InetSocketAddress(host, port);
+    try {
+      if (this.udp) {
+        this.socketChannel = null;
+        this.datagramChannel = DatagramChannel.open();
+        this.datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF,
+                RECEIVE_BUFFER);
+        this.datagramChannel.connect(address);
+        this.datagramChannel.configureBlocking(false);
+        this.key = this.datagramChannel.register(this.selector, SelectionKey.OP_READ);
+      } else {
+        this.datagramChannel = null;
+        this.socketChannel = SocketChannel.open(address);
+        this.negotiate();
+        this.socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.socketChannel.configureBlocking(false);
+        this.key = this.socketChannel.register(this.selector, SelectionKey.OP_READ);
+      }
+    } catch (IOException e) {
+      this.selector.close();
+      throw e;
+    }
+    this.ioThread = new Thread(this::run, "async-client-" + this.protocol + "-" + port);
+    this.ioThread.setDaemon(true);
+    this.ioThread.start();
+  }
+
+  /**
+   * Method gets the value of a key without blocking.
+   * @param key to look up
+   * @return future value, null if the key doesn't exist
+   */
+  public CompletableFuture<String> getAsync(String key) {
+    return this.getAsync(key, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Method gets the value of a key without blocking.
+   * @param key to look up
+   * @param timeoutMillis before the future fails with a TimeoutException
+   * @return future value, null if the key doesn't exist
+   */
+  public CompletableFuture<String> getAsync(String key, long timeoutMillis) {
+    return this.map(this.sendAsync(BinaryFrame.GET, key, null, timeoutMillis),
+            response -> response.getStatus() == BinaryFrame.OK ? response.getValueString()
+                    : null);
+  }
+
+  /**
+   * Method stores a key, value pair without blocking.
+   * @param key to store
+   * @param value to store
+   * @return future completed once the server has stored the pair
+   */
+  public CompletableFuture<Void> putAsync(String key, String value) {
+    return this.putAsync(key, value, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Method stores a key, value pair without blocking.
+   * @param key to store
+   * @param value to store
+   * @param timeoutMillis before the future fails with a TimeoutException
+   * @return future completed once the server has stored the pair
+   */
+  public CompletableFuture<Void> putAsync(String key, String value, long timeoutMillis) {
+    return this.map(this.sendAsync(BinaryFrame.PUT, key, value, timeoutMillis),
+            response -> null);
+  }
+
+  /**
+   * Method stores a key, value pair without blocking, to be deleted once a time to live
+   * has passed.
+   * @param key to store
+   * @param value to store
+   * @param ttlMillis time to live, positive
+   * @return future completed once the server has stored the pair
+   */
+  public CompletableFuture<Void> putWithTtlAsync(String key, String value, long ttlMillis) {
+    return this.map(this.sendAsync(BinaryFrame.PUT_TTL, key, ttlMillis + " " + value,
+            DEFAULT_TIMEOUT_MILLIS), response -> null);
+  }
+
+  /**
+   * Method sets the time to live of a key without blocking.
+   * @param key to expire
+   * @param ttlMillis time to live, positive
+   * @return future true if the key exists and will expire
+   */
+  public CompletableFuture<Boolean> expireAsync(String key, long ttlMillis) {
+    return this.map(this.sendAsync(BinaryFrame.EXPIRE, key, Long.toString(ttlMillis),
+            DEFAULT_TIMEOUT_MILLIS), response -> response.getStatus() == BinaryFrame.OK);
+  }
+
+  /**
+   * Method removes a key without blocking.
+   * @param key to remove
+   * @return future true if the key existed and was removed
+   */
+  public CompletableFuture<Boolean> deleteAsync(String key) {
+    return this.deleteAsync(key, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Method removes a key without blocking.
+   * @param key to remove
+   * @param timeoutMillis before the future fails with a TimeoutException
+   * @return future true if the key existed and was removed
+   */
+  public CompletableFuture<Boolean> deleteAsync(String key, long timeoutMillis) {
+    return this.map(this.sendAsync(BinaryFrame.DELETE, key, null, timeoutMillis),
+            response -> response.getStatus() == BinaryFrame.OK);
+  }
+
+  /**
+   * Method sends a request as a binary frame without blocking.
+   * @param opcode of the request, BinaryFrame.PUT, GET, DELETE or PING
+   * @param key of the request
+   * @param value of the request, or null
+   * @param timeoutMillis before the future fails with a TimeoutException
+   * @return future response frame
+   */
+  public CompletableFuture<BinaryFrame> sendAsync(byte opcode, String key, String value,
+                                                  long timeoutMillis) {
+    BinaryFrame request = this.createRequest(opcode, key, value);
+    this.logger.logMessage("Request sent to server: opcode " + opcode + ", key " + key);
+    return this.submit(request, timeoutMillis).future;
+  }
+
+  /**
+   * Method sends a request and waits for its response, for callers that can block.
+   * @param opcode of the request, BinaryFrame.PUT, GET or DELETE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame
+   * @throws IOException if the connection fails or the server doesn't respond in time
+   */
+  @Override
+  public BinaryFrame sendRequest(byte opcode, String key, String value) throws IOException {
+    return await(this.sendAsync(opcode, key, value, DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  /**
+   * Method sends batch frames at once and waits for them all.
+   * @param requests batch frames
+   * @return results of each request, in the same order
+   * @throws IOException if the connection fails or the server rejects a batch
+   */
+  @Override
+  protected List<BatchResult> sendBatches(List<BinaryFrame> requests) throws IOException {
+    List<Pending> sent = new ArrayList<Pending>(requests.size());
+    for (BinaryFrame request : requests) {
+      sent.add(this.submit(request, DEFAULT_TIMEOUT_MILLIS));
+    }
+    List<BatchResult> results = new ArrayList<BatchResult>(requests.size());
+    for (Pending pending : sent) {
+      await(pending.future);
+      results.add(pending.batch);
+    }
+    return results;
+  }
+
+  @Override
+  protected int maxBatchRequestLength() {
+    return this.udp ? BinaryFrame.MAX_DATAGRAM_LENGTH : MAX_BATCH_REQUEST;
+  }
+
+  /**
+   * Method returns a request id unique across the threads sending requests.
+   * @return request id
+   */
+  @Override
+  protected int newRequestId() {
+    return this.requestIds.incrementAndGet();
+  }
+
+  /**
+   * Method stops the I/O thread and closes the channel, failing outstanding requests.
+   */
+  @Override
+  public void closeAll() {
+    this.closed = true;
+    this.selector.wakeup();
+    if (Thread.currentThread() != this.ioThread) {
+      try {
+        this.ioThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Helper method to switch a new, still blocking, TCP connection to binary frames.
+   * @throws IOException if the server doesn't agree
+   */
+  private void negotiate() throws IOException {
+    this.socketChannel.socket().setSoTimeout((int) DEFAULT_TIMEOUT_MILLIS);
+    DataOutputStream out = new DataOutputStream(this.socketChannel.socket().getOutputStream());
+    DataInputStream in = new DataInputStream(this.socketChannel.socket().getInputStream());
+    out.writeUTF(this.getChecksum(BinaryFrame.NEGOTIATE_REQUEST));
+    String[] reply = this.extractChecksum(in.readUTF());
+    if (!this.validateMessage(reply) || !reply[1].equals(BinaryFrame.NEGOTIATE_RESPONSE)) {
+      this.socketChannel.close();
+      throw new IOException("Server did not switch to binary frames.");
+    }
+  }
+
+  /**
+   * Helper method to hand a request to the I/O thread.
+   * @param request frame to send
+   * @param timeoutMillis before it fails with a TimeoutException
+   * @return request state, with its future
+   */
+  private Pending submit(BinaryFrame request, long timeoutMillis) {
+    Pending pending = new Pending(request, TimeUnit.MILLISECONDS.toNanos(timeoutMillis),
+            this.udp);
+    if (this.udp && request.length() > BinaryFrame.MAX_DATAGRAM_LENGTH) {
+      pending.future.completeExceptionally(new IOException(
+              "Request too large for a datagram, send it over TCP."));
+      return pending;
+    }
+    // a cancelled request is forgotten, freeing its place in the window
+    pending.future.whenComplete((response, e) -> {
+      if (pending.future.isCancelled()) {
+        this.execute(() -> this.forget(pending));
+      }
+    });
+    this.execute(() -> this.start(pending));
+    if (this.closed) { // the I/O thread may already be gone
+      pending.future.completeExceptionally(new IOException("Client closed."));
+    }
+    return pending;
+  }
+
+  /**
+   * Helper method to run a task on the I/O thread, waking it if it is selecting.
+   * @param task to run
+   */
+  private void execute(Runnable task) {
+    this.tasks.add(task);
+    if (this.wakeupPending.compareAndSet(false, true)) {
+      this.selector.wakeup();
+    }
+  }
+
+  /**
+   * Helper method to derive a future from a response, checking the response for errors.
+   * Cancelling the derived future cancels the request.
+   * @param response future response frame
+   * @param result computes the derived value from a response
+   * @return derived future
+   */
+  private <T> CompletableFuture<T> map(CompletableFuture<BinaryFrame> response,
+                                       Function<BinaryFrame, T> result) {
+    CompletableFuture<T> derived = response.thenApply(frame -> {
+      if (!frame.isChecksumValid() || frame.getStatus() == BinaryFrame.ERROR ||
+              frame.getStatus() == BinaryFrame.REDIRECT) {
+        throw new CompletionException(new IOException(this.readResponse(frame)));
+      }
+      this.readResponse(frame);
+      return result.apply(frame);
+    });
+    derived.whenComplete((value, e) -> {
+      if (derived.isCancelled()) {
+        response.cancel(false);
+      }
+    });
+    return derived;
+  }
+
+  /**
+   * Helper method to wait for a future response, for the blocking methods.
+   * @param response future
+   * @return response frame
+   * @throws IOException if the request failed or timed out
+   */
+  private static BinaryFrame await(CompletableFuture<BinaryFrame> response)
+          throws IOException {
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        throw new SocketTimeoutException("Server unresponsive, timeout mechanism executed");
+      }
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+              : new IOException(e.getCause());
+    } catch (CancellationException e) {
+      throw new InterruptedIOException("Request cancelled.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.cancel(false);
+      throw new InterruptedIOException("Interrupted waiting for a response.");
+    }
+  }
+
+  /**
+   * Helper method run by the I/O thread: selects until closed, running submitted tasks,
+   * reading responses, writing requests and firing timers.
+   */
+  private void run() {
+    IOException failure = new IOException("Client closed.");
+    try {
+      while (!this.closed) {
+        long wait = this.nextTimer(System.nanoTime());
+        if (wait == 0) {
+          this.selector.selectNow();
+        } else {
+          this.selector.select(wait < 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+        }
+        this.wakeupPending.set(false);
+        for (Runnable task = this.tasks.poll(); task != null; task = this.tasks.poll()) {
+          task.run();
+        }
+        if (this.key.isValid() && this.key.isReadable()) {
+          if (this.udp) {
+            this.receiveDatagrams();
+          } else {
+            this.readFrames();
+          }
+        }
+        this.flushWrites();
+        this.selector.selectedKeys().clear();
+        this.fireTimers(System.nanoTime());
+      }
+    } catch (IOException e) {
+      this.logger.logMessage("Connection to server lost: " + e.getMessage());
+      failure = new IOException("Connection to server lost.", e);
+    } finally {
+      this.closed = true;
+      try {
+        this.selector.close();
+        if (this.udp) {
+          this.datagramChannel.close();
+        } else {
+          this.socketChannel.close();
+        }
+      } catch (IOException e) { // already closed
+      }
+      for (Pending pending : this.inFlight.values()) {
+        pending.future.completeExceptionally(failure);
+      }
+      for (Pending pending : this.waiting) {
+        pending.future.completeExceptionally(failure);
+      }
+      for (Runnable task = this.tasks.poll(); task != null; task = this.tasks.poll()) {
+        task.run(); // starting a request now fails it
+      }
+    }
+  }
+
+  /**
+   * Helper method to start a submitted request on the I/O thread.
+   * @param pending request
+   * @throws IOException
+   */
+  private void start(Pending pending) {
+    if (pending.future.isDone()) { // cancelled before it started
+      return;
+    }
+    if (this.closed) {
+      pending.future.completeExceptionally(new IOException("Client closed."));
+      return;
+    }
+    pending.deadline = System.nanoTime() + pending.timeout;
+    this.deadlines.computeIfAbsent(pending.timeout, timeout -> new ArrayDeque<Pending>())
+            .add(pending);
+    if (this.udp && this.inFlight.size() >= UDP_WINDOW) {
+      this.waiting.add(pending);
+    } else {
+      this.transmit(pending, System.nanoTime());
+    }
+  }
+
+  /**
+   * Helper method to send, or send again, a request. Frames for TCP are queued and written
+   * together once the tasks at hand have run.
+   * @param pending request
+   * @param now System.nanoTime()
+   */
+  private void transmit(Pending pending, long now) {
+    this.inFlight.put(pending.request.getRequestId(), pending);
+    pending.attempts++;
+    pending.lastSent = now;
+    pending.timerStart = now;
+    pending.sentAs = ++this.transmissions;
+    pending.overtaken = 0;
+    if (this.udp) {
+      try { // a datagram that can't be sent now is retransmitted later
+        this.datagramChannel.write(ByteBuffer.wrap(pending.data));
+      } catch (PortUnreachableException e) { // no server yet, retransmitted later
+      } catch (IOException e) {
+        this.finish(pending, null, e);
+      }
+    } else {
+      for (BinaryFrame chunk : pending.request.toChunks(BinaryFrame.CHUNK_LENGTH)) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + chunk.length());
+        frame.putInt(chunk.length());
+        chunk.encode(frame);
+        frame.flip();
+        this.writes.add(frame);
+      }
+    }
+  }
+
+  /**
+   * Helper method to write queued frames until the socket takes no more, waiting for it
+   * to be writable again if frames remain.
+   * @throws IOException if the connection fails
+   */
+  private void flushWrites() throws IOException {
+    if (this.udp) {
+      return;
+    }
+    while (!this.writes.isEmpty()) {
+      ByteBuffer[] buffers = this.writes.toArray(new ByteBuffer[0]);
+      this.socketChannel.write(buffers);
+      while (!this.writes.isEmpty() && !this.writes.peek().hasRemaining()) {
+        this.writes.poll();
+      }
+      if (!this.writes.isEmpty() && this.writes.peek().hasRemaining()) {
+        break; // socket buffer full
+      }
+    }
+    int ops = this.writes.isEmpty() ? SelectionKey.OP_READ
+            : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    if (this.key.interestOps() != ops) {
+      this.key.interestOps(ops);
+    }
+  }
+
+  /**
+   * Helper method to read length prefixed frames from the TCP connection.
+   * @throws IOException if the connection is closed or sends something else
+   */
+  private void readFrames() throws IOException {
+    int read;
+    while ((read = this.socketChannel.read(this.readBuffer)) > 0) {
+      this.readBuffer.flip();
+      while (this.readBuffer.remaining() >= 4) {
+        int length = this.readBuffer.getInt(this.readBuffer.position());
+        if (length < BinaryFrame.MIN_LENGTH || length > BinaryFrame.MAX_FRAME_LENGTH) {
+          throw new IOException("Invalid binary frame length " + length + ".");
+        }
+        if (this.readBuffer.remaining() < 4 + length) {
+          break;
+        }
+        int end = this.readBuffer.position() + 4 + length;
+        ByteBuffer frame = this.readBuffer.duplicate();
+        frame.position(this.readBuffer.position() + 4).limit(end);
+        this.readBuffer.position(end);
+        BinaryFrame response = this.chunks.add(BinaryFrame.decode(frame));
+        if (response != null) { // else more chunks of a value to come
+          this.dispatch(response);
+        }
+      }
+      if (this.readBuffer.remaining() >= 4) { // grow to fit the next frame
+        int needed = 4 + this.readBuffer.getInt(this.readBuffer.position());
+        if (needed > this.readBuffer.capacity()) {
+          ByteBuffer larger = ByteBuffer.allocate(needed);
+          larger.put(this.readBuffer);
+          this.readBuffer = larger;
+          continue;
+        }
+      }
+      this.readBuffer.compact();
+    }
+    if (read < 0) {
+      throw new IOException("Server closed the connection.");
+    }
+  }
+
+  /**
+   * Helper method to read every datagram waiting on the UDP channel.
+   * @throws IOException
+   */
+  private void receiveDatagrams() throws IOException {
+    ByteBuffer datagram = this.readBuffer;
+    while (true) {
+      datagram.clear();
+      try {
+        if (this.datagramChannel.read(datagram) <= 0) {
+          return;
+        }
+      } catch (PortUnreachableException e) { // nothing listening yet, keep retransmitting
+        continue;
+      }
+      datagram.flip();
+      try {
+        this.dispatch(BinaryFrame.decode(datagram));
+      } catch (IOException e) {
+        this.logger.logMessage("Packet received from server malformed.");
+      }
+    }
+  }
+
+  /**
+   * Helper method to hand a response frame to the request waiting for it. Over UDP a
+   * damaged frame is dropped, and the request retransmitted.
+   * @param response frame received
+   */
+  private void dispatch(BinaryFrame response) {
+    Pending pending = this.inFlight.get(response.getRequestId());
+    if (pending == null) { // late, duplicate or cancelled
+      return;
+    }
+    if (this.udp && !response.isChecksumValid()) {
+      return;
+    }
+    if (this.udp && pending.attempts == 1 && !pending.answered) { // Karn's rule
+      long now = System.nanoTime();
+      this.rtt.sample(now - pending.lastSent);
+      List<Pending> overtaken = new ArrayList<Pending>();
+      for (Pending earlier : this.inFlight.values()) {
+        if (earlier.sentAs < pending.sentAs && !earlier.answered &&
+                ++earlier.overtaken == FAST_RETRANSMIT) {
+          overtaken.add(earlier);
+        }
+      }
+      for (Pending earlier : overtaken) { // retransmitting changes inFlight
+        this.transmit(earlier, now);
+      }
+    }
+    pending.answered = true;
+    if (pending.batch != null) {
+      try {
+        pending.batch.add(response);
+      } catch (IOException e) {
+        this.finish(pending, null, e);
+        return;
+      }
+      if (!pending.batch.isComplete()) { // more slices to come
+        return;
+      }
+    }
+    this.finish(pending, response, null);
+  }
+
+  /**
+   * Helper method to complete a request and start the next one waiting for the window.
+   * @param pending request
+   * @param response frame, or null if it failed
+   * @param failure or null
+   */
+  private void finish(Pending pending, BinaryFrame response, Throwable failure) {
+    this.forget(pending);
+    if (failure != null) {
+      pending.future.completeExceptionally(failure);
+    } else {
+      pending.future.complete(response);
+    }
+  }
+
+  /**
+   * Helper method to stop tracking a request, starting the next one waiting for the window.
+   * @param pending request
+   */
+  private void forget(Pending pending) {
+    if (this.inFlight.remove(pending.request.getRequestId(), pending)) {
+      while (this.udp && this.inFlight.size() < UDP_WINDOW && !this.waiting.isEmpty()) {
+        Pending next = this.waiting.poll();
+        if (!next.future.isDone()) {
+          this.transmit(next, System.nanoTime());
+        }
+      }
+    } else {
+      this.waiting.remove(pending);
+    }
+  }
+
+  /**
+   * Helper method to find how long the I/O thread may select before a timer is due.
+   * Requests that are done are dropped from the head of their deadline queue.
+   * @param now System.nanoTime()
+   * @return nanoseconds, 0 if due now, -1 if no timer is set
+   */
+  private long nextTimer(long now) {
+    long next = Long.MAX_VALUE;
+    for (Iterator<ArrayDeque<Pending>> queues = this.deadlines.values().iterator();
+         queues.hasNext(); ) {
+      ArrayDeque<Pending> queue = queues.next();
+      while (!queue.isEmpty() && queue.peek().future.isDone()) {
+        queue.poll();
+      }
+      if (queue.isEmpty()) {
+        queues.remove();
+      } else {
+        next = Math.min(next, queue.peek().deadline - now);
+      }
+    }
+    if (this.udp) {
+      for (Pending pending : this.inFlight.values()) {
+        next = Math.min(next, pending.timerStart + this.rtt.timeout() - now);
+      }
+    }
+    return next == Long.MAX_VALUE ? -1 : Math.max(0, next);
+  }
+
+  /**
+   * Helper method to fail requests past their deadline and, once the retransmission
+   * timeout has passed for datagram requests, retransmit them in the order they were sent,
+   * back off the timeout and restart every timer, as TCP does.
+   * @param now System.nanoTime()
+   */
+  private void fireTimers(long now) {
+    for (ArrayDeque<Pending> queue : this.deadlines.values()) {
+      while (!queue.isEmpty() && (queue.peek().future.isDone() ||
+              queue.peek().deadline - now <= 0)) {
+        Pending pending = queue.poll();
+        if (!pending.future.isDone()) {
+          this.logger.logMessage("Server unresponsive, request " +
+                  pending.request.getRequestId() + " timed out.");
+          this.finish(pending, null, new TimeoutException("No response within " +
+                  TimeUnit.NANOSECONDS.toMillis(pending.timeout) + " ms."));
+        }
+      }
+    }
+    if (this.udp) {
+      List<Pending> expired = new ArrayList<Pending>();
+      for (Pending pending : this.inFlight.values()) {
+        if (now - pending.timerStart >= this.rtt.timeout()) {
+          expired.add(pending);
+        }
+      }
+      if (expired.isEmpty()) {
+        return;
+      }
+      expired.sort((a, b) -> Long.compare(a.sentAs, b.sentAs));
+      for (Pending pending : expired) {
+        this.logger.logMessage("Retransmitting request " + pending.request.getRequestId() +
+                ", attempt " + (pending.attempts + 1) + ".");
+        this.transmit(pending, now);
+      }
+      this.rtt.backoff();
+      for (Pending pending : this.inFlight.values()) {
+        pending.timerStart = now;
+      }
+    }
+  }
+
+  /**
+   * State of a request, kept by the I/O thread once started.
+   */
+  private static final class Pending {
+
+    private final BinaryFrame request;
+    private final byte[] data; // encoded request, for datagrams
+    private final long timeout; // nanoseconds
+    private final CompletableFuture<BinaryFrame> future;
+    private final BatchResult batch; // results put together, for batch requests
+    private long deadline;
+    private long lastSent;
+    private long timerStart; // retransmitted once the timeout has passed since
+    private long sentAs; // number of the last transmission
+    private int overtaken; // later requests answered since last sent
+    private int attempts;
+    private boolean answered; // a response, or slice of one, arrived
+
+    private Pending(BinaryFrame request, long timeout, boolean datagram) {
+      this.request = request;
+      this.data = datagram && request.length() <= BinaryFrame.MAX_DATAGRAM_LENGTH
+              ? request.toBytes() : null;
+      this.timeout = timeout;
+      this.future = new CompletableFuture<BinaryFrame>();
+      this.batch = BinaryFrame.isBatch(request.getOpcode()) ? new BatchResult() : null;
+    }
+  }
+}
@@ -1,22 +1,30 @@
 package client;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import common.AsyncLogWriter;
 
 /**
  * Class to log activity for the Server.
  * The class will automatically timestamp all messages in the log.
+ * Messages are queued and written to the file in batches by a background writer,
+ * so logging never waits on the file system.
  */
 public class ClientLogger {
-  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
-  private String logFileName = "";
+  private final AsyncLogWriter writer;
 
   // log any errors
   public ClientLogger(String logFileName) {
-    this.logFileName = logFileName;
+    this.writer = AsyncLogWriter.forFile(logFileName);
+  }
+
+  /**
+   * Constructor.
+   * @param logFileName file to log to
+   * @param durability of each written batch
+   * @param overflowPolicy to block or drop messages when the writer falls behind
+   */
+  public ClientLogger(String logFileName, AsyncLogWriter.Durability durability,
+                      AsyncLogWriter.OverflowPolicy overflowPolicy) {
+    this.writer = AsyncLogWriter.forFile(logFileName, durability, overflowPolicy);
   }
 
   /**
@@ -24,15 +32,6 @@ public class ClientLogger {
    * @param message to log
    */
   public void logMessage(String message) {
-    String timestamp = this.sdf.format(new Date(System.currentTimeMillis()));
-    String logMessage = timestamp + ": " + message;
-
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFileName, true))) {
-      writer.write(logMessage);
-      writer.newLine();
-      writer.flush();
-    } catch (IOException e) {
-      System.err.println("Error writing to log file: " + e.getMessage());
-    }
+    this.writer.log(message);
   }
 }
@@ -1,5 +1,10 @@
 package client;
 
+import common.BatchResult;
+import common.BinaryFrame;
+import common.ChunkAssembler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -7,12 +12,19 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class to represent a client using a TCP connection.
  */
 public class ClientTCP extends AbstractClient {
 
+  public static final int PIPELINE_WINDOW = 64; // default requests in flight when pipelining
+  private static final int MAX_BATCH_REQUEST = 1 << 20; // bytes of keys and values per frame
+
   private Socket clientSocket;
   private String host;
   private int port;
@@ -22,7 +34,7 @@ public class ClientTCP extends AbstractClient {
   // for receiving
   private InputStream sIn;
   private DataInputStream dis;
-
+  private final ChunkAssembler chunks = new ChunkAssembler(); // of large response values
 
   /**
    * Constructor.
@@ -101,7 +113,15 @@ public class ClientTCP extends AbstractClient {
     }
     this.dis = new DataInputStream(sIn);
 
+    return this.checkReply(result);
+  }
 
+  /**
+   * Helper method to validate and log a reply from the server.
+   * @param result reply with checksum header
+   * @return reply without checksum
+   */
+  private String checkReply(String result) {
     String[] parsedMessage = this.extractChecksum(result);
     if (this.validateMessage(parsedMessage)) { // handle any malformed replies
       String log = "Return message received from server: " + parsedMessage[1];
@@ -113,6 +133,208 @@ public class ClientTCP extends AbstractClient {
     return parsedMessage[1];
   }
 
+  /**
+   * Method sends many requests back to back on this connection, keeping up to
+   * window requests in flight instead of waiting a round trip for each reply.
+   * The server answers a connection's requests in order, so replies are matched
+   * to requests by position. Requests are written in batches and flushed once.
+   * @param messages requests to send, in the same format as sendPacket
+   * @param window most requests awaiting a reply at any time
+   * @return replies, in the order of the requests
+   * @throws IOException
+   */
+  public List<String> pipeline(List<String> messages, int window) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(this.clientSocket.getOutputStream()));
+    DataInputStream in = new DataInputStream(
+            new BufferedInputStream(this.clientSocket.getInputStream()));
+    List<String> results = new ArrayList<String>(messages.size());
+    int sent = 0;
+    while (results.size() < messages.size()) {
+      while (sent < messages.size() && sent - results.size() < window) { // fill the window
+        out.writeUTF(this.getChecksum(messages.get(sent)));
+        this.logger.logMessage("Request sent to server: " + messages.get(sent));
+        sent++;
+      }
+      out.flush();
+      do { // take every reply that has already arrived before writing more
+        results.add(this.checkReply(in.readUTF()));
+      } while (results.size() < sent && in.available() > 0);
+    }
+    return results;
+  }
+
+  /**
+   * Method sends many binary request frames back to back on this connection, keeping up
+   * to window requests in flight. Responses are matched to requests by request id.
+   * The connection must have switched to binary frames first.
+   * @param requests frames to send, each with its own request id
+   * @param window most requests awaiting a response at any time
+   * @return responses, in the order of the requests
+   * @throws IOException
+   */
+  public List<BinaryFrame> pipelineFrames(List<BinaryFrame> requests, int window)
+          throws IOException {
+    DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(this.clientSocket.getOutputStream()));
+    DataInputStream in = new DataInputStream(
+            new BufferedInputStream(this.clientSocket.getInputStream()));
+    Map<Integer, BinaryFrame> responses = new HashMap<Integer, BinaryFrame>();
+    int sent = 0;
+    while (responses.size() < requests.size()) {
+      while (sent < requests.size() && sent - responses.size() < window) {
+        requests.get(sent).writeChunks(out);
+        sent++;
+      }
+      out.flush();
+      do {
+        BinaryFrame response = this.readFrame(in);
+        this.readResponse(response);
+        responses.put(response.getRequestId(), response);
+      } while (responses.size() < sent && in.available() > 0);
+    }
+    List<BinaryFrame> ordered = new ArrayList<BinaryFrame>(requests.size());
+    for (BinaryFrame request : requests) {
+      ordered.add(responses.get(request.getRequestId()));
+    }
+    return ordered;
+  }
+
+  /**
+   * Method asks the server to switch this connection to binary frames.
+   * Afterwards requests go through sendRequest, and keys and values may contain any characters.
+   * @return true if the server switched
+   * @throws IOException
+   */
+  public boolean negotiateBinaryProtocol() throws IOException {
+    this.sendPacket(BinaryFrame.NEGOTIATE_REQUEST);
+    this.binaryProtocol = this.receiveData().equals(BinaryFrame.NEGOTIATE_RESPONSE);
+    return this.binaryProtocol;
+  }
+
+  /**
+   * Method asks the server to switch this connection to binary frames checksummed with
+   * CRC32C. A server that doesn't know CRC32C frames rejects the request, and the
+   * connection falls back to CRC32 frames.
+   * @return true if the server switched, with either checksum
+   * @throws IOException
+   */
+  public boolean negotiateCrc32cProtocol() throws IOException {
+    this.sendPacket(BinaryFrame.NEGOTIATE_CRC32C_REQUEST);
+    String reply = this.receiveData();
+    if (reply.equals(BinaryFrame.negotiateResponse(BinaryFrame.VERSION_CRC32C))) {
+      this.binaryProtocol = true;
+      this.useCrc32c(true);
+      return true;
+    }
+    this.useCrc32c(false);
+    return this.negotiateBinaryProtocol();
+  }
+
+  /**
+   * Method sends batch frames pipelined on this connection, switching it to binary
+   * frames first if needed. A large result is streamed back as several slices, which
+   * are put back together.
+   * @param requests batch frames
+   * @return results of each request, in the same order
+   * @throws IOException if the server can't switch to binary frames or rejects a batch
+   */
+  @Override
+  protected List<BatchResult> sendBatches(List<BinaryFrame> requests) throws IOException {
+    if (!this.binaryProtocol && !this.negotiateBinaryProtocol()) {
+      throw new IOException("Server did not switch to binary frames.");
+    }
+    DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(this.clientSocket.getOutputStream()));
+    DataInputStream in = new DataInputStream(
+            new BufferedInputStream(this.clientSocket.getInputStream()));
+    Map<Integer, BatchResult> results = new HashMap<Integer, BatchResult>();
+    for (BinaryFrame request : requests) {
+      results.put(request.getRequestId(), new BatchResult());
+    }
+    int sent = 0;
+    int complete = 0;
+    while (complete < requests.size()) {
+      while (sent < requests.size() && sent - complete < PIPELINE_WINDOW) {
+        requests.get(sent).writeChunks(out);
+        sent++;
+      }
+      out.flush();
+      do {
+        BinaryFrame response = this.readFrame(in);
+        this.readResponse(response);
+        BatchResult result = results.get(response.getRequestId());
+        if (result != null && !result.isComplete()) {
+          result.add(response);
+          complete += result.isComplete() ? 1 : 0;
+        }
+      } while (complete < sent && in.available() > 0);
+    }
+    List<BatchResult> ordered = new ArrayList<BatchResult>(requests.size());
+    for (BinaryFrame request : requests) {
+      ordered.add(results.get(request.getRequestId()));
+    }
+    return ordered;
+  }
+
+  @Override
+  protected int maxBatchRequestLength() {
+    return MAX_BATCH_REQUEST;
+  }
+
+  /**
+   * Method sends a binary request frame to the server.
+   * @param request frame to send
+   * @throws IOException
+   */
+  public void sendFrame(BinaryFrame request) throws IOException {
+    this.dos = new DataOutputStream(this.clientSocket.getOutputStream());
+    request.writeChunks(this.dos);
+    this.logger.logMessage("Request sent to server: opcode " + request.getOpcode() +
+            ", key " + request.getKeyString());
+  }
+
+  /**
+   * Method receives a binary response frame from the server.
+   * @return response frame
+   * @throws IOException
+   */
+  public BinaryFrame receiveFrame() throws IOException {
+    return this.readFrame(this.dis);
+  }
+
+  /**
+   * Helper method to read the next whole response frame, putting a value sent in chunks
+   * back together.
+   * @param in stream from the server
+   * @return response frame
+   * @throws IOException
+   */
+  private BinaryFrame readFrame(DataInputStream in) throws IOException {
+    BinaryFrame frame;
+    do {
+      frame = this.chunks.add(BinaryFrame.read(in));
+    } while (frame == null);
+    return frame;
+  }
+
+  /**
+   * Method sends a request as a binary frame and waits for its response.
+   * The connection must have switched to binary frames first.
+   * @param opcode of the request, BinaryFrame.PUT, GET or DELETE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame
+   * @throws IOException
+   */
+  public BinaryFrame sendRequest(byte opcode, String key, String value) throws IOException {
+    BinaryFrame request = this.createRequest(opcode, key, value);
+    this.sendFrame(request);
+    BinaryFrame response = this.receiveFrame();
+    this.readResponse(response);
+    return response;
+  }
+
   public void communicateWithServer() throws IOException {
     String message = "";
     Boolean flag = true;
@@ -143,17 +365,13 @@ public class ClientTCP extends AbstractClient {
   public void prePopulateServer() throws IOException {
     String[] requests = new String[]{"put, class, CS6650", "put, semester, Spring2024",
             "put, professor, Saripalli", "put, program, MSCS", "put, university, Northeastern"};
-    byte[] receiveMessage = new byte[1024];
-    String result = "";
-    for (int i = 0; i < 5; i++) {
-      try {
-        this.sendPacket(requests[i]);
-        result = this.receiveData();
+    try { // all requests in flight at once
+      for (String result : this.pipeline(List.of(requests), PIPELINE_WINDOW)) {
         // print response to log
         System.out.println(result);
-      } catch (Exception e) {
-        this.logger.logMessage("Unable to send pre-populated data.");
       }
+    } catch (Exception e) {
+      this.logger.logMessage("Unable to send pre-populated data.");
     }
   }
 
@@ -161,33 +379,20 @@ public class ClientTCP extends AbstractClient {
    * Method to perform 5 put, get, and delete requests automatically.
    */
   public void autoPopulateServer() {
-    String result = "";
-    // Perform 5 Put/Get/Delete Requests
+    List<String> requests = new ArrayList<String>();
+    // Perform 5 Put/Get/Delete Requests, pipelined since the server keeps them in order
     for (String key : this.hashMap.keySet()) {
-      try { // put requests
-        this.sendPacket("put, " + key + ", " + this.hashMap.get(key));
-        result = this.receiveData();
-        // print response to log
-        System.out.println(result);
-      } catch (IOException e) {
-        this.logger.logMessage("Unable to sent put request for key: " + key);
-      }
-      try { // get requests
-        this.sendPacket("get, " + key);
-        result = this.receiveData();
-        // print response to log
-        System.out.println(result);
-      } catch (IOException e) {
-        this.logger.logMessage("Unable to sent get request for key: " + key);
-      }
-      try { // delete requests
-        this.sendPacket("delete, " + key);
-        result = this.receiveData();
+      requests.add("put, " + key + ", " + this.hashMap.get(key));
+      requests.add("get, " + key);
+      requests.add("delete, " + key);
+    }
+    try {
+      for (String result : this.pipeline(requests, PIPELINE_WINDOW)) {
         // print response to log
         System.out.println(result);
-      } catch (IOException e) {
-        this.logger.logMessage("Unable to sent delete request for key: " + key);
       }
+    } catch (IOException e) {
+      this.logger.logMessage("Unable to send put, get and delete requests.");
     }
   }
 
@@ -0,0 +1,450 @@
+package client;
+
+import common.BatchResult;
+import common.BinaryFrame;
+import common.ChunkAssembler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class to represent a thread safe TCP client shared by any number of threads. It keeps a
+ * bounded pool of connections switched to binary frames, and writes each request, tagged
+ * with its request id, to the open connection with the fewest requests outstanding, so
+ * many threads' requests are multiplexed over a handful of sockets. A reader thread per
+ * connection hands each response to the thread waiting for its request id.
+ * Every second a maintenance thread reopens connections that failed and sends a PING
+ * on connections that have received nothing for a while; a connection that fails, or
+ * doesn't answer the PING in time, is closed and the requests waiting on it fail with an
+ * IOException, so callers can retry them on the remaining connections.
+ */
+public class ClientTCPPool extends AbstractClient {
+
+  public static final int DEFAULT_CONNECTIONS = 4;
+  private static final int TIMEOUT_MILLIS = 15000; // give up on a request after
+  private static final long MAINTENANCE_MILLIS = 1000; // between reconnects and health checks
+  private static final long IDLE_MILLIS = 5000; // silence before a connection is pinged
+  private static final long PING_TIMEOUT_MILLIS = 5000; // before an unanswered ping fails it
+  private static final int BUFFER = 64 * 1024;
+  private static final int MAX_BATCH_REQUEST = 1 << 20; // bytes of keys and values per frame
+
+  private final String host;
+  private final int port;
+  private final AtomicReferenceArray<Connection> connections; // null or closed until reopened
+  private final AtomicInteger requestIds;
+  private final ScheduledExecutorService maintenance;
+  private volatile boolean closed;
+
+  /**
+   * Constructor. Opens DEFAULT_CONNECTIONS connections.
+   * @param host of the server
+   * @param port of the server
+   * @throws IOException if no connection can be opened
+   */
+  public ClientTCPPool(String host, int port) throws IOException {
+    this(host, port, DEFAULT_CONNECTIONS);
+  }
+
+  /**
+   * Constructor. Opens the connections, at least one of which must succeed.
+   * @param host of the server
+   * @param port of the server
+   * @param connections most connections kept open
+   * @throws IOException if no connection can be opened
+   */
+  public ClientTCPPool(String host, int port, int connections) throws IOException {
+    super();
+    if (connections < 1) {
+      throw new IllegalArgumentException("A pool needs at least one connection.");
+    }
+    this.host = host;
+    this.port = port;
+    this.connections = new AtomicReferenceArray<Connection>(connections);
+    this.requestIds = new AtomicInteger();
+    this.binaryProtocol = true;
+    IOException failure = null;
+    for (int i = 0; i < connections; i++) {
+      try {
+        this.connections.set(i, this.open(i));
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (this.openConnections() == 0) {
+      throw failure;
+    }
+    this.maintenance = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "tcp-pool-maintenance");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_MILLIS,
+            MAINTENANCE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Method sends a request as a binary frame on the least busy connection and waits for
+   * its response. Safe to call from any number of threads at once.
+   * @param opcode of the request, BinaryFrame.PUT, GET or DELETE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame
+   * @throws IOException if no connection is open, it fails, or the server doesn't respond
+   */
+  @Override
+  public BinaryFrame sendRequest(byte opcode, String key, String value) throws IOException {
+    BinaryFrame request = this.createRequest(opcode, key, value);
+    this.logger.logMessage("Request sent to server: opcode " + opcode + ", key " + key);
+    BinaryFrame response = this.await(request, this.pick().send(request));
+    this.readResponse(response);
+    return response;
+  }
+
+  /**
+   * Method sends batch frames, spread over the open connections, and waits for them all.
+   * @param requests batch frames
+   * @return results of each request, in the same order
+   * @throws IOException if a connection fails or the server rejects a batch
+   */
+  @Override
+  protected List<BatchResult> sendBatches(List<BinaryFrame> requests) throws IOException {
+    List<CompletableFuture<BinaryFrame>> responses =
+            new ArrayList<CompletableFuture<BinaryFrame>>(requests.size());
+    List<BatchResult> results = new ArrayList<BatchResult>(requests.size());
+    for (BinaryFrame request : requests) {
+      BatchResult result = new BatchResult(); // filled in by the reader, slice by slice
+      results.add(result);
+      responses.add(this.pick().send(request, result));
+    }
+    for (int i = 0; i < requests.size(); i++) {
+      BinaryFrame response = this.await(requests.get(i), responses.get(i));
+      this.readResponse(response);
+      if (!results.get(i).isComplete()) { // an error, reported by add
+        results.get(i).add(response);
+      }
+    }
+    return results;
+  }
+
+  @Override
+  protected int maxBatchRequestLength() {
+    return MAX_BATCH_REQUEST;
+  }
+
+  /**
+   * Method returns a request id unique across the pool's threads.
+   * @return request id
+   */
+  @Override
+  protected int newRequestId() {
+    return this.requestIds.incrementAndGet();
+  }
+
+  /**
+   * Method counts the connections currently open.
+   * @return open connections
+   */
+  public int openConnections() {
+    int open = 0;
+    for (int i = 0; i < this.connections.length(); i++) {
+      Connection connection = this.connections.get(i);
+      if (connection != null && connection.isOpen()) {
+        open++;
+      }
+    }
+    return open;
+  }
+
+  /**
+   * Method stops reconnecting and closes every connection, failing waiting requests.
+   */
+  @Override
+  public void closeAll() {
+    this.closed = true;
+    this.maintenance.shutdownNow();
+    for (int i = 0; i < this.connections.length(); i++) {
+      Connection connection = this.connections.get(i);
+      if (connection != null) {
+        connection.fail(new IOException("Client closed."));
+      }
+    }
+  }
+
+  /**
+   * Helper method to choose the open connection with the fewest requests outstanding.
+   * @return connection
+   * @throws IOException if no connection is open
+   */
+  private Connection pick() throws IOException {
+    Connection best = null;
+    for (int i = 0; i < this.connections.length(); i++) {
+      Connection connection = this.connections.get(i);
+      if (connection != null && connection.isOpen() &&
+              (best == null || connection.pending.size() < best.pending.size())) {
+        best = connection;
+      }
+    }
+    if (best == null) {
+      throw new IOException("No connection to " + this.host + " port " + this.port + " open.");
+    }
+    return best;
+  }
+
+  /**
+   * Helper method to wait for the response to a request.
+   * @param request sent
+   * @param response future completed by the connection's reader
+   * @return response frame
+   * @throws IOException if the connection failed or the server didn't respond in time
+   */
+  private BinaryFrame await(BinaryFrame request, CompletableFuture<BinaryFrame> response)
+          throws IOException {
+    try {
+      return response.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      response.cancel(false);
+      String error = "Server unresponsive, timeout mechanism executed";
+      this.logger.logMessage(error + " for request " + request.getRequestId() + ".");
+      throw new SocketTimeoutException(error);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+              : new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.cancel(false);
+      throw new InterruptedIOException("Interrupted waiting for request " +
+              request.getRequestId() + ".");
+    }
+  }
+
+  /**
+   * Helper method to reopen failed connections and check idle ones, run periodically.
+   */
+  private void maintain() {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < this.connections.length() && !this.closed; i++) {
+      Connection connection = this.connections.get(i);
+      if (connection == null || !connection.isOpen()) {
+        try {
+          Connection reopened = this.open(i);
+          this.connections.set(i, reopened);
+          if (this.closed) { // closed meanwhile
+            reopened.fail(new IOException("Client closed."));
+            return;
+          }
+          this.logger.logMessage("Reconnected to " + this.host + " port " + this.port + ".");
+        } catch (IOException e) { // try again next time
+        }
+      } else if (now - connection.lastReceived > IDLE_MILLIS && !connection.pinging) {
+        connection.ping();
+      }
+    }
+  }
+
+  /**
+   * Helper method to open a connection, switch it to binary frames and start its reader.
+   * @param index of its slot, for naming
+   * @return open connection
+   * @throws IOException if the server can't be reached or won't switch
+   */
+  private Connection open(int index) throws IOException {
+    ClientTCP handshake = new ClientTCP();
+    Socket socket = handshake.initializeSocket(this.host, this.port);
+    try {
+      if (!handshake.negotiateBinaryProtocol()) {
+        throw new IOException("Server did not switch to binary frames.");
+      }
+      socket.setSoTimeout(0); // the reader waits as long as the connection is healthy
+      socket.setTcpNoDelay(true);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    Connection connection = new Connection(socket);
+    Thread reader = new Thread(connection, "tcp-pool-reader-" + index);
+    reader.setDaemon(true);
+    reader.start();
+    return connection;
+  }
+
+  /**
+   * One connection of the pool: requests are written under a lock, and responses are
+   * read by its own thread and matched to the waiting requests by request id.
+   */
+  private final class Connection implements Runnable {
+
+    private final Socket socket;
+    private final DataOutputStream out; // guarded by itself
+    private final DataInputStream in; // read only by the reader thread
+    private final ChunkAssembler chunks; // used only by the reader thread
+    private final Map<Integer, CompletableFuture<BinaryFrame>> pending;
+    private final Map<Integer, BatchResult> batches; // slices received, by request id
+    private volatile boolean open;
+    private volatile long lastReceived;
+    private volatile boolean pinging;
+
+    private Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+              BUFFER));
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+      this.pending = new ConcurrentHashMap<Integer, CompletableFuture<BinaryFrame>>();
+      this.batches = new ConcurrentHashMap<Integer, BatchResult>();
+      this.chunks = new ChunkAssembler();
+      this.open = true;
+      this.lastReceived = System.currentTimeMillis();
+    }
+
+    private boolean isOpen() {
+      return this.open;
+    }
+
+    /**
+     * Method writes a request and returns the future its response will complete.
+     * @param request frame to send
+     * @return future response, failed if the connection fails first
+     * @throws IOException if writing fails
+     */
+    private CompletableFuture<BinaryFrame> send(BinaryFrame request) throws IOException {
+      return this.send(request, null);
+    }
+
+    /**
+     * Method writes a request and returns the future its response will complete.
+     * @param request frame to send
+     * @param batch receiving the slices of a batch response, or null
+     * @return future response, the last slice of a batch response, failed if the
+     *         connection fails first
+     * @throws IOException if writing fails
+     */
+    private CompletableFuture<BinaryFrame> send(BinaryFrame request, BatchResult batch)
+            throws IOException {
+      CompletableFuture<BinaryFrame> response = new CompletableFuture<BinaryFrame>();
+      int id = request.getRequestId();
+      this.pending.put(id, response);
+      if (batch != null) {
+        this.batches.put(id, batch);
+      }
+      // a request abandoned by its caller stops being tracked
+      response.whenComplete((frame, e) -> {
+        this.pending.remove(id, response);
+        this.batches.remove(id, batch);
+      });
+      try {
+        synchronized (this.out) {
+          request.writeChunks(this.out);
+          this.out.flush();
+        }
+      } catch (IOException e) {
+        this.fail(e);
+        throw e;
+      }
+      if (!this.open) { // failed while the request was being added
+        response.completeExceptionally(new IOException("Connection to server lost."));
+      }
+      return response;
+    }
+
+    /**
+     * Method sends a health check, and fails the connection if it isn't answered in time.
+     */
+    private void ping() {
+      this.pinging = true;
+      try {
+        this.send(BinaryFrame.request(frameVersion, BinaryFrame.PING, newRequestId(), "", ""))
+                .orTimeout(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> {
+                  this.pinging = false;
+                  if (e != null) {
+                    this.fail(new IOException("Health check failed.", e));
+                  }
+                });
+      } catch (IOException e) { // already failed
+        this.pinging = false;
+      }
+    }
+
+    /**
+     * Method reads responses and completes the requests waiting for them.
+     */
+    @Override
+    public void run() {
+      try {
+        while (this.open) {
+          BinaryFrame response = this.chunks.add(BinaryFrame.read(this.in));
+          this.lastReceived = System.currentTimeMillis();
+          if (response == null) { // more chunks of a value to come
+            continue;
+          }
+          BatchResult batch = this.batches.get(response.getRequestId());
+          if (batch != null && response.isChecksumValid() &&
+                  response.getStatus() == BinaryFrame.OK) {
+            try {
+              batch.add(response);
+            } catch (IOException e) {
+              CompletableFuture<BinaryFrame> waiting =
+                      this.pending.remove(response.getRequestId());
+              if (waiting != null) {
+                waiting.completeExceptionally(e);
+              }
+              continue;
+            }
+            if (!batch.isComplete()) { // more slices to come
+              continue;
+            }
+          }
+          CompletableFuture<BinaryFrame> waiting = this.pending.remove(response.getRequestId());
+          if (waiting != null) {
+            waiting.complete(response);
+          } else {
+            logger.logMessage("Response to unknown request " + response.getRequestId() +
+                    " received from server.");
+          }
+        }
+      } catch (IOException e) {
+        this.fail(e);
+      }
+    }
+
+    /**
+     * Method closes the connection and fails every request waiting on it.
+     * @param cause of the failure
+     */
+    private void fail(IOException cause) {
+      synchronized (this) {
+        if (!this.open) {
+          return;
+        }
+        this.open = false;
+      }
+      if (!closed) {
+        logger.logMessage("Connection to server lost: " + cause.getMessage());
+      }
+      try {
+        this.socket.close();
+      } catch (IOException e) { // already closed
+      }
+      IOException lost = new IOException("Connection to server lost.", cause);
+      for (CompletableFuture<BinaryFrame> waiting : this.pending.values()) {
+        waiting.completeExceptionally(lost);
+      }
+    }
+  }
+}
@@ -1,20 +1,53 @@
 package client;
 
+import common.BatchResult;
+import common.BinaryFrame;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class to represent a UDP Client for sending messages.
+ * Binary frame requests are sent reliably: responses are matched to requests by request
+ * id, and a request overtaken by three later requests' responses is retransmitted at
+ * once, so a lost datagram costs about a round trip rather than the whole timeout.
+ * Requests nothing overtakes are retransmitted when the retransmission timeout runs out,
+ * as TCP does: the timeout follows the measured round trip time (RFC 6298, ignoring
+ * samples of retransmitted requests), doubles on each expiry and restarts for every
+ * request, and the window of requests in flight halves on each expiry and grows back by
+ * one request per round trip, so a slow server is not flooded with copies. The server answers a
+ * retransmitted mutation from its dedup cache, so it is applied only once.
+ * A request too large for a datagram, or one the server answers with a REDIRECT because
+ * its response is, is sent instead over a TCP connection to the port the server named.
  */
 public class ClientUDP extends AbstractClient {
 
+  private static final int BATCH_WINDOW = 4; // batch requests awaiting responses at once
+  private static final int RECEIVE_BUFFER = 1 << 20; // room for bursts of split responses
+  private static final int TIMEOUT_MILLIS = 15000; // give up on a request after
+  private static final int FAST_RETRANSMIT = 3; // later responses before retransmitting early
+
   private DatagramSocket clientSocket;
   private InetAddress address; // server address
   private int port; // server port
+  private final RttEstimator rtt = new RttEstimator(); // retransmission timeout
+  private long retransmissions; // requests sent again
+  private long transmissions; // datagrams sent, numbering each transmission
+  private int tcpPort; // server's TCP port for large values, 0 until known
+  private ClientTCP tcp; // opened for the first large value
 
   /**
    * Constructor. Initializes a new Datagram socket upon being called.
@@ -23,6 +56,9 @@ public class ClientUDP extends AbstractClient {
   public ClientUDP() throws SocketException {
     super();
     this.initializeSocket();
+    // ids from a random start, so a new client reusing a port isn't answered from the
+    // server's dedup cache
+    this.nextRequestId = ThreadLocalRandom.current().nextInt();
   }
 
   /**
@@ -32,7 +68,8 @@ public class ClientUDP extends AbstractClient {
    */
   public void initializeSocket() throws SocketException {
     this.clientSocket = new DatagramSocket();
-    this.clientSocket.setSoTimeout(15000); // set timeout for 15 seconds
+    this.clientSocket.setSoTimeout(TIMEOUT_MILLIS); // set timeout for 15 seconds
+    this.clientSocket.setReceiveBufferSize(RECEIVE_BUFFER);
   }
 
 
@@ -87,6 +124,318 @@ public class ClientUDP extends AbstractClient {
     return parsedMessage[1];
   }
 
+  /**
+   * Method sends a request as a binary frame datagram and waits for its response,
+   * retransmitting it until it is answered or the 15 second timeout passes.
+   * Responses to earlier requests that arrive late are skipped by request id.
+   * @param opcode of the request, BinaryFrame.PUT, GET or DELETE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame, or null if the server did not respond
+   * @throws IOException
+   */
+  public BinaryFrame sendRequest(byte opcode, String key, String value) throws IOException {
+    BinaryFrame request = this.createRequest(opcode, key, value);
+    if (request.length() > BinaryFrame.MAX_DATAGRAM_LENGTH) {
+      return this.sendOverTcp(opcode, key, value);
+    }
+    this.logger.logMessage("Request sent to server: opcode " + opcode + ", key " + key);
+    try {
+      BinaryFrame response = this.exchange(List.of(request), 1).get(0).response;
+      if (response.getStatus() == BinaryFrame.REDIRECT) {
+        this.tcpPort = Integer.parseInt(response.getValueString());
+        return this.sendOverTcp(opcode, key, value);
+      }
+      return response;
+    } catch (SocketTimeoutException e) { // timeout if no response received
+      String error = "Server unresponsive, timeout mechanism executed";
+      System.out.println(error);
+      this.logger.logMessage(error);
+      return null;
+    }
+  }
+
+  /**
+   * Method sends many binary frame requests, keeping up to window of them in flight,
+   * and collects their responses.
+   * @param requests frames for PUT, GET or DELETE
+   * @param window most requests awaiting responses at once
+   * @return response to each request, in the same order
+   * @throws IOException if a request goes unanswered for the whole timeout
+   */
+  public List<BinaryFrame> sendRequests(List<BinaryFrame> requests, int window)
+          throws IOException {
+    for (BinaryFrame request : requests) {
+      if (BinaryFrame.isBatch(request.getOpcode())) {
+        throw new IllegalArgumentException("Send batches with mget, mput or mdelete.");
+      }
+    }
+    List<BinaryFrame> responses = new ArrayList<BinaryFrame>(requests.size());
+    for (Pending pending : this.exchange(requests, window)) {
+      responses.add(pending.response);
+    }
+    return responses;
+  }
+
+  /**
+   * Method sends batch frames as datagrams, keeping a few in flight, and puts together
+   * responses the server split across several datagrams. A frame too large for a
+   * datagram, holding a single large entry, or one whose results the server redirects
+   * because one is too large for a datagram, is sent over TCP as sendRequest does.
+   * @param requests batch frames, each fitting one datagram unless it holds one entry
+   * @return results of each request, in the same order
+   * @throws IOException if the server stops responding or rejects a batch, or a frame is
+   *     too large for a datagram and the server's TCP port isn't known
+   */
+  @Override
+  protected List<BatchResult> sendBatches(List<BinaryFrame> requests) throws IOException {
+    List<BinaryFrame> datagrams = new ArrayList<BinaryFrame>(requests.size());
+    List<BinaryFrame> oversized = new ArrayList<BinaryFrame>();
+    for (BinaryFrame request : requests) {
+      if (request.length() > BinaryFrame.MAX_DATAGRAM_LENGTH) {
+        oversized.add(request);
+      } else {
+        datagrams.add(request);
+      }
+    }
+    Iterator<BatchResult> large = Collections.emptyIterator();
+    if (!oversized.isEmpty()) {
+      ClientTCP tcp = this.tcp();
+      this.logger.logMessage(oversized.size() + " batch requests sent to server over TCP port " +
+              this.tcpPort + ".");
+      large = tcp.sendBatches(oversized).iterator();
+    }
+    Iterator<Pending> small = Collections.emptyIterator();
+    if (!datagrams.isEmpty()) {
+      small = this.exchange(datagrams, BATCH_WINDOW).iterator();
+    }
+    List<BatchResult> results = new ArrayList<BatchResult>(requests.size());
+    for (BinaryFrame request : requests) {
+      if (request.length() > BinaryFrame.MAX_DATAGRAM_LENGTH) {
+        results.add(large.next());
+        continue;
+      }
+      Pending pending = small.next();
+      if (pending.response.getStatus() == BinaryFrame.REDIRECT) {
+        this.logger.logMessage("Batch request repeated over TCP port " + this.tcpPort + ".");
+        results.add(this.tcp().sendBatches(List.of(request)).get(0));
+      } else {
+        results.add(pending.batch);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Method sets the server's TCP port for requests too large for a datagram, which is
+   * otherwise learned from the server's first REDIRECT.
+   * @param tcpPort of the server
+   */
+  public void setTcpPort(int tcpPort) {
+    this.tcpPort = tcpPort;
+  }
+
+  public long getRetransmissions() {
+    return this.retransmissions;
+  }
+
+  public long getRetransmissionTimeoutMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(this.rtt.timeout());
+  }
+
+  /**
+   * Helper method to send requests reliably with up to window of them in flight. Each
+   * is retransmitted when its timer runs out, or early once three requests sent after it
+   * have been answered, until it is answered or has gone unanswered for the timeout.
+   * @param requests frames to send
+   * @param window most requests awaiting responses at once
+   * @return state of each request, with its response, in the same order
+   * @throws IOException if a request times out or the server rejects a batch
+   */
+  private List<Pending> exchange(List<BinaryFrame> requests, int window) throws IOException {
+    List<Pending> all = new ArrayList<Pending>(requests.size());
+    Map<Integer, Pending> inFlight = new HashMap<Integer, Pending>();
+    byte[] receiveMessage = new byte[BinaryFrame.MAX_DATAGRAM_LENGTH];
+    double congestionWindow = window;
+    int complete = 0;
+    try {
+      while (complete < requests.size()) {
+        while (all.size() < requests.size() && inFlight.size() < (int) congestionWindow) {
+          Pending pending = new Pending(requests.get(all.size()));
+          all.add(pending);
+          inFlight.put(pending.request.getRequestId(), pending);
+          this.transmit(pending, System.nanoTime());
+        }
+        Pending oldest = null; // request whose timer runs out first
+        for (Pending pending : inFlight.values()) {
+          if (oldest == null || pending.timerStart - oldest.timerStart < 0) {
+            oldest = pending;
+          }
+        }
+        long wait = oldest.timerStart + this.rtt.timeout() - System.nanoTime();
+        if (wait > 0) {
+          this.clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+                  wait + TimeUnit.MILLISECONDS.toNanos(1) - 1))); // rounded up
+          DatagramPacket receivePacket = new DatagramPacket(receiveMessage,
+                  receiveMessage.length);
+          try {
+            this.clientSocket.receive(receivePacket);
+            Pending answered = this.receive(receivePacket, inFlight);
+            if (answered != null && answered.isComplete()) {
+              inFlight.remove(answered.request.getRequestId());
+              complete++;
+              congestionWindow = Math.min(window, congestionWindow + 1 / congestionWindow);
+            }
+            continue;
+          } catch (SocketTimeoutException e) { // the timer ran out
+          }
+        }
+        long now = System.nanoTime();
+        List<Pending> expired = new ArrayList<Pending>();
+        for (Pending pending : inFlight.values()) {
+          if (now - pending.timerStart >= this.rtt.timeout()) {
+            if (now - pending.firstSent >= TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS)) {
+              String error = "Server unresponsive, timeout mechanism executed";
+              this.logger.logMessage(error);
+              throw new SocketTimeoutException(error);
+            }
+            expired.add(pending);
+          }
+        }
+        expired.sort((a, b) -> Long.compare(a.sentAs, b.sentAs));
+        for (Pending pending : expired) {
+          this.transmit(pending, now);
+        }
+        this.rtt.backoff();
+        congestionWindow = Math.max(1, congestionWindow / 2);
+        for (Pending pending : inFlight.values()) { // restart the timers, as TCP does
+          pending.timerStart = now;
+        }
+      }
+    } finally {
+      this.clientSocket.setSoTimeout(TIMEOUT_MILLIS);
+    }
+    return all;
+  }
+
+  /**
+   * Helper method to match a received datagram to the request it answers, measure the
+   * round trip, and retransmit requests it overtook.
+   * @param receivePacket datagram received
+   * @param inFlight requests awaiting responses, by request id
+   * @return request answered, or null if the datagram answers none
+   * @throws IOException if the server rejected a batch
+   */
+  private Pending receive(DatagramPacket receivePacket, Map<Integer, Pending> inFlight)
+          throws IOException {
+    BinaryFrame response;
+    try {
+      response = BinaryFrame.decode(ByteBuffer.wrap(receivePacket.getData(), 0,
+              receivePacket.getLength()));
+    } catch (IOException e) {
+      this.logger.logMessage("Packet received from server malformed.");
+      return null;
+    }
+    Pending pending = inFlight.get(response.getRequestId());
+    if (pending == null || !response.isChecksumValid()) { // late, duplicate or damaged
+      return null;
+    }
+    long now = System.nanoTime();
+    boolean first = pending.response == null;
+    this.readResponse(response);
+    if (pending.batch != null && response.getStatus() == BinaryFrame.REDIRECT) {
+      this.tcpPort = Integer.parseInt(response.getValueString()); // results too large
+    } else if (pending.batch != null) {
+      pending.batch.add(response);
+    }
+    pending.response = response;
+    // Karn: a retransmitted request may be answered for any of its copies, so its round
+    // trip is unknown and it proves nothing about requests sent since
+    if (first && pending.attempts == 1) {
+      this.rtt.sample(now - pending.lastSent);
+      // requests last sent before this one should have been answered by now
+      for (Pending earlier : inFlight.values()) {
+        if (earlier.sentAs < pending.sentAs && earlier.response == null &&
+                ++earlier.overtaken == FAST_RETRANSMIT) {
+          this.transmit(earlier, now);
+        }
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Helper method to send, or send again, a request and start its retransmission timer.
+   * @param pending request
+   * @param now System.nanoTime()
+   * @throws IOException
+   */
+  private void transmit(Pending pending, long now) throws IOException {
+    this.clientSocket.send(new DatagramPacket(pending.data, pending.data.length, this.address,
+            this.port));
+    if (pending.attempts > 0) {
+      this.retransmissions++;
+      this.logger.logMessage("Retransmitting request " + pending.request.getRequestId() +
+              ", attempt " + (pending.attempts + 1) + ".");
+    } else {
+      pending.firstSent = now;
+    }
+    pending.attempts++;
+    pending.sentAs = ++this.transmissions;
+    pending.overtaken = 0;
+    pending.lastSent = now;
+    pending.timerStart = now;
+  }
+
+  @Override
+  protected int maxBatchRequestLength() {
+    return BinaryFrame.MAX_DATAGRAM_LENGTH;
+  }
+
+  @Override
+  protected int maxMessageLength() {
+    return BinaryFrame.MAX_DATAGRAM_LENGTH - 11; // the server's receive buffer, less the checksum
+  }
+
+  /**
+   * Helper method to send a request over TCP to the server's port for large values,
+   * connecting first if needed.
+   * @param opcode of the request
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame
+   * @throws IOException if the server's TCP port isn't known or can't be reached
+   */
+  private BinaryFrame sendOverTcp(byte opcode, String key, String value) throws IOException {
+    ClientTCP tcp = this.tcp();
+    this.logger.logMessage("Request sent to server over TCP port " + this.tcpPort +
+            ": opcode " + opcode + ", key " + key);
+    return tcp.sendRequest(opcode, key, value);
+  }
+
+  /**
+   * Helper method to return the binary frame connection to the server's port for large
+   * values, connecting first if needed.
+   * @return connection in binary frame mode
+   * @throws IOException if the server's TCP port isn't known or can't be reached
+   */
+  private ClientTCP tcp() throws IOException {
+    if (this.tcpPort == 0) {
+      throw new IOException("Request too large for a datagram, and no TCP port is known.");
+    }
+    if (this.tcp == null) {
+      ClientTCP tcp = new ClientTCP();
+      tcp.initializeSocket(this.address.getHostAddress(), this.tcpPort);
+      if (!tcp.negotiateBinaryProtocol()) {
+        tcp.closeAll();
+        throw new IOException("Server did not switch to binary frames.");
+      }
+      tcp.useCrc32c(this.frameVersion == BinaryFrame.VERSION_CRC32C);
+      this.tcp = tcp;
+    }
+    return this.tcp;
+  }
+
   /**
    * Method to communicate continuously with server until
    * user shuts it down.
@@ -102,7 +451,7 @@ public class ClientUDP extends AbstractClient {
         flag = false;
       }
       // receive reply
-      byte[] receiveMessage = new byte[1024];
+      byte[] receiveMessage = new byte[BinaryFrame.MAX_DATAGRAM_LENGTH];
       //try {
         String result = this.receiveData(receiveMessage, receiveMessage.length);
         System.out.println("Result-> " + result);
@@ -121,7 +470,7 @@ public class ClientUDP extends AbstractClient {
   public void prePopulateServer() throws IOException {
     String[] requests = new String[] {"put, class, CS6650", "put, semester, Spring2024",
             "put, professor, Saripalli", "put, program, MSCS", "put, university, Northeastern"};
-    byte[] receiveMessage = new byte[1024];
+    byte[] receiveMessage = new byte[BinaryFrame.MAX_DATAGRAM_LENGTH];
     String result = "";
     for (int i=0;i<5;i++) {
       try {
@@ -140,7 +489,7 @@ public class ClientUDP extends AbstractClient {
    * Method to perform 5 put, get, and delete requests automatically.
    */
   public void autoPopulateServer() {
-    byte[] receiveMessage = new byte[1024];
+    byte[] receiveMessage = new byte[BinaryFrame.MAX_DATAGRAM_LENGTH];
     String result = "";
     // Perform 5 Put Requests
     for (String key : this.hashMap.keySet()) {
@@ -171,6 +520,19 @@ public class ClientUDP extends AbstractClient {
     }
   }
 
+  /**
+   * Method to close the socket when done.
+   */
+  public void closeAll() {
+    this.clientSocket.close();
+    if (this.tcp != null) {
+      try {
+        this.tcp.closeAll();
+      } catch (IOException e) { // already closed
+      }
+    }
+  }
+
   /**
    * Method sets the host and port number to send requests to.
    * @param host string representation of host
@@ -217,4 +579,35 @@ public class ClientUDP extends AbstractClient {
     // communicate with server via user input
     client.communicateWithServer();
   }
+
+  /**
+   * State of a request sent reliably.
+   */
+  private static final class Pending {
+
+    private final BinaryFrame request;
+    private final byte[] data; // encoded request, sent again as is
+    private final BatchResult batch; // results put together, for batch requests
+    private BinaryFrame response; // last response frame received
+    private int attempts;
+    private long sentAs; // number of the last transmission
+    private int overtaken; // later requests answered since last sent
+    private long firstSent;
+    private long lastSent;
+    private long timerStart; // retransmitted once the timeout has passed since
+
+    private Pending(BinaryFrame request) {
+      this.request = request;
+      this.data = request.toBytes();
+      this.batch = BinaryFrame.isBatch(request.getOpcode()) ? new BatchResult() : null;
+    }
+
+    private boolean isComplete() {
+      if (this.batch != null && this.response != null &&
+              this.response.getStatus() == BinaryFrame.REDIRECT) {
+        return true;
+      }
+      return this.batch != null ? this.batch.isComplete() : this.response != null;
+    }
+  }
 }
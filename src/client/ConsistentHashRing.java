@@ -0,0 +1,157 @@
+package client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class to map keys to nodes with consistent hashing. Every node is placed on a ring of
+ * 64-bit hashes at many points (virtual nodes), and a key belongs to the first node
+ * point at or after its own hash. Adding a node takes over only the arcs in front of
+ * its points, about 1/N of the keys, and removing one hands its keys to the neighbours,
+ * while every other key stays where it was. Lookups read an immutable copy of the ring,
+ * so they need no lock, and changes rebuild it.
+ * @param <T> type of node
+ */
+public class ConsistentHashRing<T> {
+
+  public static final int DEFAULT_VIRTUAL_NODES = 256; // shards within about 5% of even
+
+  private final int virtualNodes;
+  private final Map<String, T> nodes; // by name, guarded by this
+  private volatile Ring ring; // replaced as a whole, so lookups see points and owners agree
+
+  /**
+   * Constructor.
+   */
+  public ConsistentHashRing() {
+    this(DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * Constructor.
+   * @param virtualNodes points on the ring per node
+   */
+  public ConsistentHashRing(int virtualNodes) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("A node needs at least one virtual node.");
+    }
+    this.virtualNodes = virtualNodes;
+    this.nodes = new LinkedHashMap<String, T>();
+    this.ring = new Ring(new long[0], new Object[0]);
+  }
+
+  /**
+   * Method adds a node, or replaces the node with the same name.
+   * @param name unique name of the node, its points on the ring are derived from it
+   * @param node to add
+   */
+  public synchronized void add(String name, T node) {
+    this.nodes.put(name, node);
+    this.rebuild();
+  }
+
+  /**
+   * Method removes a node.
+   * @param name of the node
+   * @return removed node, or null if there was none
+   */
+  public synchronized T remove(String name) {
+    T node = this.nodes.remove(name);
+    if (node != null) {
+      this.rebuild();
+    }
+    return node;
+  }
+
+  /**
+   * Method finds the node a key belongs to.
+   * @param key to look up
+   * @return node, or null if the ring is empty
+   */
+  @SuppressWarnings("unchecked")
+  public T nodeFor(String key) {
+    Ring ring = this.ring;
+    if (ring.points.length == 0) {
+      return null;
+    }
+    int index = Arrays.binarySearch(ring.points, hash(key));
+    if (index < 0) {
+      index = -index - 1; // first point after the key
+    }
+    return (T) ring.owners[index == ring.points.length ? 0 : index]; // wrap around the ring
+  }
+
+  /**
+   * Method returns the number of nodes.
+   * @return node count
+   */
+  public synchronized int size() {
+    return this.nodes.size();
+  }
+
+  /**
+   * Helper method to place every virtual node of every node on a new ring.
+   * Hash collisions between points are resolved by name order, so every client
+   * builds the same ring from the same nodes.
+   */
+  private void rebuild() {
+    int count = this.nodes.size() * this.virtualNodes;
+    long[] hashes = new long[count];
+    String[] names = new String[count];
+    int n = 0;
+    for (String name : this.nodes.keySet()) {
+      for (int i = 0; i < this.virtualNodes; i++) {
+        hashes[n] = hash(name + "#" + i);
+        names[n++] = name;
+      }
+    }
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> hashes[a] != hashes[b] ? Long.compare(hashes[a], hashes[b])
+            : names[a].compareTo(names[b]));
+    long[] points = new long[count];
+    Object[] owners = new Object[count];
+    for (int i = 0; i < count; i++) {
+      points[i] = hashes[order[i]];
+      owners[i] = this.nodes.get(names[order[i]]);
+    }
+    this.ring = new Ring(points, owners);
+  }
+
+  /**
+   * Helper method to hash a string to 64 bits: FNV-1a over its UTF-8 bytes, then the
+   * MurmurHash3 finalizer so similar keys spread over the whole ring.
+   * @param text to hash
+   * @return hash
+   */
+  static long hash(String text) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xFF;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Sorted points of every virtual node and the node owning each one.
+   */
+  private static final class Ring {
+    private final long[] points;
+    private final Object[] owners;
+
+    private Ring(long[] points, Object[] owners) {
+      this.points = points;
+      this.owners = owners;
+    }
+  }
+}
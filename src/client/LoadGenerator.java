@@ -0,0 +1,332 @@
+package client;
+
+import common.BinaryFrame;
+import common.LatencyHistogram;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class to generate load against a TCP or UDP server for capacity planning.
+ * Drives a number of concurrent connections, each through its own ClientTCP or ClientUDP,
+ * with a configurable mix of gets and puts over a uniform or Zipfian key distribution.
+ *
+ * In open-loop mode requests are scheduled at a fixed total rate, and each latency is
+ * measured from the time the request was scheduled to be sent rather than the time it
+ * actually went out, so a stalled server can't hide its queueing delay by slowing the
+ * generator down (coordinated omission). In closed-loop mode each connection sends
+ * its next request as soon as the previous reply arrives, measuring peak throughput.
+ *
+ * Usage: "java client.LoadGenerator [-p tcp|udp] [-H host] [-P port] [-c connections]
+ * [-r requestsPerSecond, 0 for closed loop] [-d seconds] [-g getRatio] [-k keys]
+ * [-z zipfian|uniform] [-v valueSize]".
+ */
+public class LoadGenerator {
+
+  private static final double ZIPF_THETA = 0.99; // skew used by YCSB
+
+  private final String protocol;
+  private final String host;
+  private final int port;
+  private final int connections;
+  private final double rate; // total requests per second, 0 for closed loop
+  private final long durationNanos;
+  private final double getRatio;
+  private final int keys;
+  private final boolean zipfian;
+  private final String value;
+  private final double zetan; // Zipfian normalization constant over all keys
+
+  /**
+   * Constructor.
+   * @param protocol "tcp" or "udp"
+   * @param host of server
+   * @param port of server
+   * @param connections opened at once
+   * @param rate total requests per second, 0 for closed loop
+   * @param seconds to run
+   * @param getRatio share of requests that are gets, the rest are puts
+   * @param keys number of distinct keys
+   * @param zipfian true for a Zipfian key distribution, false for uniform
+   * @param valueSize length of put values
+   */
+  public LoadGenerator(String protocol, String host, int port, int connections, double rate,
+                       int seconds, double getRatio, int keys, boolean zipfian, int valueSize) {
+    this.protocol = protocol;
+    this.host = host;
+    this.port = port;
+    this.connections = connections;
+    this.rate = rate;
+    this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+    this.getRatio = getRatio;
+    this.keys = keys;
+    this.zipfian = zipfian;
+    this.value = "v".repeat(Math.max(1, valueSize));
+    double sum = 0;
+    for (int i = 1; i <= keys; i++) {
+      sum += 1 / Math.pow(i, ZIPF_THETA);
+    }
+    this.zetan = sum;
+  }
+
+  /**
+   * Method fills the store with every key, then runs the load and prints a report.
+   * @throws Exception
+   */
+  public void run() throws Exception {
+    this.prefill();
+    LatencyHistogram[] histograms = new LatencyHistogram[this.connections];
+    long[] errors = new long[this.connections];
+    CountDownLatch ready = new CountDownLatch(this.connections);
+    CountDownLatch done = new CountDownLatch(this.connections);
+    long[] start = new long[1];
+    Object startLock = new Object();
+    for (int c = 0; c < this.connections; c++) {
+      int index = c;
+      histograms[c] = new LatencyHistogram();
+      Thread thread = new Thread(() -> {
+        try {
+          Connection connection = this.connect();
+          ready.countDown();
+          synchronized (startLock) {
+            while (start[0] == 0) {
+              startLock.wait();
+            }
+          }
+          errors[index] = this.drive(connection, histograms[index], start[0], index);
+          connection.close();
+        } catch (Exception e) {
+          System.out.println("Connection " + index + " failed: " + e.getMessage());
+          ready.countDown();
+        } finally {
+          done.countDown();
+        }
+      }, "load-" + c);
+      thread.start();
+    }
+    ready.await();
+    synchronized (startLock) {
+      start[0] = System.nanoTime();
+      startLock.notifyAll();
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start[0];
+    LatencyHistogram total = new LatencyHistogram();
+    long totalErrors = 0;
+    for (int c = 0; c < this.connections; c++) {
+      total.add(histograms[c]);
+      totalErrors += errors[c];
+    }
+    this.report(total, totalErrors, elapsed);
+  }
+
+  /**
+   * Helper method run by each connection's thread until the run is over.
+   * @param connection to send on
+   * @param histogram for this connection's latencies
+   * @param start of the run, in nanos
+   * @param index of the connection, seeds its random choices
+   * @return number of failed requests
+   * @throws IOException
+   */
+  private long drive(Connection connection, LatencyHistogram histogram, long start, int index)
+          throws IOException {
+    SplittableRandom random = new SplittableRandom(index * 31L + 7);
+    long interval = this.rate > 0 ? (long) (1e9 * this.connections / this.rate) : 0;
+    long end = start + this.durationNanos;
+    // stagger connections so an open-loop run doesn't send in bursts
+    long intended = start + (interval > 0 ? random.nextLong(interval) : 0);
+    long errors = 0;
+    while (intended < end) {
+      long now = System.nanoTime();
+      if (now < intended) {
+        LockSupport.parkNanos(intended - now);
+      }
+      long sent = interval > 0 ? intended : System.nanoTime();
+      String key = "key" + this.nextKey(random);
+      String message = random.nextDouble() < this.getRatio ? "get, " + key
+              : "put, " + key + ", " + this.value;
+      String reply = connection.request(message);
+      long received = System.nanoTime();
+      histogram.record(received - sent); // measured from the scheduled send time
+      if (reply.startsWith("Server unresponsive") || reply.equals("Datagram packet malformed.")) {
+        errors++;
+      }
+      intended = interval > 0 ? intended + interval : received;
+    }
+    return errors;
+  }
+
+  /**
+   * Helper method to choose the next key.
+   * @param random source for this connection
+   * @return key number
+   */
+  private int nextKey(SplittableRandom random) {
+    if (!this.zipfian) {
+      return random.nextInt(this.keys);
+    }
+    // Gray et al, "Quickly Generating Billion-Record Synthetic Databases", as used by YCSB
+    double alpha = 1 / (1 - ZIPF_THETA);
+    double zeta2 = 1 + Math.pow(0.5, ZIPF_THETA);
+    double eta = (1 - Math.pow(2.0 / this.keys, 1 - ZIPF_THETA)) / (1 - zeta2 / this.zetan);
+    double u = random.nextDouble();
+    double uz = u * this.zetan;
+    if (uz < 1) {
+      return 0;
+    } else if (uz < zeta2) {
+      return 1;
+    }
+    return Math.min(this.keys - 1, (int) (this.keys * Math.pow(eta * u - eta + 1, alpha)));
+  }
+
+  /**
+   * Helper method to put every key once so gets find a value.
+   * @throws IOException
+   */
+  private void prefill() throws IOException {
+    System.out.println("Loading " + this.keys + " keys.");
+    if (this.protocol.equals("tcp")) {
+      ClientTCP client = new ClientTCP();
+      client.initializeSocket(this.host, this.port);
+      List<String> requests = new ArrayList<String>(this.keys);
+      for (int i = 0; i < this.keys; i++) {
+        requests.add("put, key" + i + ", " + this.value);
+      }
+      client.pipeline(requests, ClientTCP.PIPELINE_WINDOW);
+      client.closeAll();
+    } else {
+      Connection connection = this.connect();
+      for (int i = 0; i < this.keys; i++) {
+        connection.request("put, key" + i + ", " + this.value);
+      }
+      connection.close();
+    }
+  }
+
+  /**
+   * Helper method to open one connection with the configured protocol.
+   * @return connection
+   * @throws IOException
+   */
+  private Connection connect() throws IOException {
+    if (this.protocol.equals("tcp")) {
+      ClientTCP client = new ClientTCP();
+      client.initializeSocket(this.host, this.port);
+      return new Connection() {
+        public String request(String message) throws IOException {
+          client.sendPacket(message);
+          return client.receiveData();
+        }
+
+        public void close() throws IOException {
+          client.closeAll();
+        }
+      };
+    }
+    ClientUDP client = new ClientUDP();
+    client.setHostAndPort(this.host, this.port);
+    byte[] receiveMessage = new byte[BinaryFrame.MAX_DATAGRAM_LENGTH];
+    return new Connection() {
+      public String request(String message) throws IOException {
+        client.sendPacket(message);
+        return client.receiveData(receiveMessage, receiveMessage.length);
+      }
+
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * Helper method to print the results of a run.
+   * @param histogram of every latency, in nanos
+   * @param errors failed requests
+   * @param elapsed duration of the run, in nanos
+   */
+  private void report(LatencyHistogram histogram, long errors, long elapsed) {
+    double seconds = elapsed / 1e9;
+    System.out.println(this.protocol.toUpperCase() + " " + (this.rate > 0
+            ? "open loop at " + (long) this.rate + " requests/s" : "closed loop") + ", " +
+            this.connections + " connections, " + (int) (this.getRatio * 100) + "% gets, " +
+            (this.zipfian ? "Zipfian" : "uniform") + " over " + this.keys + " keys");
+    System.out.printf("requests: %d, errors: %d, throughput: %.0f requests/s%n",
+            histogram.getTotalCount(), errors, histogram.getTotalCount() / seconds);
+    System.out.printf("latency (us): mean %.1f, p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+            histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3,
+            histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+            histogram.getMax() / 1e3);
+  }
+
+  /**
+   * One client connection used by a load thread.
+   */
+  private interface Connection {
+
+    String request(String message) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  /**
+   * Main driver for the load generator.
+   * @param args options, see the class comment
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    String protocol = "tcp";
+    String host = "localhost";
+    int port = 4999;
+    int connections = 4;
+    double rate = 0;
+    int seconds = 10;
+    double getRatio = 0.9;
+    int keys = 10_000;
+    boolean zipfian = true;
+    int valueSize = 16;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String option = args[i + 1];
+      switch (args[i]) {
+        case "-p":
+          protocol = option.toLowerCase();
+          break;
+        case "-H":
+          host = option;
+          break;
+        case "-P":
+          port = Integer.parseInt(option);
+          break;
+        case "-c":
+          connections = Integer.parseInt(option);
+          break;
+        case "-r":
+          rate = Double.parseDouble(option);
+          break;
+        case "-d":
+          seconds = Integer.parseInt(option);
+          break;
+        case "-g":
+          getRatio = Double.parseDouble(option);
+          break;
+        case "-k":
+          keys = Integer.parseInt(option);
+          break;
+        case "-z":
+          zipfian = option.toLowerCase().startsWith("zipf");
+          break;
+        case "-v":
+          valueSize = Integer.parseInt(option);
+          break;
+        default:
+          System.out.println("Unknown option " + args[i] + ".");
+      }
+    }
+    new LoadGenerator(protocol, host, port, connections, rate, seconds, getRatio, keys, zipfian,
+            valueSize).run();
+    System.exit(0);
+  }
+}
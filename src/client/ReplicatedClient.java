@@ -0,0 +1,187 @@
+package client;
+
+import common.BinaryFrame;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class to send requests to a primary server and its read only replicas. Writes always
+ * go to the primary. Reads go to the primary too, or, when reading from replicas, to the
+ * replicas in turn, which spreads read load over every replica at the cost of possibly
+ * reading a value a little older than the primary's, since replication is asynchronous.
+ * A read a replica fails to answer is retried on the primary, and the replica is taken out
+ * of turn and closed; it is reconnected, at most once a second, when its turn comes again.
+ * Like the clients it wraps, a ReplicatedClient is not thread safe, use one per thread.
+ */
+public class ReplicatedClient {
+
+  /**
+   * Where reads are sent.
+   */
+  public enum ReadPreference { PRIMARY, REPLICA }
+
+  private static final long RECONNECT_MILLIS = 1000; // between reconnects to a failed replica
+
+  private final String protocol;
+  private final AbstractClient primary;
+  private final List<String> endpoints; // of the replicas
+  private final List<AbstractClient> replicas; // null while failed
+  private final long[] reconnectAt; // System.currentTimeMillis() to reconnect a failed replica
+  private ReadPreference readPreference;
+  private int nextReplica; // replica for the next read, in turn
+
+  /**
+   * Constructor. Connects to the primary and every replica.
+   * @param protocol "tcp" or "udp"
+   * @param primary endpoint of the primary, "host:port"
+   * @param replicas endpoints of the replicas, "host:port"
+   * @param readPreference where reads are sent
+   * @throws IOException if a server can't be reached
+   */
+  public ReplicatedClient(String protocol, String primary, List<String> replicas,
+                          ReadPreference readPreference) throws IOException {
+    this.protocol = protocol.toLowerCase();
+    this.primary = ShardedClient.connect(this.protocol, primary);
+    this.endpoints = new ArrayList<String>(replicas);
+    this.replicas = new ArrayList<AbstractClient>(replicas.size());
+    for (String replica : replicas) {
+      this.replicas.add(ShardedClient.connect(this.protocol, replica));
+    }
+    this.reconnectAt = new long[replicas.size()];
+    this.readPreference = readPreference;
+  }
+
+  public void setReadPreference(ReadPreference readPreference) {
+    this.readPreference = readPreference;
+  }
+
+  /**
+   * Method sends a request and waits for its response. GET follows the read
+   * preference, PUT and DELETE go to the primary.
+   * @param opcode of the request, BinaryFrame.PUT, GET or DELETE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame, or null if the server did not respond
+   * @throws IOException
+   */
+  public BinaryFrame sendRequest(byte opcode, String key, String value) throws IOException {
+    if (opcode == BinaryFrame.GET) {
+      AbstractClient reader = this.reader();
+      if (reader != this.primary) {
+        try {
+          BinaryFrame response = reader.sendRequest(opcode, key, value);
+          if (response != null) {
+            return response;
+          }
+          this.fail(reader, "no response");
+        } catch (IOException e) { // fall back to the primary
+          this.fail(reader, e.toString());
+        }
+      }
+    }
+    return this.primary.sendRequest(opcode, key, value);
+  }
+
+  /**
+   * Method gets the values of many keys, following the read preference.
+   * @param keys to look up
+   * @return value of each key in the same order, null where a key doesn't exist
+   * @throws IOException if no server answers
+   */
+  public List<String> mget(List<String> keys) throws IOException {
+    AbstractClient reader = this.reader();
+    if (reader != this.primary) {
+      try {
+        return reader.mget(keys);
+      } catch (IOException e) { // fall back to the primary
+        this.fail(reader, e.toString());
+      }
+    }
+    return this.primary.mget(keys);
+  }
+
+  /**
+   * Method puts many key, value pairs on the primary.
+   * @param entries to store
+   * @return number of keys that were new to the store
+   * @throws IOException if the primary can't be reached or rejects the batch
+   */
+  public int mput(Map<String, String> entries) throws IOException {
+    return this.primary.mput(entries);
+  }
+
+  /**
+   * Method removes many keys on the primary.
+   * @param keys to remove
+   * @return number of keys that existed and were removed
+   * @throws IOException if the primary can't be reached or rejects the batch
+   */
+  public int mdelete(List<String> keys) throws IOException {
+    return this.primary.mdelete(keys);
+  }
+
+  /**
+   * Method closes the connection to every server.
+   * @throws IOException
+   */
+  public void closeAll() throws IOException {
+    this.primary.closeAll();
+    for (AbstractClient replica : this.replicas) {
+      if (replica != null) {
+        replica.closeAll();
+      }
+    }
+  }
+
+  /**
+   * Helper method to pick the server for the next read. A failed replica whose turn
+   * comes is reconnected once RECONNECT_MILLIS have passed since it failed, and skipped
+   * otherwise.
+   * @return the next working replica in turn when reading from replicas, otherwise, or
+   *     if every replica has failed, the primary
+   */
+  private AbstractClient reader() {
+    if (this.readPreference == ReadPreference.PRIMARY) {
+      return this.primary;
+    }
+    for (int tried = 0; tried < this.replicas.size(); tried++) {
+      int index = this.nextReplica;
+      this.nextReplica = (this.nextReplica + 1) % this.replicas.size();
+      AbstractClient replica = this.replicas.get(index);
+      if (replica == null && System.currentTimeMillis() >= this.reconnectAt[index]) {
+        try {
+          replica = ShardedClient.connect(this.protocol, this.endpoints.get(index));
+          this.replicas.set(index, replica);
+          this.primary.logger.logMessage("Reconnected to replica " +
+                  this.endpoints.get(index) + ".");
+        } catch (IOException e) {
+          this.reconnectAt[index] = System.currentTimeMillis() + RECONNECT_MILLIS;
+        }
+      }
+      if (replica != null) {
+        return replica;
+      }
+    }
+    return this.primary;
+  }
+
+  /**
+   * Helper method to take a replica that failed a read out of turn and close it, so it
+   * is reconnected later rather than failing every read that comes to it.
+   * @param replica that failed
+   * @param reason of the failure, for the log
+   */
+  private void fail(AbstractClient replica, String reason) {
+    replica.logger.logMessage("Replica read failed, reading from primary: " + reason);
+    int index = this.replicas.indexOf(replica);
+    this.replicas.set(index, null);
+    this.reconnectAt[index] = System.currentTimeMillis() + RECONNECT_MILLIS;
+    try {
+      replica.closeAll();
+    } catch (IOException e) {
+      replica.logger.logMessage("Error closing replica connection: " + e.getMessage());
+    }
+  }
+}
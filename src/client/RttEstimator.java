@@ -0,0 +1,53 @@
+package client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class to estimate the round trip time to a server and derive the retransmission timeout
+ * of requests sent over UDP from it, as RFC 6298: the timeout is the smoothed round trip
+ * time plus four times its variation, kept between 5 milliseconds and 1 second, and is
+ * doubled each time it runs out until a new sample is taken. Callers only sample requests
+ * sent once (Karn's rule), since a retransmitted request may be answered for any copy.
+ * Not thread safe.
+ */
+class RttEstimator {
+
+  static final long INITIAL_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+  static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(5);
+  static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+  private long smoothedRtt; // nanoseconds, 0 until measured
+  private long rttVariation; // nanoseconds
+  private long timeout = INITIAL_TIMEOUT; // nanoseconds
+
+  /**
+   * Method folds a measured round trip time into the estimate.
+   * @param rtt in nanoseconds
+   */
+  void sample(long rtt) {
+    if (this.smoothedRtt == 0) {
+      this.smoothedRtt = rtt;
+      this.rttVariation = rtt / 2;
+    } else {
+      this.rttVariation = (3 * this.rttVariation + Math.abs(this.smoothedRtt - rtt)) / 4;
+      this.smoothedRtt = (7 * this.smoothedRtt + rtt) / 8;
+    }
+    this.timeout = Math.max(MIN_TIMEOUT,
+            Math.min(MAX_TIMEOUT, this.smoothedRtt + 4 * this.rttVariation));
+  }
+
+  /**
+   * Method doubles the timeout after it ran out without a response.
+   */
+  void backoff() {
+    this.timeout = Math.min(MAX_TIMEOUT, 2 * this.timeout);
+  }
+
+  /**
+   * Method returns the retransmission timeout.
+   * @return timeout in nanoseconds
+   */
+  long timeout() {
+    return this.timeout;
+  }
+}
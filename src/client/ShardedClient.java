@@ -0,0 +1,273 @@
+package client;
+
+import common.BinaryFrame;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class to spread keys over several independent servers (shards). Each key is routed with
+ * a ConsistentHashRing to the server owning it, so the servers need no changes and adding
+ * a server moves only about 1/N of the keys to it. Single key requests go to the key's
+ * shard, batches are split by shard and the parts are sent to their shards in parallel.
+ * Keys are routed lower cased, as the servers store them. Moving the data of keys whose
+ * shard changed is left to the caller. Like the clients it wraps, a ShardedClient is not
+ * thread safe, use one per thread.
+ */
+public class ShardedClient {
+
+  private final String protocol; // "tcp" or "udp"
+  private final ConsistentHashRing<String> ring; // endpoint owning each key
+  private final Map<String, AbstractClient> shards; // connected client by endpoint
+  private final ExecutorService executor; // sends the parts of a batch at once
+
+  /**
+   * Constructor. Connects to every endpoint.
+   * @param protocol "tcp" or "udp"
+   * @param endpoints of the servers, each "host:port"
+   * @throws IOException if a server can't be reached
+   */
+  public ShardedClient(String protocol, List<String> endpoints) throws IOException {
+    this.protocol = protocol.toLowerCase();
+    if (!this.protocol.equals("tcp") && !this.protocol.equals("udp")) {
+      throw new IllegalArgumentException("Unknown protocol " + protocol + ".");
+    }
+    this.ring = new ConsistentHashRing<String>();
+    this.shards = new LinkedHashMap<String, AbstractClient>();
+    this.executor = Executors.newCachedThreadPool(task -> {
+      Thread thread = new Thread(task, "shard-batch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (String endpoint : endpoints) {
+      this.addShard(endpoint);
+    }
+  }
+
+  /**
+   * Method connects to another server and gives it its share of the keys.
+   * @param endpoint of the server, "host:port"
+   * @throws IOException if the server can't be reached
+   */
+  public void addShard(String endpoint) throws IOException {
+    if (this.shards.containsKey(endpoint)) {
+      return;
+    }
+    this.shards.put(endpoint, connect(this.protocol, endpoint));
+    this.ring.add(endpoint, endpoint);
+  }
+
+  /**
+   * Method stops using a server, its keys now belong to the remaining ones.
+   * @param endpoint of the server, "host:port"
+   * @throws IOException if closing the connection fails
+   */
+  public void removeShard(String endpoint) throws IOException {
+    AbstractClient client = this.shards.remove(endpoint);
+    if (client != null) {
+      this.ring.remove(endpoint);
+      client.closeAll();
+    }
+  }
+
+  /**
+   * Method returns the endpoint of the server a key belongs to.
+   * @param key to route
+   * @return endpoint, "host:port"
+   */
+  public String shardFor(String key) {
+    String endpoint = this.ring.nodeFor(key.toLowerCase());
+    if (endpoint == null) {
+      throw new IllegalStateException("No servers to send requests to.");
+    }
+    return endpoint;
+  }
+
+  /**
+   * Method sends a request to the server owning its key and waits for the response.
+   * @param opcode of the request, BinaryFrame.PUT, GET or DELETE
+   * @param key of the request
+   * @param value of the request, or null
+   * @return response frame, or null if the server did not respond
+   * @throws IOException
+   */
+  public BinaryFrame sendRequest(byte opcode, String key, String value) throws IOException {
+    return this.shards.get(this.shardFor(key)).sendRequest(opcode, key, value);
+  }
+
+  /**
+   * Method gets the values of many keys, asking every shard involved at once.
+   * @param keys to look up
+   * @return value of each key in the same order, null where a key doesn't exist
+   * @throws IOException if a server can't be reached or rejects the batch
+   */
+  public List<String> mget(List<String> keys) throws IOException {
+    String[] values = new String[keys.size()];
+    Map<String, List<Integer>> parts = this.split(keys);
+    List<List<String>> results = this.sendParts(parts, (client, indexes) ->
+            client.mget(select(keys, indexes)));
+    int part = 0;
+    for (List<Integer> indexes : parts.values()) {
+      List<String> result = results.get(part++);
+      for (int i = 0; i < indexes.size(); i++) {
+        values[indexes.get(i)] = result.get(i);
+      }
+    }
+    return Arrays.asList(values);
+  }
+
+  /**
+   * Method puts many key, value pairs, sending to every shard involved at once.
+   * @param entries to store
+   * @return number of keys that were new to the store
+   * @throws IOException if a server can't be reached or rejects the batch
+   */
+  public int mput(Map<String, String> entries) throws IOException {
+    List<String> keys = new ArrayList<String>(entries.keySet());
+    List<Integer> results = this.sendParts(this.split(keys), (client, indexes) -> {
+      Map<String, String> part = new LinkedHashMap<String, String>();
+      for (int index : indexes) {
+        part.put(keys.get(index), entries.get(keys.get(index)));
+      }
+      return client.mput(part);
+    });
+    return results.stream().mapToInt(Integer::intValue).sum();
+  }
+
+  /**
+   * Method removes many keys, asking every shard involved at once.
+   * @param keys to remove
+   * @return number of keys that existed and were removed
+   * @throws IOException if a server can't be reached or rejects the batch
+   */
+  public int mdelete(List<String> keys) throws IOException {
+    List<Integer> results = this.sendParts(this.split(keys), (client, indexes) ->
+            client.mdelete(select(keys, indexes)));
+    return results.stream().mapToInt(Integer::intValue).sum();
+  }
+
+  /**
+   * Method closes the connection to every server.
+   * @throws IOException
+   */
+  public void closeAll() throws IOException {
+    this.executor.shutdown();
+    for (AbstractClient client : this.shards.values()) {
+      client.closeAll();
+    }
+    this.shards.clear();
+  }
+
+  /**
+   * Batch part sent to one shard.
+   * @param <R> type of result
+   */
+  private interface ShardBatch<R> {
+    R send(AbstractClient client, List<Integer> indexes) throws IOException;
+  }
+
+  /**
+   * Helper method to group the positions of keys by the shard they belong to.
+   * @param keys of a batch
+   * @return positions of the keys, by endpoint
+   */
+  private Map<String, List<Integer>> split(List<String> keys) {
+    Map<String, List<Integer>> parts = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < keys.size(); i++) {
+      parts.computeIfAbsent(this.shardFor(keys.get(i)), e -> new ArrayList<Integer>()).add(i);
+    }
+    return parts;
+  }
+
+  /**
+   * Helper method to send every part of a batch to its shard, in parallel when there
+   * are several, and wait for all of them.
+   * @param parts positions of the keys, by endpoint
+   * @param batch sending one part
+   * @param <R> type of result
+   * @return result of each part, in the order of the parts
+   * @throws IOException from the first part that failed
+   */
+  private <R> List<R> sendParts(Map<String, List<Integer>> parts, ShardBatch<R> batch)
+          throws IOException {
+    List<R> results = new ArrayList<R>(parts.size());
+    if (parts.size() == 1) { // nothing to overlap
+      Map.Entry<String, List<Integer>> part = parts.entrySet().iterator().next();
+      results.add(batch.send(this.shards.get(part.getKey()), part.getValue()));
+      return results;
+    }
+    List<Future<R>> futures = new ArrayList<Future<R>>(parts.size());
+    for (Map.Entry<String, List<Integer>> part : parts.entrySet()) {
+      AbstractClient client = this.shards.get(part.getKey());
+      futures.add(this.executor.submit(() -> batch.send(client, part.getValue())));
+    }
+    IOException failure = null;
+    for (Future<R> future : futures) { // wait for every part, even after a failure
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                  : new IOException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for shards.", e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
+  }
+
+  /**
+   * Helper method to pick the keys at the given positions.
+   * @param keys of a batch
+   * @param indexes positions to pick
+   * @return picked keys
+   */
+  private static List<String> select(List<String> keys, List<Integer> indexes) {
+    List<String> selected = new ArrayList<String>(indexes.size());
+    for (int index : indexes) {
+      selected.add(keys.get(index));
+    }
+    return selected;
+  }
+
+  /**
+   * Helper method to connect a client to an endpoint. TCP connections switch to binary
+   * frames straight away, UDP clients send them from the start.
+   * @param protocol "tcp" or "udp"
+   * @param endpoint "host:port"
+   * @return connected client
+   * @throws IOException if the server can't be reached
+   */
+  static AbstractClient connect(String protocol, String endpoint) throws IOException {
+    int colon = endpoint.lastIndexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("Endpoint " + endpoint + " is not host:port.");
+    }
+    String host = endpoint.substring(0, colon);
+    int port = Integer.parseInt(endpoint.substring(colon + 1));
+    if (protocol.equals("tcp")) {
+      ClientTCP client = new ClientTCP();
+      client.initializeSocket(host, port);
+      if (!client.negotiateBinaryProtocol()) {
+        client.closeAll();
+        throw new IOException("Server " + endpoint + " did not switch to binary frames.");
+      }
+      return client;
+    }
+    ClientUDP client = new ClientUDP();
+    client.setHostAndPort(host, port);
+    return client;
+  }
+}
@@ -0,0 +1,305 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class to write log messages to a file in the background.
+ * Any number of threads add messages to a lock-free ring buffer, and a single writer
+ * thread keeps the file open, timestamps the messages and writes them out in batches,
+ * once enough bytes are pending or the flush interval has passed.
+ * One writer is shared by every logger of the same file.
+ */
+public class AsyncLogWriter {
+
+  /**
+   * How far a batch is pushed once it is written.
+   */
+  public enum Durability {
+    OS, // handed to the operating system, which decides when it reaches disk
+    FSYNC // forced to disk before the next batch is written
+  }
+
+  /**
+   * What a logging thread does when the ring buffer is full.
+   */
+  public enum OverflowPolicy {
+    BLOCK, // wait for the writer to make room
+    DROP // discard the message and count it
+  }
+
+  public static final int DEFAULT_CAPACITY = 8192;
+  public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+  public static final long DEFAULT_FLUSH_MILLIS = 10;
+
+  private static final Map<String, AsyncLogWriter> WRITERS =
+          new ConcurrentHashMap<String, AsyncLogWriter>();
+  private static final DateTimeFormatter SECONDS =
+          DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (AsyncLogWriter writer : WRITERS.values()) {
+        writer.close();
+      }
+    }, "log-writer-shutdown"));
+  }
+
+  private final String logFileName;
+  private final Durability durability;
+  private final OverflowPolicy overflowPolicy;
+  private final int batchBytes;
+  private final long flushNanos;
+  // ring buffer, a slot is free for position p when its sequence is p, full when p + 1
+  private final int mask;
+  private final AtomicReferenceArray<String> messages;
+  private final long[] times;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail; // next position to claim by a logging thread
+  private long head; // next position to read, only used by the writer thread
+  private final AtomicLong dropped;
+  private final Thread writerThread;
+  private volatile boolean running;
+  // writer thread state
+  private FileChannel channel;
+  private final StringBuilder pending;
+  private long pendingSince;
+  private long cachedSecond;
+  private String cachedPrefix;
+
+  /**
+   * Constructor.
+   * @param logFileName file to append to
+   * @param durability of written batches
+   * @param overflowPolicy when the ring buffer is full
+   * @param capacity of the ring buffer, rounded up to a power of two
+   * @param batchBytes pending bytes that trigger a write
+   * @param flushMillis longest time a message waits before being written
+   */
+  public AsyncLogWriter(String logFileName, Durability durability, OverflowPolicy overflowPolicy,
+                        int capacity, int batchBytes, long flushMillis) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.logFileName = logFileName;
+    this.durability = durability;
+    this.overflowPolicy = overflowPolicy;
+    this.batchBytes = batchBytes;
+    this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+    this.mask = size - 1;
+    this.messages = new AtomicReferenceArray<String>(size);
+    this.times = new long[size];
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      this.sequences.set(i, i);
+    }
+    this.tail = new AtomicLong();
+    this.dropped = new AtomicLong();
+    this.pending = new StringBuilder(batchBytes + 256);
+    this.running = true;
+    this.writerThread = new Thread(this::drainLoop, "log-writer-" + logFileName);
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Method returns the writer for a log file, starting one with the default settings
+   * if the file has no writer yet.
+   * @param logFileName file to append to
+   * @return shared writer
+   */
+  public static AsyncLogWriter forFile(String logFileName) {
+    return forFile(logFileName, Durability.OS, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Method returns the writer for a log file, starting one with the given settings
+   * if the file has no writer yet. An existing writer keeps its settings.
+   * @param logFileName file to append to
+   * @param durability of written batches
+   * @param overflowPolicy when the ring buffer is full
+   * @return shared writer
+   */
+  public static AsyncLogWriter forFile(String logFileName, Durability durability,
+                                       OverflowPolicy overflowPolicy) {
+    return WRITERS.computeIfAbsent(logFileName, name -> new AsyncLogWriter(name, durability,
+            overflowPolicy, DEFAULT_CAPACITY, DEFAULT_BATCH_BYTES, DEFAULT_FLUSH_MILLIS));
+  }
+
+  /**
+   * Method queues a message to be timestamped and written to the log.
+   * Never touches the file, so it is cheap to call from request handling threads.
+   * @param message to log
+   */
+  public void log(String message) {
+    long now = System.currentTimeMillis();
+    while (!this.offer(message, now)) {
+      if (this.overflowPolicy == OverflowPolicy.DROP || !this.running) {
+        this.dropped.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(this.writerThread); // buffer full, let the writer catch up
+      LockSupport.parkNanos(50_000);
+    }
+  }
+
+  /**
+   * Method returns how many messages were discarded because the buffer was full.
+   * @return dropped message count
+   */
+  public long getDropped() {
+    return this.dropped.get();
+  }
+
+  /**
+   * Method stops the writer after everything queued so far has been written.
+   */
+  public void close() {
+    this.running = false;
+    LockSupport.unpark(this.writerThread);
+    try {
+      this.writerThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Helper method to claim a slot in the ring buffer and publish a message to it.
+   * @param message to publish
+   * @param time message was logged, in millis
+   * @return false if the buffer is full
+   */
+  private boolean offer(String message, long time) {
+    long position = this.tail.get();
+    while (true) {
+      int index = (int) position & this.mask;
+      long difference = this.sequences.get(index) - position;
+      if (difference == 0) {
+        if (this.tail.compareAndSet(position, position + 1)) {
+          this.times[index] = time;
+          this.messages.lazySet(index, message);
+          this.sequences.set(index, position + 1); // publishes the slot to the writer
+          return true;
+        }
+        position = this.tail.get();
+      } else if (difference < 0) { // writer has not freed this slot yet
+        return false;
+      } else { // another thread claimed it first
+        position = this.tail.get();
+      }
+    }
+  }
+
+  /**
+   * Helper method run by the writer thread until closed.
+   */
+  private void drainLoop() {
+    try {
+      this.channel = FileChannel.open(Paths.get(this.logFileName), StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      System.err.println("Error writing to log file: " + e.getMessage());
+      this.running = false;
+      return;
+    }
+    while (true) {
+      boolean open = this.running; // read before draining so nothing queued is lost
+      int drained = this.drain();
+      if (this.pending.length() > 0 && (this.pending.length() >= this.batchBytes ||
+              System.nanoTime() - this.pendingSince >= this.flushNanos || !open)) {
+        this.writePending();
+      }
+      if (!open && drained == 0) {
+        break;
+      }
+      if (drained == 0) { // idle until the oldest pending message is due
+        long wait = this.pending.length() > 0
+                ? this.flushNanos - (System.nanoTime() - this.pendingSince) : this.flushNanos;
+        LockSupport.parkNanos(this, Math.max(wait, 1000));
+      }
+    }
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      System.err.println("Error writing to log file: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Helper method to move published messages from the ring buffer to the pending batch.
+   * @return number of messages moved
+   */
+  private int drain() {
+    int count = 0;
+    while (this.pending.length() < this.batchBytes) {
+      int index = (int) this.head & this.mask;
+      if (this.sequences.get(index) != this.head + 1) { // nothing published here yet
+        break;
+      }
+      String message = this.messages.get(index);
+      long time = this.times[index];
+      this.messages.lazySet(index, null);
+      this.sequences.set(index, this.head + this.mask + 1); // free the slot for the next lap
+      this.head++;
+      if (this.pending.length() == 0) {
+        this.pendingSince = System.nanoTime();
+      }
+      this.appendTimestamp(time);
+      this.pending.append(": ").append(message).append(System.lineSeparator());
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Helper method to append a timestamp, formatting the date and time once per second.
+   * @param time in millis
+   */
+  private void appendTimestamp(long time) {
+    long second = time / 1000;
+    if (second != this.cachedSecond || this.cachedPrefix == null) {
+      this.cachedSecond = second;
+      this.cachedPrefix = SECONDS.format(Instant.ofEpochSecond(second));
+    }
+    int millis = (int) (time % 1000);
+    this.pending.append(this.cachedPrefix).append('.');
+    if (millis < 100) {
+      this.pending.append('0');
+    }
+    if (millis < 10) {
+      this.pending.append('0');
+    }
+    this.pending.append(millis);
+  }
+
+  /**
+   * Helper method to write the pending batch in one call.
+   */
+  private void writePending() {
+    ByteBuffer batch = ByteBuffer.wrap(this.pending.toString().getBytes(StandardCharsets.UTF_8));
+    this.pending.setLength(0);
+    try {
+      while (batch.hasRemaining()) {
+        this.channel.write(batch);
+      }
+      if (this.durability == Durability.FSYNC) {
+        this.channel.force(false);
+      }
+    } catch (IOException e) {
+      System.err.println("Error writing to log file: " + e.getMessage());
+    }
+  }
+}
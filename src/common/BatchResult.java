@@ -0,0 +1,204 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to represent the per-key results of a batch request, MGET, MPUT, MDELETE or SCAN.
+ * A batch response frame's value holds a slice of the results: int total results,
+ * int index of the first result in the slice, int results in the slice, then for each
+ * a status byte and an int length prefixed UTF-8 value. A response too large for one
+ * datagram over UDP, or for one chunk over TCP, is sent as several frames with the same
+ * request id, each holding the next slice, and put back together here. A slice
+ * received twice, when a request was retransmitted, is only counted once.
+ * Statuses per key: MGET, OK with the value or NOT_FOUND. MPUT, OK if a value was
+ * replaced or NOT_FOUND if the key was new. MDELETE, OK if removed or NOT_FOUND.
+ * SCAN has two results per key found, the key and then its value, followed by the cursor
+ * to resume from, OK if more keys may follow or NOT_FOUND once the scan is complete.
+ */
+public class BatchResult {
+
+  private static final int SLICE_HEADER = 12;
+  private static final int ENTRY_HEADER = 5;
+
+  private byte[] statuses;
+  private String[] values;
+  private boolean[] filled; // results received, when put together from frames
+  private int received;
+
+  /**
+   * Constructor for results put together from response frames.
+   */
+  public BatchResult() {
+  }
+
+  /**
+   * Constructor for results computed by the server.
+   * @param statuses of each key
+   * @param values of each key, null for none
+   */
+  public BatchResult(byte[] statuses, String[] values) {
+    this.statuses = statuses;
+    this.values = values;
+    this.received = statuses.length;
+  }
+
+  /**
+   * Method adds the slice of results held by a response frame.
+   * @param response batch response frame
+   * @throws IOException if the server rejected the batch or the slice is malformed
+   */
+  public void add(BinaryFrame response) throws IOException {
+    if (!response.isChecksumValid()) {
+      throw new IOException("Packet received from server malformed.");
+    }
+    if (response.getStatus() == BinaryFrame.ERROR) {
+      throw new IOException(response.getValueString());
+    }
+    ByteBuffer slice = ByteBuffer.wrap(response.getValue());
+    if (slice.remaining() < SLICE_HEADER) {
+      throw new IOException("Batch response truncated.");
+    }
+    int total = slice.getInt();
+    int first = slice.getInt();
+    int count = slice.getInt();
+    if (this.statuses == null && total >= 0) {
+      this.statuses = new byte[total];
+      this.values = new String[total];
+      this.filled = new boolean[total];
+    }
+    if (this.filled == null || total != this.statuses.length || first < 0 || count < 0 ||
+            first > total - count) { // also rejects adding to results computed by the server
+      throw new IOException("Batch response slice out of range.");
+    }
+    for (int i = first; i < first + count; i++) {
+      if (slice.remaining() < ENTRY_HEADER) {
+        throw new IOException("Batch response truncated.");
+      }
+      this.statuses[i] = slice.get();
+      int length = slice.getInt();
+      if (length < 0 || length > slice.remaining()) {
+        throw new IOException("Batch response truncated.");
+      }
+      this.values[i] = length > 0 || this.statuses[i] == BinaryFrame.OK
+              ? new String(slice.array(), slice.position(), length, StandardCharsets.UTF_8) : null;
+      slice.position(slice.position() + length);
+      if (!this.filled[i]) {
+        this.filled[i] = true;
+        this.received++;
+      }
+    }
+  }
+
+  /**
+   * Method to check if every slice has been added.
+   * @return true once all results are in
+   */
+  public boolean isComplete() {
+    return this.statuses != null && this.received >= this.statuses.length;
+  }
+
+  public int size() {
+    return this.statuses != null ? this.statuses.length : 0;
+  }
+
+  public byte getStatus(int index) {
+    return this.statuses[index];
+  }
+
+  public String getValue(int index) {
+    return this.values[index];
+  }
+
+  /**
+   * Method creates the response frames carrying these results, splitting them so no
+   * frame is longer than the given length. Every frame holds at least one result.
+   * @param request being answered
+   * @param maxLength of each frame, or 0 for a single frame
+   * @return response frames
+   */
+  public List<BinaryFrame> toFrames(BinaryFrame request, int maxLength) {
+    List<BinaryFrame> frames = new ArrayList<BinaryFrame>();
+    int total = this.statuses.length;
+    byte[][] encoded = new byte[total][];
+    for (int i = 0; i < total; i++) {
+      encoded[i] = this.values[i] != null
+              ? this.values[i].getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+    int budget = maxLength > 0 ? maxLength - BinaryFrame.MIN_LENGTH - SLICE_HEADER
+            : Integer.MAX_VALUE;
+    int first = 0;
+    do {
+      int end = first;
+      long length = 0;
+      while (end < total && (end == first ||
+              length + ENTRY_HEADER + encoded[end].length <= budget)) {
+        length += ENTRY_HEADER + encoded[end].length;
+        end++;
+      }
+      ByteBuffer slice = ByteBuffer.allocate((int) (SLICE_HEADER + length));
+      slice.putInt(total).putInt(first).putInt(end - first);
+      for (int i = first; i < end; i++) {
+        slice.put(this.statuses[i]).putInt(encoded[i].length).put(encoded[i]);
+      }
+      frames.add(BinaryFrame.response(request, BinaryFrame.OK, slice.array()));
+      first = end;
+    } while (first < total);
+    return frames;
+  }
+
+  /**
+   * Method packs strings into the key or value field of a batch request:
+   * int count, then each as an int length prefixed UTF-8 string.
+   * @param items to pack
+   * @return packed bytes
+   */
+  public static byte[] pack(List<String> items) {
+    List<byte[]> encoded = new ArrayList<byte[]>(items.size());
+    int length = 4;
+    for (String item : items) {
+      byte[] bytes = item.getBytes(StandardCharsets.UTF_8);
+      encoded.add(bytes);
+      length += 4 + bytes.length;
+    }
+    ByteBuffer packed = ByteBuffer.allocate(length);
+    packed.putInt(encoded.size());
+    for (byte[] bytes : encoded) {
+      packed.putInt(bytes.length).put(bytes);
+    }
+    return packed.array();
+  }
+
+  /**
+   * Method unpacks the key or value field of a batch request.
+   * @param packed bytes
+   * @return strings
+   * @throws IOException if the field is malformed
+   */
+  public static List<String> unpack(byte[] packed) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(packed);
+    if (buffer.remaining() < 4) {
+      throw new IOException("Batch request truncated.");
+    }
+    int count = buffer.getInt();
+    if (count < 0 || count > buffer.remaining() / 4) {
+      throw new IOException("Batch request count out of range.");
+    }
+    List<String> items = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+      if (length < 0 || length > buffer.remaining()) {
+        throw new IOException("Batch request truncated.");
+      }
+      if (!BinaryFrame.isUtf8(packed, buffer.position(), length)) {
+        throw new IOException("Batch item is not valid UTF-8.");
+      }
+      items.add(new String(packed, buffer.position(), length, StandardCharsets.UTF_8));
+      buffer.position(buffer.position() + length);
+    }
+    return items;
+  }
+}
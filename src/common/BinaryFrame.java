@@ -0,0 +1,544 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Class to represent one request or response in the binary wire protocol.
+ * A frame is laid out as: magic byte, version byte, opcode byte, status byte,
+ * int request id, int key length, key bytes, int value length, value bytes,
+ * and a 4 byte checksum of everything before it. All ints are big-endian.
+ * Version 1 frames carry a CRC32, version 2 frames a CRC32C, which current CPUs compute
+ * in hardware. A response is sent in the version of its request, so a server answers
+ * clients of either version.
+ * Keys and values are length prefixed, so they may hold any bytes, including ':' and ','.
+ * Over TCP each frame is preceded by its int length. Over UDP a datagram holds one frame,
+ * and the magic byte, which can't start a text packet, tells the two formats apart.
+ * Over TCP a value longer than CHUNK_LENGTH is sent in chunks: frames with the status
+ * CONTINUED, the first carrying the key, then a frame with the real status, all with the
+ * same request id. A ChunkAssembler puts them back together.
+ */
+public class BinaryFrame {
+
+  public static final byte MAGIC = (byte) 0xB7;
+  public static final byte VERSION = 1; // CRC32 checksum
+  public static final byte VERSION_CRC32C = 2; // CRC32C checksum
+  public static final int HEADER_LENGTH = 12; // magic through key length
+  public static final int MIN_LENGTH = HEADER_LENGTH + 4 + 4; // value length and checksum
+  public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+  public static final int MAX_DATAGRAM_LENGTH = 8192; // largest frame sent in one datagram
+  public static final int CHUNK_LENGTH = 64 * 1024; // value bytes per frame of a chunked value
+  public static final int MAX_VALUE_LENGTH = 512 * 1024 * 1024; // largest chunked value
+
+  // opcodes
+  public static final byte PUT = 1;
+  public static final byte GET = 2;
+  public static final byte DELETE = 3;
+  // batch opcodes, the key and value fields are lists packed by BatchResult.pack
+  public static final byte MGET = 4;
+  public static final byte MPUT = 5;
+  public static final byte MDELETE = 6;
+  // health check, answered OK without touching the store
+  public static final byte PING = 7;
+  // time to live, the value field starts with the TTL in milliseconds and a space
+  public static final byte PUT_TTL = 8; // "<ttlMillis> <value>"
+  public static final byte EXPIRE = 9; // "<ttlMillis>", NOT_FOUND if the key doesn't exist
+  // ordered scan, a batch opcode: the key field is the cursor, empty on the first page, and
+  // the value field packs from, to, prefix and the page limit, empty where unset
+  public static final byte SCAN = 10;
+
+  // statuses, OK on requests unless their value is chunked
+  public static final byte OK = 0;
+  public static final byte NOT_FOUND = 1;
+  public static final byte ERROR = 2;
+  // over UDP, the response doesn't fit in a datagram: the value is the TCP port to use
+  public static final byte REDIRECT = 3;
+  // over TCP, the value continues in the next frame with the same request id
+  public static final byte CONTINUED = 4;
+
+  // text requests sent over a TCP connection to switch it to binary frames
+  public static final String NEGOTIATE_REQUEST = "protocol, binary";
+  public static final String NEGOTIATE_CRC32C_REQUEST = "protocol, binary, crc32c";
+  public static final String NEGOTIATE_RESPONSE = negotiateResponse(VERSION);
+
+  private static final byte[] EMPTY = new byte[0];
+  private static final int INLINE_VALUE_LENGTH = 1024; // values written in one piece with the frame
+  // checksums are reset and reused by each thread rather than created per frame
+  private static final ThreadLocal<CRC32> crc32 = ThreadLocal.withInitial(CRC32::new);
+  private static final ThreadLocal<CRC32C> crc32c = ThreadLocal.withInitial(CRC32C::new);
+
+  private final byte version;
+  private final byte opcode;
+  private final byte status;
+  private final int requestId;
+  private final byte[] key;
+  private final byte[] value;
+  private final int valueOffset; // a chunk's value is a range of the whole value's array
+  private final int valueLength;
+  private final boolean checksumValid;
+
+  /**
+   * Constructor.
+   * @param opcode of the request
+   * @param status of the response, OK for requests
+   * @param requestId to match a response to its request
+   * @param key bytes, may be empty
+   * @param value bytes, may be empty
+   */
+  public BinaryFrame(byte opcode, byte status, int requestId, byte[] key, byte[] value) {
+    this(VERSION, opcode, status, requestId, key, value, true);
+  }
+
+  private BinaryFrame(byte version, byte opcode, byte status, int requestId, byte[] key,
+                      byte[] value, boolean checksumValid) {
+    this(version, opcode, status, requestId, key, value, 0, value != null ? value.length : 0,
+            checksumValid);
+  }
+
+  /**
+   * Constructor for a frame whose value is a range of an array, which is not copied.
+   * @param version VERSION or VERSION_CRC32C
+   * @param opcode of the request
+   * @param status of the response, OK for requests
+   * @param requestId to match a response to its request
+   * @param key bytes, may be empty
+   * @param value array holding the value bytes
+   * @param valueOffset of the value in the array
+   * @param valueLength of the value
+   * @param checksumValid false if the frame arrived damaged
+   */
+  BinaryFrame(byte version, byte opcode, byte status, int requestId, byte[] key, byte[] value,
+              int valueOffset, int valueLength, boolean checksumValid) {
+    this.version = version;
+    this.opcode = opcode;
+    this.status = status;
+    this.requestId = requestId;
+    this.key = key != null ? key : EMPTY;
+    this.value = value != null ? value : EMPTY;
+    this.valueOffset = valueOffset;
+    this.valueLength = valueLength;
+    this.checksumValid = checksumValid;
+  }
+
+  /**
+   * Method creates a request frame with UTF-8 encoded key and value.
+   * @param opcode of the request
+   * @param requestId to match the response
+   * @param key of the request
+   * @param value of the request, or null
+   * @return request frame
+   */
+  public static BinaryFrame request(byte opcode, int requestId, String key, String value) {
+    return request(VERSION, opcode, requestId, key, value);
+  }
+
+  /**
+   * Method creates a request frame of the given version.
+   * @param version VERSION or VERSION_CRC32C, choosing the checksum
+   * @param opcode of the request
+   * @param requestId to match the response
+   * @param key of the request
+   * @param value of the request, or null
+   * @return request frame
+   */
+  public static BinaryFrame request(byte version, byte opcode, int requestId, String key,
+                                    String value) {
+    return new BinaryFrame(version, opcode, OK, requestId, utf8(key), utf8(value), true);
+  }
+
+  /**
+   * Method creates a request frame of the given version from encoded fields.
+   * @param version VERSION or VERSION_CRC32C, choosing the checksum
+   * @param opcode of the request
+   * @param requestId to match the response
+   * @param key bytes of the request
+   * @param value bytes of the request
+   * @return request frame
+   */
+  public static BinaryFrame request(byte version, byte opcode, int requestId, byte[] key,
+                                    byte[] value) {
+    return new BinaryFrame(version, opcode, OK, requestId, key, value, true);
+  }
+
+  /**
+   * Method creates a response frame for a request.
+   * @param request being answered
+   * @param status of the response
+   * @param value of the response, or null
+   * @return response frame
+   */
+  public static BinaryFrame response(BinaryFrame request, byte status, String value) {
+    return new BinaryFrame(request.version, request.opcode, status, request.requestId, EMPTY,
+            utf8(value), true);
+  }
+
+  /**
+   * Method creates a response frame for a request from encoded value bytes.
+   * @param request being answered
+   * @param status of the response
+   * @param value bytes of the response
+   * @return response frame
+   */
+  public static BinaryFrame response(BinaryFrame request, byte status, byte[] value) {
+    return new BinaryFrame(request.version, request.opcode, status, request.requestId, EMPTY,
+            value, true);
+  }
+
+  /**
+   * Method to check if an opcode is one of the batch opcodes.
+   * @param opcode of a frame
+   * @return true for MGET, MPUT, MDELETE and SCAN
+   */
+  public static boolean isBatch(byte opcode) {
+    return opcode == MGET || opcode == MPUT || opcode == MDELETE || opcode == SCAN;
+  }
+
+  /**
+   * Method returns the reply to a text request switching a connection to binary frames.
+   * @param version of the frames that will follow
+   * @return reply text
+   */
+  public static String negotiateResponse(byte version) {
+    return "Protocol switched to binary version " + version + ".";
+  }
+
+  public byte getVersion() {
+    return this.version;
+  }
+
+  public byte getOpcode() {
+    return this.opcode;
+  }
+
+  public byte getStatus() {
+    return this.status;
+  }
+
+  public int getRequestId() {
+    return this.requestId;
+  }
+
+  public byte[] getKey() {
+    return this.key;
+  }
+
+  /**
+   * Method returns the value bytes, copied only if the value is a range of a larger array.
+   * @return value bytes
+   */
+  public byte[] getValue() {
+    if (this.valueOffset == 0 && this.valueLength == this.value.length) {
+      return this.value;
+    }
+    return Arrays.copyOfRange(this.value, this.valueOffset, this.valueOffset + this.valueLength);
+  }
+
+  public int getValueLength() {
+    return this.valueLength;
+  }
+
+  public String getKeyString() {
+    return new String(this.key, StandardCharsets.UTF_8);
+  }
+
+  public String getValueString() {
+    return new String(this.value, this.valueOffset, this.valueLength, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Method to check if the key and value are valid UTF-8, as the store keeps them as
+   * text. Not for batch frames, whose value is packed.
+   * @return true if both decode without replacement characters
+   */
+  public boolean isUtf8() {
+    return isUtf8(this.key, 0, this.key.length) &&
+            isUtf8(this.value, this.valueOffset, this.valueLength);
+  }
+
+  /**
+   * Method checks bytes are well formed UTF-8: no stray or missing continuation bytes,
+   * overlong forms, surrogates or code points past U+10FFFF.
+   * @param bytes to check
+   * @param offset of the first byte
+   * @param length of the bytes
+   * @return true if the bytes decode without replacement characters
+   */
+  public static boolean isUtf8(byte[] bytes, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      int b = bytes[i];
+      if (b >= 0) { // ASCII, the usual case
+        i++;
+        continue;
+      }
+      int continuations;
+      int min;
+      int codePoint;
+      if ((b & 0xE0) == 0xC0) {
+        continuations = 1;
+        min = 0x80;
+        codePoint = b & 0x1F;
+      } else if ((b & 0xF0) == 0xE0) {
+        continuations = 2;
+        min = 0x800;
+        codePoint = b & 0x0F;
+      } else if ((b & 0xF8) == 0xF0) {
+        continuations = 3;
+        min = 0x10000;
+        codePoint = b & 0x07;
+      } else {
+        return false;
+      }
+      if (end - i <= continuations) {
+        return false;
+      }
+      for (int k = 1; k <= continuations; k++) {
+        int c = bytes[i + k];
+        if ((c & 0xC0) != 0x80) {
+          return false;
+        }
+        codePoint = (codePoint << 6) | (c & 0x3F);
+      }
+      if (codePoint < min || codePoint > 0x10FFFF ||
+              (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+        return false;
+      }
+      i += continuations + 1;
+    }
+    return true;
+  }
+
+  /**
+   * Method to check if the frame arrived intact.
+   * @return true if the received checksum matched
+   */
+  public boolean isChecksumValid() {
+    return this.checksumValid;
+  }
+
+  /**
+   * Method returns the encoded length of the frame.
+   * @return length in bytes
+   */
+  public int length() {
+    return MIN_LENGTH + this.key.length + this.valueLength;
+  }
+
+  /**
+   * Method splits the frame into chunks for a TCP stream, if its value is longer than
+   * chunkLength: frames with the status CONTINUED, the first with the key, and a last one
+   * with the frame's status. The chunks share the frame's value array, nothing is copied.
+   * @param chunkLength most value bytes in each chunk
+   * @return frames to send, in order, the frame itself if it needs no chunks
+   */
+  public List<BinaryFrame> toChunks(int chunkLength) {
+    if (this.valueLength <= chunkLength) {
+      return List.of(this);
+    }
+    List<BinaryFrame> chunks = new ArrayList<BinaryFrame>(
+            (this.valueLength + chunkLength - 1) / chunkLength);
+    for (int offset = 0; offset < this.valueLength; offset += chunkLength) {
+      int length = Math.min(chunkLength, this.valueLength - offset);
+      chunks.add(new BinaryFrame(this.version, this.opcode,
+              offset + length < this.valueLength ? CONTINUED : this.status, this.requestId,
+              offset == 0 ? this.key : EMPTY, this.value, this.valueOffset + offset, length,
+              true));
+    }
+    return chunks;
+  }
+
+  /**
+   * Method encodes the frame into a buffer, checksum included.
+   * @param buffer with at least length() bytes remaining
+   */
+  public void encode(ByteBuffer buffer) {
+    int start = buffer.position();
+    this.encodeHeader(buffer);
+    buffer.put(this.value, this.valueOffset, this.valueLength);
+    buffer.putInt(checksum(this.version, buffer, start, buffer.position()));
+  }
+
+  /**
+   * Method encodes the frame into a new array.
+   * @return encoded frame
+   */
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(this.length());
+    this.encode(buffer);
+    return buffer.array();
+  }
+
+  /**
+   * Method writes the frame to a TCP stream, preceded by its length. A long value is
+   * written straight from its array rather than first copied into an encoded frame.
+   * @param out stream to the peer
+   * @throws IOException
+   */
+  public void write(DataOutputStream out) throws IOException {
+    if (this.valueLength <= INLINE_VALUE_LENGTH) { // one write for the usual small frame
+      ByteBuffer framed = ByteBuffer.allocate(4 + this.length());
+      framed.putInt(this.length());
+      this.encode(framed);
+      out.write(framed.array());
+      return;
+    }
+    ByteBuffer head = ByteBuffer.allocate(4 + HEADER_LENGTH + this.key.length + 4);
+    head.putInt(this.length());
+    this.encodeHeader(head);
+    Checksum checksum = checksumOf(this.version);
+    checksum.update(head.array(), 4, head.position() - 4);
+    checksum.update(this.value, this.valueOffset, this.valueLength);
+    out.write(head.array(), 0, head.position());
+    out.write(this.value, this.valueOffset, this.valueLength);
+    out.write(ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array());
+  }
+
+  /**
+   * Method writes the frame to a TCP stream, in chunks if its value is longer than
+   * CHUNK_LENGTH.
+   * @param out stream to the peer
+   * @throws IOException
+   */
+  public void writeChunks(DataOutputStream out) throws IOException {
+    for (BinaryFrame chunk : this.toChunks(CHUNK_LENGTH)) {
+      chunk.write(out);
+    }
+  }
+
+  /**
+   * Method reads one length prefixed frame from a TCP stream.
+   * @param in stream from the peer
+   * @return decoded frame
+   * @throws IOException if the stream ends or the bytes are not a frame
+   */
+  public static BinaryFrame read(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < MIN_LENGTH || length > MAX_FRAME_LENGTH) {
+      throw new IOException("Invalid binary frame length " + length + ".");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Method to check if bytes start with a binary frame rather than a text packet.
+   * @param data received
+   * @param offset of the first byte
+   * @param length of the data
+   * @return true if the magic byte is present
+   */
+  public static boolean isFrame(byte[] data, int offset, int length) {
+    return length > 0 && data[offset] == MAGIC;
+  }
+
+  /**
+   * Method decodes one frame from the buffer's remaining bytes.
+   * A frame with a bad checksum is still returned, so the request id can be answered.
+   * @param buffer positioned at the frame, limited to its end
+   * @return decoded frame
+   * @throws IOException if the bytes are not a frame of a supported version
+   */
+  public static BinaryFrame decode(ByteBuffer buffer) throws IOException {
+    int start = buffer.position();
+    if (buffer.remaining() < MIN_LENGTH || buffer.get() != MAGIC) {
+      throw new IOException("Not a binary frame.");
+    }
+    byte version = buffer.get();
+    if (version != VERSION && version != VERSION_CRC32C) {
+      throw new IOException("Unsupported frame version " + version + ".");
+    }
+    byte opcode = buffer.get();
+    byte status = buffer.get();
+    int requestId = buffer.getInt();
+    byte[] key = readField(buffer, 8); // value length and checksum follow
+    byte[] value = readField(buffer, 4); // checksum follows
+    boolean valid = buffer.getInt(buffer.position()) ==
+            checksum(version, buffer, start, buffer.position());
+    buffer.position(buffer.position() + 4);
+    return new BinaryFrame(version, opcode, status, requestId, key, value, valid);
+  }
+
+  /**
+   * Helper method to checksum part of a buffer straight from its bytes, without copying
+   * them or moving the buffer's position.
+   * @param version of the frame, choosing CRC32 or CRC32C
+   * @param buffer holding the frame
+   * @param start of the covered bytes
+   * @param end of the covered bytes
+   * @return checksum
+   */
+  private static int checksum(byte version, ByteBuffer buffer, int start, int end) {
+    Checksum checksum = checksumOf(version);
+    if (buffer.hasArray()) {
+      checksum.update(buffer.array(), buffer.arrayOffset() + start, end - start);
+    } else {
+      ByteBuffer covered = buffer.duplicate();
+      covered.limit(end).position(start);
+      checksum.update(covered);
+    }
+    return (int) checksum.getValue();
+  }
+
+  /**
+   * Helper method to get this thread's checksum for a frame version, reset.
+   * @param version of the frame, choosing CRC32 or CRC32C
+   * @return checksum
+   */
+  private static Checksum checksumOf(byte version) {
+    Checksum checksum = version == VERSION_CRC32C ? crc32c.get() : crc32.get();
+    checksum.reset();
+    return checksum;
+  }
+
+  /**
+   * Helper method to encode the frame up to its value bytes: magic through key, and the
+   * value length.
+   * @param buffer with room for the header
+   */
+  private void encodeHeader(ByteBuffer buffer) {
+    buffer.put(MAGIC).put(this.version).put(this.opcode).put(this.status);
+    buffer.putInt(this.requestId);
+    buffer.putInt(this.key.length).put(this.key);
+    buffer.putInt(this.valueLength);
+  }
+
+  /**
+   * Helper method to read a length prefixed field.
+   * @param buffer positioned at the length
+   * @param trailing bytes of the frame that must follow the field
+   * @return field bytes
+   * @throws IOException if the length runs past the frame
+   */
+  private static byte[] readField(ByteBuffer buffer, int trailing) throws IOException {
+    if (buffer.remaining() < 4 + trailing) {
+      throw new IOException("Binary frame truncated.");
+    }
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining() - trailing) {
+      throw new IOException("Binary frame truncated.");
+    }
+    byte[] field = new byte[length];
+    buffer.get(field);
+    return field;
+  }
+
+  /**
+   * Helper method to encode a string as UTF-8.
+   * @param text to encode, or null
+   * @return bytes
+   */
+  private static byte[] utf8(String text) {
+    return text != null ? text.getBytes(StandardCharsets.UTF_8) : EMPTY;
+  }
+}
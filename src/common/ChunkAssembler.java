@@ -0,0 +1,144 @@
+package common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class to put back together values sent over TCP in chunks. A value longer than
+ * BinaryFrame.CHUNK_LENGTH arrives as frames with the status CONTINUED, the first carrying
+ * the key, then a frame with the real status, all with the same request id. Chunks of
+ * different requests may be interleaved. Not thread safe, each connection has its own,
+ * used by the thread reading it.
+ * A server limits the bytes held by all the values still arriving on a connection, so a
+ * client opening many chunked requests at once can't run it out of memory.
+ */
+public class ChunkAssembler {
+
+  private final Map<Integer, Partial> partials; // values still arriving, by request id
+  private final long maxPendingBytes; // most bytes held by values still arriving
+  private long pendingBytes; // bytes allocated for values still arriving
+
+  /**
+   * Constructor, without a limit beyond each value's, for clients reading their server.
+   */
+  public ChunkAssembler() {
+    this(Long.MAX_VALUE);
+  }
+
+  /**
+   * Constructor.
+   * @param maxPendingBytes most bytes the values still arriving may hold together
+   */
+  public ChunkAssembler(long maxPendingBytes) {
+    this.partials = new HashMap<Integer, Partial>();
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * Method takes the next frame read from the connection.
+   * @param frame read
+   * @return whole frame, or null if the frame is a chunk of a value still arriving
+   * @throws IOException if a value grows past BinaryFrame.MAX_VALUE_LENGTH, the values
+   *         arriving would hold more than the limit, or a value's chunks don't belong
+   *         together; the connection should be closed
+   */
+  public BinaryFrame add(BinaryFrame frame) throws IOException {
+    Partial partial = this.partials.get(frame.getRequestId());
+    if (partial == null) {
+      if (frame.getStatus() != BinaryFrame.CONTINUED) { // the usual whole frame
+        return frame;
+      }
+      partial = new Partial(frame);
+      this.partials.put(frame.getRequestId(), partial);
+    } else if (frame.getOpcode() != partial.opcode) {
+      this.remove(frame.getRequestId());
+      throw new IOException("Chunk of request " + frame.getRequestId() +
+              " has opcode " + frame.getOpcode() + ", expected " + partial.opcode + ".");
+    }
+    try {
+      this.pendingBytes += partial.append(frame,
+              this.maxPendingBytes - this.pendingBytes + partial.bytes.length);
+    } catch (IOException e) {
+      this.remove(frame.getRequestId());
+      throw e;
+    }
+    if (frame.getStatus() == BinaryFrame.CONTINUED) {
+      return null;
+    }
+    this.remove(frame.getRequestId());
+    return new BinaryFrame(partial.version, partial.opcode, frame.getStatus(),
+            frame.getRequestId(), partial.key, partial.bytes, 0, partial.length, partial.valid);
+  }
+
+  /**
+   * Method returns the number of values still arriving.
+   * @return values with chunks outstanding
+   */
+  public int pending() {
+    return this.partials.size();
+  }
+
+  /**
+   * Helper method to forget a value, no longer counting the bytes it holds.
+   * @param requestId of the value
+   */
+  private void remove(int requestId) {
+    Partial partial = this.partials.remove(requestId);
+    if (partial != null) {
+      this.pendingBytes -= partial.bytes.length;
+    }
+  }
+
+  /**
+   * A value whose chunks are still arriving.
+   */
+  private static final class Partial {
+
+    private final byte version;
+    private final byte opcode;
+    private final byte[] key;
+    private byte[] bytes;
+    private int length;
+    private boolean valid; // every chunk so far arrived intact
+
+    private Partial(BinaryFrame first) {
+      this.version = first.getVersion();
+      this.opcode = first.getOpcode();
+      this.key = first.getKey();
+      this.bytes = new byte[0]; // allocated by the first append, within the limit
+      this.valid = true;
+    }
+
+    /**
+     * Method appends a chunk's value, growing the array by doubling.
+     * @param chunk frame
+     * @param room most bytes the array may grow to
+     * @return bytes the array grew by
+     * @throws IOException if the value grows past BinaryFrame.MAX_VALUE_LENGTH or room
+     */
+    private long append(BinaryFrame chunk, long room) throws IOException {
+      int added = chunk.getValueLength();
+      if (added > BinaryFrame.MAX_VALUE_LENGTH - this.length) {
+        throw new IOException("Chunked value longer than " + BinaryFrame.MAX_VALUE_LENGTH +
+                " bytes.");
+      }
+      int grown = 0;
+      if (this.length + added > this.bytes.length) {
+        if (this.length + added > room) {
+          throw new IOException("Chunked values arriving hold more than the limit of " +
+                  "the connection.");
+        }
+        byte[] larger = new byte[(int) Math.min(Math.min(BinaryFrame.MAX_VALUE_LENGTH, room),
+                Math.max(Math.max(this.length + added, 16), 2L * this.bytes.length))];
+        System.arraycopy(this.bytes, 0, larger, 0, this.length);
+        grown = larger.length - this.bytes.length;
+        this.bytes = larger;
+      }
+      System.arraycopy(chunk.getValue(), 0, this.bytes, this.length, added);
+      this.length += added;
+      this.valid &= chunk.isChecksumValid();
+      return grown;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package common;
+
+/**
+ * Class to record latencies in a log-linear histogram, in the style of HdrHistogram.
+ * Values below 128 get a bucket each, and every power of two above that is split into
+ * 64 buckets, so any recorded value is reported within about 1.6% while the whole
+ * range of a long fits in a few thousand counters. Recording is constant time and
+ * allocation free. Instances are not thread safe, record per thread and add them together.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 6; // 64 buckets per power of two
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int LINEAR = SUB_COUNT * 2; // values recorded exactly
+
+  private final long[] counts;
+  private long totalCount;
+  private long max;
+
+  /**
+   * Constructor.
+   */
+  public LatencyHistogram() {
+    this.counts = new long[indexOf(Long.MAX_VALUE) + 1];
+  }
+
+  /**
+   * Method records one value.
+   * @param value to record, negative values count as 0
+   */
+  public void record(long value) {
+    long v = Math.max(0, value);
+    this.counts[indexOf(v)]++;
+    this.totalCount++;
+    if (v > this.max) {
+      this.max = v;
+    }
+  }
+
+  /**
+   * Method adds every value recorded by another histogram to this one.
+   * @param other histogram
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i] += other.counts[i];
+    }
+    this.totalCount += other.totalCount;
+    this.max = Math.max(this.max, other.max);
+  }
+
+  public long getTotalCount() {
+    return this.totalCount;
+  }
+
+  public long getMax() {
+    return this.max;
+  }
+
+  /**
+   * Method returns the value at a percentile.
+   * @param percentile between 0 and 100
+   * @return highest value of the bucket holding the percentile, 0 if nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (this.totalCount == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * this.totalCount));
+    long seen = 0;
+    for (int i = 0; i < this.counts.length; i++) {
+      seen += this.counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), this.max);
+      }
+    }
+    return this.max;
+  }
+
+  /**
+   * Method returns the mean of the recorded values, as bucketed.
+   * @return mean
+   */
+  public double getMean() {
+    if (this.totalCount == 0) {
+      return 0;
+    }
+    double sum = 0;
+    for (int i = 0; i < this.counts.length; i++) {
+      if (this.counts[i] > 0) {
+        sum += (double) this.counts[i] * Math.min(highestValueOf(i), this.max);
+      }
+    }
+    return sum / this.totalCount;
+  }
+
+  /**
+   * Method adds a count to one bucket, for recorders that keep their own buckets.
+   * @param index of the bucket
+   * @param count to add
+   */
+  void addBucket(int index, long count) {
+    this.counts[index] += count;
+    this.totalCount += count;
+  }
+
+  /**
+   * Method raises the highest recorded value, for recorders that track their own.
+   * @param value highest value recorded elsewhere
+   */
+  void addMax(long value) {
+    this.max = Math.max(this.max, value);
+  }
+
+  /**
+   * Helper method to find the bucket of a value.
+   * @param value not negative
+   * @return bucket index
+   */
+  static int indexOf(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // at least 1
+    int sub = (int) (value >>> shift) - SUB_COUNT; // top bits below the leading one
+    return LINEAR + (shift - 1) * SUB_COUNT + sub;
+  }
+
+  /**
+   * Helper method to find the highest value that falls in a bucket.
+   * @param index of the bucket
+   * @return highest value
+   */
+  private static long highestValueOf(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int shift = (index - LINEAR) / SUB_COUNT + 1;
+    long sub = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+    long lowest = sub << shift;
+    long width = 1L << shift;
+    return lowest + width - 1 < 0 ? Long.MAX_VALUE : lowest + width - 1;
+  }
+}
@@ -0,0 +1,67 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class to record latencies from many threads at once without locking, into the same
+ * log-linear buckets as LatencyHistogram. Like a LongAdder, counts are spread over a few
+ * stripes picked by thread id, so threads rarely increment the same counter, and the
+ * stripes are only added together when a snapshot is taken. Memory stays fixed however
+ * many threads record.
+ */
+public class LatencyRecorder {
+
+  private static final int MAX_STRIPES = 64;
+
+  private final AtomicLongArray[] stripes;
+  private final int mask;
+  private final AtomicLong max;
+
+  /**
+   * Constructor. Uses a stripe for every two processors, rounded up to a power of two.
+   */
+  public LatencyRecorder() {
+    int stripes = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+    this.stripes = new AtomicLongArray[Math.min(stripes, MAX_STRIPES)];
+    int buckets = LatencyHistogram.indexOf(Long.MAX_VALUE) + 1;
+    for (int i = 0; i < this.stripes.length; i++) {
+      this.stripes[i] = new AtomicLongArray(buckets);
+    }
+    this.mask = this.stripes.length - 1;
+    this.max = new AtomicLong();
+  }
+
+  /**
+   * Method records one value. Safe to call from any thread.
+   * @param value to record, negative values count as 0
+   */
+  public void record(long value) {
+    long v = Math.max(0, value);
+    int stripe = (int) Thread.currentThread().getId() & this.mask;
+    this.stripes[stripe].getAndIncrement(LatencyHistogram.indexOf(v));
+    if (v > this.max.get()) { // rarely true once warmed up
+      this.max.accumulateAndGet(v, Math::max);
+    }
+  }
+
+  /**
+   * Method copies everything recorded so far into a histogram. Values recorded while
+   * the copy is taken may or may not be included.
+   * @return histogram of the recorded values
+   */
+  public LatencyHistogram snapshot() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (AtomicLongArray stripe : this.stripes) {
+      for (int i = 0; i < stripe.length(); i++) {
+        long count = stripe.get(i);
+        if (count > 0) {
+          histogram.addBucket(i, count);
+        }
+      }
+    }
+    histogram.addMax(this.max.get());
+    return histogram;
+  }
+}
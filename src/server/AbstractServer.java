@@ -1,12 +1,21 @@
 package server;
 
+import common.BatchResult;
+import common.BinaryFrame;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashMap;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.zip.CRC32;
 
 /**
@@ -14,18 +23,50 @@ import java.util.zip.CRC32;
  */
 public abstract class AbstractServer {
 
-  protected HashMap<String, String> hashMap;
+  public static final String READ_ONLY =
+          "Server is a read only replica, send writes to the primary.";
+  public static final String NO_TTL = "Server store does not support time to live.";
+  public static final String NO_SCAN = "Server store does not keep keys in order.";
+  public static final int MAX_SCAN_LIMIT = 10000; // keys per SCAN page
+  public static final long MAX_SCAN_CHARS = 4 * 1024 * 1024; // of keys and values per page
+  public static final int STREAM_CHUNK_LENGTH = BinaryFrame.CHUNK_LENGTH; // of TCP responses
+  public static final long MAX_CHUNKED_BYTES = BinaryFrame.MAX_VALUE_LENGTH; // per connection
+  public static final long MAX_RECEIVE_BUFFER_BYTES = 256L * 1024 * 1024; // grown, all clients
+  private static final int TEXT_SCAN_LIMIT = 100;
+  private static final int ECHO_LENGTH = 1024; // longest value repeated whole in replies and logs
+
+  protected KeyValueStore store; // key, value store shared by every client
   protected ServerLogger logger; // logger for Server
   protected int port; // port opened for connection
   protected InetAddress clientAddress; // client address of received connection/message
+  protected final ServerMetrics metrics; // counters and latencies of everything served
+  protected boolean readOnly; // replicas only serve reads, writes go to the primary
+  private ReplicationPrimary replicationPrimary; // streams mutations to replicas, if enabled
+  private ReplicationReplica replicationReplica; // follows a primary, on replicas
+  private final DedupCache dedup; // responses to recent datagram mutations
+  protected int redirectPort; // TCP port serving this store, for responses too large for UDP
+  // client address of the request being handled by the current thread, when serving many clients
+  private final ThreadLocal<InetAddress> requestAddress = new ThreadLocal<InetAddress>();
+  // bytes of incoming buffers grown past their first size to receive large frames
+  private final AtomicLong receiveBufferBytes = new AtomicLong();
 
 
   /**
    * Abstract Constructor.
    */
   public AbstractServer() {
-    this.hashMap = new HashMap<String,String>();
+    this(new ConcurrentKeyValueStore());
+  }
+
+  /**
+   * Abstract Constructor.
+   * @param store to serve requests from
+   */
+  public AbstractServer(KeyValueStore store) {
+    this.store = store;
     this.logger = new ServerLogger("server.log");
+    this.metrics = new ServerMetrics();
+    this.dedup = new DedupCache();
   }
 
   /**
@@ -37,19 +78,36 @@ public abstract class AbstractServer {
     // one final check to ensure a valid request
     if (!parsedMessage[0].toUpperCase().equals("PUT") &&
             !parsedMessage[0].toUpperCase().equals("GET") &&
-            !parsedMessage[0].toUpperCase().equals("DELETE")) {
+            !parsedMessage[0].toUpperCase().equals("DELETE") &&
+            !parsedMessage[0].toUpperCase().equals("MGET") &&
+            !parsedMessage[0].toUpperCase().equals("MPUT") &&
+            !parsedMessage[0].toUpperCase().equals("MDELETE") &&
+            !parsedMessage[0].toUpperCase().equals("EXPIRE") &&
+            !parsedMessage[0].toUpperCase().equals("SCAN") &&
+            !parsedMessage[0].toUpperCase().equals("STATS")) {
+      this.metrics.malformed();
       this.logger.logMessage("Received an invalid request, " + parsedMessage[0] +
-              ", from Inet Address " + this.clientAddress);
+              ", from Inet Address " + this.currentClient());
       return "Received an invalid request, " + parsedMessage[0] +
-              ", from Inet Address " + this.clientAddress;
+              ", from Inet Address " + this.currentClient();
     }
     // perform the given request
-    if (parsedMessage[0].toUpperCase().equals("PUT")) {
+    if (parsedMessage[0].toUpperCase().equals("PUT") && parsedMessage.length == 4) {
+      return this.put(parsedMessage[1], parsedMessage[2], Long.parseLong(parsedMessage[3]));
+    } else if (parsedMessage[0].toUpperCase().equals("PUT")) {
       return this.put(parsedMessage[1], parsedMessage[2]);
+    } else if (parsedMessage[0].toUpperCase().equals("EXPIRE")) {
+      return this.expire(parsedMessage[1], Long.parseLong(parsedMessage[2]));
+    } else if (parsedMessage[0].toUpperCase().equals("SCAN")) {
+      return this.scanRequest(parsedMessage[1]);
     } else if (parsedMessage[0].toUpperCase().equals("GET")) {
       return this.get(parsedMessage[1]);
     } else if (parsedMessage[0].toUpperCase().equals("DELETE")) {
       return this.delete(parsedMessage[1]);
+    } else if (parsedMessage[0].toUpperCase().startsWith("M")) { // batch of keys
+      return this.batchRequest(parsedMessage);
+    } else if (parsedMessage[0].toUpperCase().equals("STATS")) {
+      return this.stats();
     }
     // to do
     this.logger.logMessage("Unable to perform " + parsedMessage[0] + "request.");
@@ -64,20 +122,116 @@ public abstract class AbstractServer {
    * @return message of whether successful or not
    */
   public String put(String key, String value) {
+    long start = System.nanoTime();
     String key_lc = key.toLowerCase();
     this.logStandardRequestMethod("PUT", key_lc); // log request
-    if (!this.hashMap.containsKey(key_lc)) { // if it doesn't exist already in store
-      this.hashMap.put(key_lc, value);
-      this.logger.logMessage("Response: New value for key, " + key_lc + ", added -> " + value);
-      return ("New value for key, " + key_lc + ", added -> " + value);
+    if (this.readOnly) {
+      this.logger.logMessage("Response: " + READ_ONLY);
+      return READ_ONLY;
+    }
+    String old;
+    try {
+      old = this.store.put(key_lc, value);
+    } catch (UncheckedIOException e) { // store could not persist the put
+      this.metrics.error();
+      this.logger.logMessage("Response: Unable to store key, " + key_lc + ": " + e.getMessage());
+      return "Unable to store key " + key_lc + ".";
+    }
+    String result;
+    if (old == null) { // if it doesn't exist already in store
+      result = "New value for key, " + key_lc + ", added -> " + echo(value);
     } else { // if it does exist
-      String old = this.hashMap.get(key_lc);
-      this.hashMap.replace(key_lc, value);
-      this.logger.logMessage("Response: Old Value, " + old + ", for key, " + key_lc +
-              ", replaced with new value, " + value + ".");
-      return ("Old Value, " + old + ", for key, " + key_lc +
-              ", replaced with new value, " + value + ".");
+      result = "Old Value, " + echo(old) + ", for key, " + key_lc +
+              ", replaced with new value, " + echo(value) + ".";
     }
+    this.logger.logMessage("Response: " + result);
+    this.metrics.record(ServerMetrics.Operation.PUT, start);
+    return result;
+  }
+
+  /**
+   * Method puts key, value pair into store, to be deleted once its time to live passes.
+   * @param key to store
+   * @param value to store
+   * @param ttlMillis time to live, positive
+   * @return message of whether successful or not
+   */
+  public String put(String key, String value, long ttlMillis) {
+    long start = System.nanoTime();
+    String key_lc = key.toLowerCase();
+    this.logStandardRequestMethod("PUT", key_lc);
+    if (this.readOnly) {
+      this.logger.logMessage("Response: " + READ_ONLY);
+      return READ_ONLY;
+    }
+    ExpiringKeyValueStore expiring = this.expiringStore();
+    if (expiring == null) {
+      this.logger.logMessage("Response: " + NO_TTL);
+      return NO_TTL;
+    }
+    String old;
+    try {
+      old = expiring.put(key_lc, value, ttlMillis);
+    } catch (UncheckedIOException e) { // store could not persist the put
+      this.metrics.error();
+      this.logger.logMessage("Response: Unable to store key, " + key_lc + ": " + e.getMessage());
+      return "Unable to store key " + key_lc + ".";
+    }
+    String result = (old == null ? "New value for key, " + key_lc + ", added -> " + echo(value)
+            : "Old Value, " + echo(old) + ", for key, " + key_lc + ", replaced with new value, " +
+            echo(value)) + ", expires in " + ttlMillis + " ms.";
+    this.logger.logMessage("Response: " + result);
+    this.metrics.record(ServerMetrics.Operation.PUT, start);
+    return result;
+  }
+
+  /**
+   * Method sets the time to live of a key, after which it is deleted.
+   * @param key to expire
+   * @param ttlMillis time to live, positive
+   * @return message of whether the key exists or not
+   */
+  public String expire(String key, long ttlMillis) {
+    long start = System.nanoTime();
+    String key_lc = key.toLowerCase();
+    this.logStandardRequestMethod("EXPIRE", key_lc);
+    if (this.readOnly) {
+      this.logger.logMessage("Response: " + READ_ONLY);
+      return READ_ONLY;
+    }
+    ExpiringKeyValueStore expiring = this.expiringStore();
+    if (expiring == null) {
+      this.logger.logMessage("Response: " + NO_TTL);
+      return NO_TTL;
+    }
+    boolean exists;
+    try {
+      exists = expiring.expire(key_lc, ttlMillis);
+    } catch (UncheckedIOException e) { // store could not persist the deadline
+      this.metrics.error();
+      this.logger.logMessage("Response: Unable to expire key, " + key_lc + ": " +
+              e.getMessage());
+      return "Unable to expire key " + key_lc + ".";
+    }
+    String result;
+    if (exists) {
+      this.logger.logMessage("Response: Key, " + key_lc + ", expires in " + ttlMillis + " ms.");
+      result = "Key expires in " + ttlMillis + " ms.";
+    } else {
+      this.logger.logMessage("Response: No key, " + key_lc + ", found in data store.");
+      result = "No key found in data store.";
+    }
+    this.metrics.record(ServerMetrics.Operation.EXPIRE, start);
+    return result;
+  }
+
+  /**
+   * Method puts the key, value pair of a parsed request into store.
+   * @param request parsed put request
+   * @return message of whether successful or not
+   */
+  public String put(ParsedRequest request) {
+    return this.put(request.key(), request.value());
   }
 
   /**
@@ -86,16 +240,29 @@ public abstract class AbstractServer {
    * @return value for key, or error message if key doesn't exist.
    */
   public String get(String key) {
+    long start = System.nanoTime();
     String key_lc = key.toLowerCase();
     this.logStandardRequestMethod("GET", key_lc);
-    if (this.hashMap.containsKey(key_lc)) { // if it does exist
-      String value = this.hashMap.get(key_lc);
-      this.logger.logMessage("Response: " + value + " returned for key " + key_lc + ".");
-      return value;
+    String value = this.store.get(key_lc);
+    String result;
+    if (value != null) { // if it does exist
+      this.logger.logMessage("Response: " + echo(value) + " returned for key " + key_lc + ".");
+      result = value;
     } else { // if it doesn't exist in store
       this.logger.logMessage("Response: No key, " + key_lc + ", found in data store.");
-      return "No key found in data store.";
+      result = "No key found in data store.";
     }
+    this.metrics.record(ServerMetrics.Operation.GET, start);
+    return result;
+  }
+
+  /**
+   * Return value for the key of a parsed request, if exists.
+   * @param request parsed get request
+   * @return value for key, or error message if key doesn't exist.
+   */
+  public String get(ParsedRequest request) {
+    return this.get(request.key());
   }
 
   /**
@@ -105,18 +272,337 @@ public abstract class AbstractServer {
    * @return message that key was deleted or didn't exist.
    */
   public String delete(String key) {
+    long start = System.nanoTime();
     String key_lc = key.toLowerCase();
     this.logStandardRequestMethod("DELETE", key_lc);
-    if (this.hashMap.containsKey(key_lc)) { // if it does exist
-      this.hashMap.remove(key_lc);
+    if (this.readOnly) {
+      this.logger.logMessage("Response: " + READ_ONLY);
+      return READ_ONLY;
+    }
+    String removed;
+    try {
+      removed = this.store.delete(key_lc);
+    } catch (UncheckedIOException e) { // store could not persist the delete
+      this.metrics.error();
+      this.logger.logMessage("Response: Unable to remove key, " + key_lc + ": " + e.getMessage());
+      return "Unable to remove key " + key_lc + ".";
+    }
+    String result;
+    if (removed != null) { // if it does exist
       this.logger.logMessage("Response: Key, " + key_lc + ", successfully removed from store.");
-      return "Key successfully removed from store.";
+      result = "Key successfully removed from store.";
     } else { // if it doesn't exist in store
       this.logger.logMessage("Response: Key, " + key_lc + ", did not exist in store.");
-      return "Key did not exist in store.";
+      result = "Key did not exist in store.";
+    }
+    this.metrics.record(ServerMetrics.Operation.DELETE, start);
+    return result;
+  }
+
+  /**
+   * Method to remove the key of a parsed request from store, if exists.
+   * @param request parsed delete request
+   * @return message that key was deleted or didn't exist.
+   */
+  public String delete(ParsedRequest request) {
+    return this.delete(request.key());
+  }
+
+  /**
+   * Method answers a stats request with a summary of the server's metrics.
+   * @return counters and latency percentiles of each operation
+   */
+  public String stats() {
+    this.logger.logMessage("Received STATS request from Inet Address, " +
+            this.currentClient() + ", on port, " + this.port + ".");
+    String report = this.metrics.report();
+    if (this.replicationPrimary != null) {
+      report += " " + this.replicationPrimary.status() + ".";
+    } else if (this.replicationReplica != null) {
+      report += " " + this.replicationReplica.status() + ".";
+    }
+    ExpiringKeyValueStore expiring = this.expiringStore();
+    if (expiring != null) {
+      report += " Keys with TTL " + expiring.getExpiringCount() + ", expired " +
+              expiring.getExpiredCount() + ".";
+    }
+    BoundedKeyValueStore cache = this.findStore(BoundedKeyValueStore.class);
+    if (cache != null) {
+      report += String.format(Locale.ROOT, " Cache %d of %d bytes, hit ratio %.3f, %d hits, " +
+              "%d misses, %d evictions of %d bytes.", cache.getWeightedBytes(),
+              cache.getMaximumBytes(),
+              cache.getHitRatio(), cache.getHitCount(), cache.getMissCount(),
+              cache.getEvictionCount(), cache.getEvictedBytes());
+    }
+    return report;
+  }
+
+  /**
+   * Method reserves room for an incoming buffer to grow, within MAX_RECEIVE_BUFFER_BYTES
+   * for all connections of this server, so clients announcing large frames can't make it
+   * hold more memory than they actually send.
+   * @param bytes the buffer grows by
+   * @return true if reserved, false if the server is already receiving too much
+   */
+  public boolean reserveReceiveBuffer(long bytes) {
+    if (this.receiveBufferBytes.addAndGet(bytes) > MAX_RECEIVE_BUFFER_BYTES) {
+      this.receiveBufferBytes.addAndGet(-bytes);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Method returns room reserved with reserveReceiveBuffer.
+   * @param bytes the buffer shrank by
+   */
+  public void releaseReceiveBuffer(long bytes) {
+    this.receiveBufferBytes.addAndGet(-bytes);
+  }
+
+  /**
+   * Method stops the calling thread's puts and deletes from waiting for the write-ahead
+   * log, for a thread answering many requests that waits once before sending the replies.
+   * Does nothing if the store isn't durable. Follow with takeDeferred.
+   */
+  public void deferDurability() {
+    DurableKeyValueStore durable = this.findStore(DurableKeyValueStore.class);
+    if (durable != null) {
+      durable.deferDurability();
     }
   }
 
+  /**
+   * Method ends deferring for the calling thread.
+   * @return sequence the replies since deferDurability must wait for, 0 if none
+   */
+  public long takeDeferred() {
+    DurableKeyValueStore durable = this.findStore(DurableKeyValueStore.class);
+    return durable != null ? durable.takeDeferred() : 0;
+  }
+
+  /**
+   * Method waits until the mutations up to a sequence from takeDeferred are durable.
+   * @param sequence from takeDeferred, 0 returns at once
+   * @throws IOException if the write-ahead log failed, the replies must not be sent
+   */
+  public void awaitDurable(long sequence) throws IOException {
+    if (sequence > 0) {
+      this.findStore(DurableKeyValueStore.class).awaitDurable(sequence);
+    }
+  }
+
+  /**
+   * Method runs an action once the mutations up to a sequence from takeDeferred are
+   * durable, without blocking. The action may run on the write-ahead log's thread.
+   * @param sequence from takeDeferred, 0 runs the action at once
+   * @param action given null once durable, or the error if the write-ahead log failed
+   */
+  public void whenDurable(long sequence, Consumer<IOException> action) {
+    if (sequence > 0) {
+      this.findStore(DurableKeyValueStore.class).whenDurable(sequence, action);
+    } else {
+      action.accept(null);
+    }
+  }
+
+  /**
+   * Method sets up replication from system properties, before the server starts serving.
+   * With replication.port set, the server is a primary streaming its mutations to
+   * replicas connecting to that port; its store must come from createStore with the same
+   * property set. With replication.primary set to "host:port", the server is a read only
+   * replica following the primary at that replication address.
+   * @throws IOException if the replication port can't be opened
+   */
+  public void startReplication() throws IOException {
+    String primary = System.getProperty("replication.primary");
+    if (primary != null) {
+      int colon = primary.lastIndexOf(':');
+      this.readOnly = true;
+      this.replicationReplica = new ReplicationReplica(this.store, primary.substring(0, colon),
+              Integer.parseInt(primary.substring(colon + 1)), this.logger);
+      this.replicationReplica.start();
+      return;
+    }
+    String port = System.getProperty("replication.port");
+    if (port != null) {
+      ReplicatedKeyValueStore store = this.findStore(ReplicatedKeyValueStore.class);
+      if (store == null) {
+        throw new IllegalStateException("Store was not created for replication.");
+      }
+      this.replicationPrimary = new ReplicationPrimary(store, Integer.parseInt(port),
+              this.logger);
+      this.replicationPrimary.start();
+    }
+  }
+
+  public ServerMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Method performs a batch request on many keys at once and summarizes the results.
+   * MGET lists each key with its value, MPUT and MDELETE count the keys affected.
+   * @param parsedMessage command followed by keys, or keys and values for MPUT
+   * @return message with the results
+   */
+  public String batchRequest(String[] parsedMessage) {
+    String command = parsedMessage[0].toUpperCase();
+    List<String> fields = Arrays.asList(parsedMessage).subList(1, parsedMessage.length);
+    byte opcode;
+    List<String> keys = fields;
+    List<String> values = null;
+    if (command.equals("MPUT")) {
+      opcode = BinaryFrame.MPUT;
+      String[] keyArray = new String[fields.size() / 2];
+      String[] valueArray = new String[fields.size() / 2];
+      for (int i = 0; i < keyArray.length; i++) {
+        keyArray[i] = fields.get(2 * i);
+        valueArray[i] = fields.get(2 * i + 1);
+      }
+      keys = Arrays.asList(keyArray);
+      values = Arrays.asList(valueArray);
+    } else {
+      opcode = command.equals("MGET") ? BinaryFrame.MGET : BinaryFrame.MDELETE;
+    }
+    if (this.readOnly && opcode != BinaryFrame.MGET) {
+      this.logger.logMessage("Response: " + READ_ONLY);
+      return READ_ONLY;
+    }
+    BatchResult result;
+    try {
+      result = this.batch(opcode, keys, values);
+    } catch (UncheckedIOException e) { // store could not persist part of the batch
+      return "Unable to complete " + command + " request.";
+    }
+    int found = 0;
+    StringBuilder reply = new StringBuilder();
+    for (int i = 0; i < result.size(); i++) {
+      if (result.getStatus(i) == BinaryFrame.OK) {
+        found++;
+      }
+      if (opcode == BinaryFrame.MGET) {
+        reply.append(i > 0 ? "; " : "").append(keys.get(i).toLowerCase()).append(" -> ")
+                .append(result.getStatus(i) == BinaryFrame.OK ? result.getValue(i)
+                        : "No key found in data store.");
+      }
+    }
+    if (opcode == BinaryFrame.MPUT) {
+      return "Stored " + result.size() + " keys, " + (result.size() - found) + " new.";
+    } else if (opcode == BinaryFrame.MDELETE) {
+      return "Removed " + found + " of " + result.size() + " keys from store.";
+    }
+    return reply.toString();
+  }
+
+  /**
+   * Method performs MGET, MPUT or MDELETE on many keys, each key on its own as an
+   * atomic step. Keys are lower cased like single key requests.
+   * @param opcode BinaryFrame.MGET, MPUT or MDELETE
+   * @param keys to look up, store or remove
+   * @param values to store for MPUT, in the order of the keys, otherwise null
+   * @return status and value of each key, see BatchResult
+   * @throws UncheckedIOException if the store could not persist a change
+   */
+  public BatchResult batch(byte opcode, List<String> keys, List<String> values) {
+    long start = System.nanoTime();
+    String method = opcode == BinaryFrame.MGET ? "MGET"
+            : opcode == BinaryFrame.MPUT ? "MPUT" : "MDELETE";
+    this.logger.logMessage("Received " + method + " request from Inet Address, " +
+            this.currentClient() + ", on port, " + this.port + ", for " + keys.size() + " keys.");
+    byte[] statuses = new byte[keys.size()];
+    String[] results = new String[keys.size()];
+    int found = 0;
+    try {
+      for (int i = 0; i < statuses.length; i++) {
+        String key = keys.get(i).toLowerCase();
+        String value;
+        if (opcode == BinaryFrame.MGET) {
+          value = results[i] = this.store.get(key);
+        } else if (opcode == BinaryFrame.MPUT) {
+          value = this.store.put(key, values.get(i));
+        } else {
+          value = this.store.delete(key);
+        }
+        statuses[i] = value != null ? BinaryFrame.OK : BinaryFrame.NOT_FOUND;
+        found += value != null ? 1 : 0;
+      }
+    } catch (UncheckedIOException e) { // counted here, reported by the caller
+      this.metrics.error();
+      throw e;
+    }
+    this.logger.logMessage("Response: " + method + " of " + keys.size() + " keys, " + found +
+            " found.");
+    this.metrics.record(ServerMetrics.Operation.valueOf(method), start);
+    return new BatchResult(statuses, results);
+  }
+
+  /**
+   * Method answers a text scan request with the first keys under a prefix and their
+   * values, in order.
+   * @param prefix keys must start with, empty for every key
+   * @return message listing each key with its value
+   */
+  public String scanRequest(String prefix) {
+    if (this.findStore(IndexedKeyValueStore.class) == null) {
+      this.logger.logMessage("Response: " + NO_SCAN);
+      return NO_SCAN;
+    }
+    BatchResult result = this.scan(null, null, prefix, null, TEXT_SCAN_LIMIT);
+    int keys = (result.size() - 1) / 2;
+    if (keys == 0) {
+      return "No keys found in data store.";
+    }
+    StringBuilder reply = new StringBuilder();
+    for (int i = 0; i < keys; i++) {
+      reply.append(i > 0 ? "; " : "").append(result.getValue(2 * i)).append(" -> ")
+              .append(result.getValue(2 * i + 1));
+    }
+    if (result.getStatus(result.size() - 1) == BinaryFrame.OK) {
+      reply.append("; more keys follow.");
+    }
+    return reply.toString();
+  }
+
+  /**
+   * Method scans keys in order, with their values, a page at a time. Keys are lower cased
+   * like single key requests, and so are the bounds. A page also ends early, with a cursor,
+   * once its keys and values reach MAX_SCAN_CHARS, so large values don't make one page
+   * hold gigabytes; a single value larger than that is a page on its own.
+   * @param from first key, inclusive, or null to start at the first key
+   * @param to key to stop before, or null for no upper bound
+   * @param prefix keys must start with, or null for any
+   * @param cursor returned with the previous page, or null for the first page
+   * @param limit of keys in the page, at most MAX_SCAN_LIMIT
+   * @return each key and then its value, followed by the cursor, see BatchResult
+   * @throws IllegalStateException if the store doesn't keep its keys in order
+   */
+  public BatchResult scan(String from, String to, String prefix, String cursor, int limit) {
+    long start = System.nanoTime();
+    IndexedKeyValueStore indexed = this.findStore(IndexedKeyValueStore.class);
+    if (indexed == null) {
+      throw new IllegalStateException(NO_SCAN);
+    }
+    this.logger.logMessage("Received SCAN request from Inet Address, " + this.currentClient() +
+            ", on port, " + this.port + ", for " + (prefix != null ? "prefix " + prefix
+            : "range " + from + " to " + to) + (cursor != null ? " after " + cursor : "") + ".");
+    List<String> results = new ArrayList<String>();
+    String next = indexed.scan(lowerCase(from), lowerCase(to), lowerCase(prefix),
+            lowerCase(cursor), Math.max(1, Math.min(limit, MAX_SCAN_LIMIT)), MAX_SCAN_CHARS,
+            (key, value) -> {
+              results.add(key);
+              results.add(value);
+            });
+    byte[] statuses = new byte[results.size() + 1];
+    statuses[results.size()] = next != null ? BinaryFrame.OK : BinaryFrame.NOT_FOUND;
+    String[] values = results.toArray(new String[results.size() + 1]);
+    values[results.size()] = next;
+    this.logger.logMessage("Response: SCAN of " + results.size() / 2 + " keys, " +
+            (next != null ? "more after " + next + "." : "complete."));
+    this.metrics.record(ServerMetrics.Operation.SCAN, start);
+    return new BatchResult(statuses, values);
+  }
+
   /**
    * Method to process message from client and check
    * if it is appropriately formatted.
@@ -124,11 +610,48 @@ public abstract class AbstractServer {
    * @return parsed message if valid
    */
   public String[] processMessage(String message) {
+    if (message.trim().equalsIgnoreCase("stats")) { // the only request without a key
+      return new String[]{"STATS"};
+    }
     if (!message.contains(",")) { // if no commas, then it's malformed
       String output = this.logStandardErrorMessage(message);
       return new String[]{"Datagram packet malformed.", output};
     }
     String[] split = message.split(",");
+    String command = split[0].toLowerCase();
+    if (command.equals("mget") || command.equals("mput") || command.equals("mdelete")) {
+      // batches need at least one key, and mput a value for every key
+      if (command.equals("mput") ? split.length < 3 || split.length % 2 == 0 : split.length < 2) {
+        String output = this.logStandardErrorMessage(message);
+        return new String[]{"Datagram packet malformed.", output};
+      }
+      split[0] = split[0].trim().toUpperCase();
+      for (int i = 1; i < split.length; i++) {
+        split[i] = split[i].trim().toLowerCase();
+      }
+      return split;
+    }
+    if (split.length == 4) { // put with a time to live
+      if (!split[0].toLowerCase().equals("put") || parseTtl(split[3]) <= 0) {
+        String output = this.logStandardErrorMessage(message);
+        return new String[]{"Datagram packet malformed.", output};
+      }
+      split[0] = split[0].trim().toUpperCase();
+      split[1] = split[1].trim().toLowerCase();
+      split[2] = split[2].trim().toLowerCase();
+      split[3] = split[3].trim();
+      return split;
+    }
+    if (split.length == 3 && split[0].toLowerCase().equals("expire")) { // key and TTL
+      if (parseTtl(split[2]) <= 0) {
+        String output = this.logStandardErrorMessage(message);
+        return new String[]{"Datagram packet malformed.", output};
+      }
+      split[0] = split[0].trim().toUpperCase();
+      split[1] = split[1].trim().toLowerCase();
+      split[2] = split[2].trim();
+      return split;
+    }
     if (split.length == 3) { // if there are 3 parts to request
       if (!split[0].toLowerCase().equals("put")) { // must be a put
         String output = this.logStandardErrorMessage(message);
@@ -139,8 +662,9 @@ public abstract class AbstractServer {
       split[2] = split[2].trim().toLowerCase();
       return split;
     }
-    if (split.length == 2) { // there are 2 parts, must be get or delete
-      if (!split[0].toLowerCase().equals("get") && !split[0].toLowerCase().equals("delete")) {
+    if (split.length == 2) { // there are 2 parts, must be get, delete or scan
+      if (!split[0].toLowerCase().equals("get") && !split[0].toLowerCase().equals("delete") &&
+              !split[0].toLowerCase().equals("scan")) {
         String output = this.logStandardErrorMessage(message);
         return new String[]{"Datagram packet malformed.", output};
       }
@@ -163,14 +687,528 @@ public abstract class AbstractServer {
       System.out.println("Result of request: " + result);
     } else {
       System.out.println("Received malformed request of length " + parsedPacket[1].length() +
-              "from address " + this.clientAddress + ", port " + this.port);
+              "from address " + this.currentClient() + ", port " + this.port);
       this.logger.logMessage("Received malformed request of length " + parsedPacket[1].length() +
-              "from address " + this.clientAddress + ", port " + this.port);
+              "from address " + this.currentClient() + ", port " + this.port);
       result = "Datagram packet malformed.";
     }
     return result;
   }
 
+  /**
+   * Method to check whether a parsed packet is a request to quit.
+   * @param parsedPacket checksum and request
+   * @return true if the client asked to quit
+   */
+  public boolean isQuitRequest(String[] parsedPacket) {
+    return parsedPacket[1].toLowerCase().equals("q");
+  }
+
+  /**
+   * Method to validate and process a request on behalf of the given client.
+   * Safe to call from several threads at once, the client address is only
+   * tracked for the calling thread.
+   * @param parsedPacket checksum and request
+   * @param address of the client that sent the request
+   * @return result to send back to the client
+   */
+  public String respond(String[] parsedPacket, InetAddress address) {
+    this.requestAddress.set(address);
+    try {
+      String result;
+      if (this.validateMessage(parsedPacket)) { // confirm checksum matches
+        result = this.processRequest(parsedPacket); // confirm request is ok and process
+      } else {
+        result = "Datagram packet malformed.";
+      }
+      this.logger.logMessage(result);
+      return result;
+    } finally {
+      this.requestAddress.remove();
+    }
+  }
+
+  /**
+   * Method to process a request parsed straight from the received bytes on behalf of
+   * the given client. The parser has already validated the checksum and format,
+   * so no Strings are split or case converted on the way to the store.
+   * @param request parsed by a RequestParser
+   * @param address of the client that sent the request
+   * @return result to send back to the client
+   */
+  public String respond(ParsedRequest request, InetAddress address) {
+    this.requestAddress.set(address);
+    try {
+      String result;
+      if (request.getCommand() == ParsedRequest.PUT) {
+        result = this.put(request);
+      } else if (request.getCommand() == ParsedRequest.GET) {
+        result = this.get(request);
+      } else {
+        result = this.delete(request);
+      }
+      System.out.println("Result of request: " + result);
+      this.logger.logMessage(result);
+      return result;
+    } finally {
+      this.requestAddress.remove();
+    }
+  }
+
+  /**
+   * Method to check whether a parsed packet asks to switch the connection to binary frames.
+   * @param parsedPacket checksum and request
+   * @return true if the client asked for the binary protocol
+   */
+  public boolean isNegotiateRequest(String[] parsedPacket) {
+    String request = parsedPacket[1].trim().toLowerCase();
+    return (request.equals(BinaryFrame.NEGOTIATE_REQUEST) ||
+            request.equals(BinaryFrame.NEGOTIATE_CRC32C_REQUEST)) &&
+            this.validateMessage(parsedPacket);
+  }
+
+  /**
+   * Method returns the reply to a request to switch to binary frames, naming the frame
+   * version the client asked for. Frames of either version are accepted afterwards.
+   * @param parsedPacket checksum and negotiate request
+   * @return reply to the client
+   */
+  public String negotiate(String[] parsedPacket) {
+    boolean crc32c = parsedPacket[1].trim().toLowerCase()
+            .equals(BinaryFrame.NEGOTIATE_CRC32C_REQUEST);
+    return BinaryFrame.negotiateResponse(crc32c ? BinaryFrame.VERSION_CRC32C
+            : BinaryFrame.VERSION);
+  }
+
+  /**
+   * Method to process a binary request frame on behalf of the given client.
+   * The opcode selects the operation directly, so no text parsing is needed, and keys
+   * and values may contain any characters. The store keeps them as text, so they must be
+   * valid UTF-8, and frames that aren't are rejected rather than stored with replacement
+   * characters. Keys are lower cased as in text requests, so keys differing only in case
+   * are the same key.
+   * @param request frame from client
+   * @param address of the client that sent the request
+   * @return response frame
+   */
+  public BinaryFrame processFrame(BinaryFrame request, InetAddress address) {
+    this.requestAddress.set(address);
+    try {
+      if (!request.isChecksumValid()) {
+        this.metrics.checksumFailure();
+        this.logger.logMessage("Received binary frame with bad checksum from address " +
+                address + ", port " + this.port);
+        return BinaryFrame.response(request, BinaryFrame.ERROR, "Datagram packet malformed.");
+      }
+      if (BinaryFrame.isBatch(request.getOpcode())) {
+        return this.processBatchFrame(request);
+      }
+      if (request.getOpcode() == BinaryFrame.PING) {
+        return BinaryFrame.response(request, BinaryFrame.OK, "pong");
+      }
+      if (!request.isUtf8()) {
+        this.metrics.malformed();
+        this.logger.logMessage("Received binary frame that isn't valid UTF-8 from address " +
+                address + ", port " + this.port);
+        return BinaryFrame.response(request, BinaryFrame.ERROR,
+                "Keys and values must be valid UTF-8.");
+      }
+      String key = request.getKeyString().toLowerCase();
+      if (request.getOpcode() == BinaryFrame.PUT_TTL ||
+              request.getOpcode() == BinaryFrame.EXPIRE) {
+        return this.processTtlFrame(request, key);
+      }
+      if (this.readOnly && request.getOpcode() != BinaryFrame.GET) {
+        this.logger.logMessage("Received write to read only replica from address " + address);
+        return BinaryFrame.response(request, BinaryFrame.ERROR, READ_ONLY);
+      }
+      switch (request.getOpcode()) {
+        case BinaryFrame.PUT:
+          return BinaryFrame.response(request, BinaryFrame.OK,
+                  this.put(key, request.getValueString()));
+        case BinaryFrame.GET: {
+          long start = System.nanoTime();
+          this.logStandardRequestMethod("GET", key);
+          String value = this.store.get(key);
+          BinaryFrame response;
+          if (value == null) {
+            this.logger.logMessage("Response: No key, " + key + ", found in data store.");
+            response = BinaryFrame.response(request, BinaryFrame.NOT_FOUND,
+                    "No key found in data store.");
+          } else {
+            this.logger.logMessage("Response: " + echo(value) + " returned for key " + key +
+                    ".");
+            response = BinaryFrame.response(request, BinaryFrame.OK, value);
+          }
+          this.metrics.record(ServerMetrics.Operation.GET, start);
+          return response;
+        }
+        case BinaryFrame.DELETE: {
+          long start = System.nanoTime();
+          this.logStandardRequestMethod("DELETE", key);
+          String removed;
+          try {
+            removed = this.store.delete(key);
+          } catch (UncheckedIOException e) { // store could not persist the delete
+            this.metrics.error();
+            this.logger.logMessage("Response: Unable to remove key, " + key + ": " +
+                    e.getMessage());
+            return BinaryFrame.response(request, BinaryFrame.ERROR,
+                    "Unable to remove key " + key + ".");
+          }
+          BinaryFrame response;
+          if (removed == null) {
+            this.logger.logMessage("Response: Key, " + key + ", did not exist in store.");
+            response = BinaryFrame.response(request, BinaryFrame.NOT_FOUND,
+                    "Key did not exist in store.");
+          } else {
+            this.logger.logMessage("Response: Key, " + key +
+                    ", successfully removed from store.");
+            response = BinaryFrame.response(request, BinaryFrame.OK,
+                    "Key successfully removed from store.");
+          }
+          this.metrics.record(ServerMetrics.Operation.DELETE, start);
+          return response;
+        }
+        default:
+          this.metrics.malformed();
+          this.logger.logMessage("Received an invalid request, opcode " + request.getOpcode() +
+                  ", from Inet Address " + address);
+          return BinaryFrame.response(request, BinaryFrame.ERROR,
+                  "Received an invalid request, opcode " + request.getOpcode() + ".");
+      }
+    } finally {
+      this.requestAddress.remove();
+    }
+  }
+
+  /**
+   * Helper method to process a PUT_TTL or EXPIRE frame, whose value starts with the
+   * time to live in milliseconds.
+   * @param request frame from client
+   * @param key lower cased
+   * @return response frame
+   */
+  private BinaryFrame processTtlFrame(BinaryFrame request, String key) {
+    String field = request.getValueString();
+    int space = field.indexOf(' ');
+    long ttlMillis = parseTtl(space < 0 ? field : field.substring(0, space));
+    if (ttlMillis <= 0 || (request.getOpcode() == BinaryFrame.PUT_TTL && space < 0)) {
+      this.metrics.malformed();
+      this.logger.logMessage("Received a TTL request without a valid TTL from Inet Address " +
+              this.currentClient());
+      return BinaryFrame.response(request, BinaryFrame.ERROR, "Datagram packet malformed.");
+    }
+    if (this.readOnly) {
+      this.logger.logMessage("Received write to read only replica from address " +
+              this.currentClient());
+      return BinaryFrame.response(request, BinaryFrame.ERROR, READ_ONLY);
+    }
+    ExpiringKeyValueStore expiring = this.expiringStore();
+    if (expiring == null) {
+      this.logger.logMessage("Response: " + NO_TTL);
+      return BinaryFrame.response(request, BinaryFrame.ERROR, NO_TTL);
+    }
+    if (request.getOpcode() == BinaryFrame.PUT_TTL) {
+      return BinaryFrame.response(request, BinaryFrame.OK,
+              this.put(key, field.substring(space + 1), ttlMillis));
+    }
+    long start = System.nanoTime();
+    this.logStandardRequestMethod("EXPIRE", key);
+    boolean exists;
+    try {
+      exists = expiring.expire(key, ttlMillis);
+    } catch (UncheckedIOException e) { // store could not persist the deadline
+      this.metrics.error();
+      this.logger.logMessage("Response: Unable to expire key, " + key + ": " + e.getMessage());
+      return BinaryFrame.response(request, BinaryFrame.ERROR,
+              "Unable to expire key " + key + ".");
+    }
+    BinaryFrame response;
+    if (exists) {
+      this.logger.logMessage("Response: Key, " + key + ", expires in " + ttlMillis + " ms.");
+      response = BinaryFrame.response(request, BinaryFrame.OK,
+              "Key expires in " + ttlMillis + " ms.");
+    } else {
+      this.logger.logMessage("Response: No key, " + key + ", found in data store.");
+      response = BinaryFrame.response(request, BinaryFrame.NOT_FOUND,
+              "No key found in data store.");
+    }
+    this.metrics.record(ServerMetrics.Operation.EXPIRE, start);
+    return response;
+  }
+
+  /**
+   * Helper method to read a time to live in milliseconds.
+   * @param field holding the TTL
+   * @return TTL, or -1 if the field isn't a positive whole number
+   */
+  private static long parseTtl(String field) {
+    try {
+      long ttlMillis = Long.parseLong(field.trim());
+      return ttlMillis > 0 ? ttlMillis : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Helper method to find the store keeping times to live.
+   * @return store, or null if this server's store has no TTLs
+   */
+  private ExpiringKeyValueStore expiringStore() {
+    return this.findStore(ExpiringKeyValueStore.class);
+  }
+
+  /**
+   * Helper method to find a layer of this server's store, looking through the stores
+   * that wrap another, as built by createStore.
+   * @param type of the layer
+   * @param <T> type of the layer
+   * @return layer, or null if the store has none of that type
+   */
+  private <T extends KeyValueStore> T findStore(Class<T> type) {
+    KeyValueStore store = this.store;
+    while (!type.isInstance(store)) {
+      if (store instanceof ExpiringKeyValueStore) {
+        store = ((ExpiringKeyValueStore) store).getDelegate();
+      } else if (store instanceof IndexedKeyValueStore) {
+        store = ((IndexedKeyValueStore) store).getDelegate();
+      } else if (store instanceof DurableKeyValueStore) {
+        store = ((DurableKeyValueStore) store).getDelegate();
+      } else if (store instanceof ReplicatedKeyValueStore) {
+        store = ((ReplicatedKeyValueStore) store).getDelegate();
+      } else {
+        return null;
+      }
+    }
+    return type.cast(store);
+  }
+
+  /**
+   * Method answers a binary frame received as a datagram with frames that each fit in a
+   * datagram. Clients retransmit requests whose response was lost, so mutations go
+   * through the dedup cache: a copy of one already served gets the same response again
+   * without being applied twice, and a copy of one still being served gets none.
+   * @param request frame from client
+   * @param address of the client
+   * @param port of the client
+   * @return frames to send, in order, none to drop the request
+   */
+  public List<BinaryFrame> respondToDatagram(BinaryFrame request, InetAddress address,
+                                             int port) {
+    boolean mutation = request.getOpcode() != BinaryFrame.GET &&
+            request.getOpcode() != BinaryFrame.MGET && request.getOpcode() != BinaryFrame.PING &&
+            request.getOpcode() != BinaryFrame.SCAN && request.isChecksumValid();
+    if (mutation) {
+      List<BinaryFrame> previous = this.dedup.begin(address, port, request.getRequestId());
+      if (previous != null) {
+        this.metrics.duplicate();
+        this.logger.logMessage("Received retransmitted request " + request.getRequestId() +
+                " from address " + address + ", " + (previous.isEmpty()
+                ? "still being served." : "answering it again."));
+        return previous;
+      }
+    }
+    try {
+      BinaryFrame response = this.processFrame(request, address);
+      this.logger.logMessage("Sending to client: " + this.describeResponse(response));
+      List<BinaryFrame> frames = this.toDatagramFrames(response);
+      if (mutation) {
+        this.dedup.complete(address, port, request.getRequestId(), frames);
+      }
+      return frames;
+    } catch (RuntimeException e) {
+      if (mutation) { // let a retransmission try again
+        this.dedup.abandon(address, port, request.getRequestId());
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Method splits a response frame into frames that each fit in a datagram.
+   * A batch response is split into slices of its results. Any other response too large
+   * for a datagram, or batch result too large for a slice, is replaced by a REDIRECT to
+   * the TCP port serving this store, or by an error if there is none.
+   * @param response frame to send
+   * @return frames to send, in order
+   */
+  public List<BinaryFrame> toDatagramFrames(BinaryFrame response) {
+    if (response.length() <= BinaryFrame.MAX_DATAGRAM_LENGTH) {
+      return List.of(response);
+    }
+    List<BinaryFrame> slices = this.toSlices(response, BinaryFrame.MAX_DATAGRAM_LENGTH);
+    if (slices != null) {
+      boolean fit = true;
+      for (BinaryFrame slice : slices) {
+        fit &= slice.length() <= BinaryFrame.MAX_DATAGRAM_LENGTH;
+      }
+      if (fit) {
+        return slices;
+      }
+    }
+    if (this.redirectPort > 0) {
+      this.logger.logMessage("Response too large for a datagram, redirecting to TCP port " +
+              this.redirectPort + ".");
+      return List.of(BinaryFrame.response(response, BinaryFrame.REDIRECT,
+              Integer.toString(this.redirectPort)));
+    }
+    return List.of(BinaryFrame.response(response, BinaryFrame.ERROR, "Response too large."));
+  }
+
+  /**
+   * Method to process a binary frame received over TCP, returning the frames to write.
+   * A batch response longer than STREAM_CHUNK_LENGTH, such as a long SCAN page, is
+   * streamed as slices of its results, so the client can read the first results while
+   * the rest are written and no frame grows with the response. A long value, alone or
+   * in a slice, is sent in chunks, which share the response's bytes.
+   * @param request whole frame from client, its chunks put back together
+   * @param address of the client that sent the request
+   * @return frames to send, in order
+   */
+  public List<BinaryFrame> respondToStream(BinaryFrame request, InetAddress address) {
+    BinaryFrame response = this.processFrame(request, address);
+    if (response.length() <= STREAM_CHUNK_LENGTH) {
+      return List.of(response);
+    }
+    List<BinaryFrame> slices = this.toSlices(response, STREAM_CHUNK_LENGTH);
+    if (slices == null) {
+      return response.toChunks(BinaryFrame.CHUNK_LENGTH);
+    }
+    List<BinaryFrame> frames = new ArrayList<BinaryFrame>(slices.size());
+    for (BinaryFrame slice : slices) {
+      frames.addAll(slice.toChunks(BinaryFrame.CHUNK_LENGTH));
+    }
+    return frames;
+  }
+
+  /**
+   * Helper method to split a batch response into slices of its results.
+   * @param response frame to split
+   * @param maxLength of each slice frame
+   * @return slice frames, or null if the response isn't a successful batch response
+   */
+  private List<BinaryFrame> toSlices(BinaryFrame response, int maxLength) {
+    if (BinaryFrame.isBatch(response.getOpcode()) && response.getStatus() == BinaryFrame.OK) {
+      BatchResult result = new BatchResult();
+      try {
+        result.add(response);
+        return result.toFrames(response, maxLength);
+      } catch (IOException e) { // not expected, the response was built by this server
+        this.logger.logMessage("Unable to split batch response: " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Method describes a response frame for the log, summarizing batch results by size.
+   * @param response frame being sent
+   * @return log text
+   */
+  public String describeResponse(BinaryFrame response) {
+    if (response.getStatus() == BinaryFrame.CONTINUED) {
+      return "value chunk, " + response.getValueLength() + " bytes.";
+    }
+    if (BinaryFrame.isBatch(response.getOpcode()) && response.getStatus() == BinaryFrame.OK) {
+      return "batch results, " + response.getValueLength() + " bytes.";
+    }
+    if (response.getValueLength() > ECHO_LENGTH) { // the last chunk of a value, or a value
+      return "value, " + response.getValueLength() + " bytes.";
+    }
+    return response.getValueString();
+  }
+
+  /**
+   * Helper method to answer a batch frame with every result in one response frame.
+   * @param request MGET, MPUT, MDELETE or SCAN frame with a valid checksum
+   * @return response frame
+   */
+  private BinaryFrame processBatchFrame(BinaryFrame request) {
+    if (request.getOpcode() == BinaryFrame.SCAN) {
+      return this.processScanFrame(request);
+    }
+    List<String> keys;
+    List<String> values = null;
+    try {
+      keys = BatchResult.unpack(request.getKey());
+      if (request.getOpcode() == BinaryFrame.MPUT) {
+        values = BatchResult.unpack(request.getValue());
+        if (values.size() != keys.size()) {
+          throw new IOException("MPUT has " + keys.size() + " keys but " + values.size() +
+                  " values.");
+        }
+      }
+    } catch (IOException e) {
+      this.metrics.malformed();
+      this.logger.logMessage("Received malformed batch frame from address " +
+              this.currentClient() + ": " + e.getMessage());
+      return BinaryFrame.response(request, BinaryFrame.ERROR, "Datagram packet malformed.");
+    }
+    if (this.readOnly && request.getOpcode() != BinaryFrame.MGET) {
+      return BinaryFrame.response(request, BinaryFrame.ERROR, READ_ONLY);
+    }
+    try {
+      return this.batch(request.getOpcode(), keys, values).toFrames(request, 0).get(0);
+    } catch (UncheckedIOException e) { // store could not persist part of the batch
+      return BinaryFrame.response(request, BinaryFrame.ERROR, "Unable to complete batch.");
+    }
+  }
+
+  /**
+   * Helper method to answer a SCAN frame with a page of keys and values.
+   * @param request SCAN frame with a valid checksum
+   * @return response frame
+   */
+  private BinaryFrame processScanFrame(BinaryFrame request) {
+    if (this.findStore(IndexedKeyValueStore.class) == null) {
+      this.logger.logMessage("Response: " + NO_SCAN);
+      return BinaryFrame.response(request, BinaryFrame.ERROR, NO_SCAN);
+    }
+    List<String> fields;
+    int limit;
+    try {
+      fields = BatchResult.unpack(request.getValue());
+      if (fields.size() != 4) {
+        throw new IOException("SCAN has " + fields.size() + " fields.");
+      }
+      limit = Integer.parseInt(fields.get(3));
+      if (!BinaryFrame.isUtf8(request.getKey(), 0, request.getKey().length)) {
+        throw new IOException("SCAN cursor is not valid UTF-8.");
+      }
+    } catch (IOException | NumberFormatException e) {
+      this.metrics.malformed();
+      this.logger.logMessage("Received malformed scan frame from address " +
+              this.currentClient() + ": " + e.getMessage());
+      return BinaryFrame.response(request, BinaryFrame.ERROR, "Datagram packet malformed.");
+    }
+    String cursor = request.getKeyString();
+    return this.scan(emptyToNull(fields.get(0)), emptyToNull(fields.get(1)),
+            emptyToNull(fields.get(2)), emptyToNull(cursor), limit).toFrames(request, 0).get(0);
+  }
+
+  private static String emptyToNull(String field) {
+    return field.isEmpty() ? null : field;
+  }
+
+  private static String lowerCase(String key) {
+    return key != null ? key.toLowerCase() : null;
+  }
+
+  /**
+   * Helper method to shorten a long value repeated in a reply or the log, so a large value
+   * isn't copied into every message about it.
+   * @param value to repeat
+   * @return value, or its start and length if longer than ECHO_LENGTH
+   */
+  private static String echo(String value) {
+    if (value.length() <= ECHO_LENGTH) {
+      return value;
+    }
+    return value.substring(0, ECHO_LENGTH) + "... (" + value.length() + " characters)";
+  }
+
   /**
    * Method to extract checksum from header and return
    * checksum split from request.
@@ -214,7 +1252,11 @@ public abstract class AbstractServer {
    */
   public boolean validateMessage(String[] packetList) {
     String calculatedChecksum = this.calculateChecksum(packetList[1]);
-    return calculatedChecksum.equals(packetList[0]);
+    if (!calculatedChecksum.equals(packetList[0])) {
+      this.metrics.checksumFailure();
+      return false;
+    }
+    return true;
   }
 
   /**
@@ -235,8 +1277,9 @@ public abstract class AbstractServer {
    * @param message received from client
    */
   private String logStandardErrorMessage(String message) {
+    this.metrics.malformed();
     String note = "Received malformed request of length " + message.length() +
-            " from address " + this.clientAddress + ", port " + this.port;
+            " from address " + this.currentClient() + ", port " + this.port;
     this.logger.logMessage(note);
     return note;
   }
@@ -248,7 +1291,16 @@ public abstract class AbstractServer {
    */
   private void logStandardRequestMethod(String method, String key) {
     this.logger.logMessage("Received " + method + " request from Inet Address, " +
-            this.clientAddress + ", on port, " + this.port + ", for key " + key + ".");
+            this.currentClient() + ", on port, " + this.port + ", for key " + key + ".");
+  }
+
+  /**
+   * Helper method to get the address of the client being served by this thread.
+   * @return request address if set, otherwise the connected client address
+   */
+  protected InetAddress currentClient() {
+    InetAddress address = this.requestAddress.get();
+    return address != null ? address : this.clientAddress;
   }
 
 
@@ -258,7 +1310,7 @@ public abstract class AbstractServer {
 
   /**
    * Method parses the args inputted by the user when establishing the server.server.
-   * If the number of args is anything other than 1, a default port number will be used.
+   * The port is the first arg. If no args are given, a default port number will be used.
    *
    * @param args inputted by user
    * @return port number
@@ -266,7 +1318,7 @@ public abstract class AbstractServer {
   public static int parseArgs(String[] args) {
     int port = 4999;
 
-    if (args.length == 1) {
+    if (args.length >= 1) {
       port = Integer.parseInt(args[0]);
     } else {
       System.out.println("Invalid number of args inputted. Default Port Number 4999 used.");
@@ -275,5 +1327,78 @@ public abstract class AbstractServer {
     return port;
   }
 
+  /**
+   * Method creates the key, value store for a server from system properties.
+   * store.engine chooses where data is kept: "heap" (default), "offheap", or "cache", on
+   * the heap within store.cache.max.bytes (default a quarter of the maximum heap), evicting
+   * the entries least likely to be used again.
+   * Setting store.wal.dir makes the store durable by logging mutations to that directory,
+   * forced to disk as set by store.wal.fsync: "always", "interval" (default) or "os".
+   * store.wal.interval.millis sets the interval (default 10). A snapshot is written every
+   * store.snapshot.interval.seconds (default 300, 0 for never) so restarts replay less log.
+   * Setting replication.port makes the store publish its mutations for startReplication.
+   * Keys are kept in order next to the store for SCAN, and may be given a time to live.
+   * @return store
+   * @throws IOException if the write-ahead log can't be opened or replayed
+   */
+  public static KeyValueStore createStore() throws IOException {
+    String engine = System.getProperty("store.engine", "heap");
+    KeyValueStore store;
+    if (engine.equalsIgnoreCase("offheap")) {
+      store = new OffHeapKeyValueStore();
+    } else if (engine.equalsIgnoreCase("cache")) {
+      store = new BoundedKeyValueStore(Long.parseLong(System.getProperty("store.cache.max.bytes",
+              Long.toString(Runtime.getRuntime().maxMemory() / 4))));
+    } else {
+      store = new ConcurrentKeyValueStore();
+    }
+    store = new IndexedKeyValueStore(store); // keys in order for SCAN
+    if (System.getProperty("replication.port") != null) { // primaries publish mutations
+      store = new ReplicatedKeyValueStore(store);
+    }
+    String walDirectory = System.getProperty("store.wal.dir");
+    if (walDirectory != null) {
+      WriteAheadLog.FsyncPolicy policy = WriteAheadLog.FsyncPolicy.valueOf(
+              System.getProperty("store.wal.fsync", "interval").toUpperCase());
+      long interval = Long.parseLong(System.getProperty("store.wal.interval.millis", "10"));
+      WriteAheadLog log = new WriteAheadLog(Paths.get(walDirectory), policy, interval);
+      DurableKeyValueStore durable = new DurableKeyValueStore(store, log);
+      long snapshotInterval = Long.parseLong(
+              System.getProperty("store.snapshot.interval.seconds", "300"));
+      if (snapshotInterval > 0) {
+        durable.startSnapshots(snapshotInterval);
+      }
+      store = durable;
+      Runtime.getRuntime().addShutdownHook(new Thread(log::close, "wal-shutdown"));
+    }
+    return new ExpiringKeyValueStore(store); // expiries reach the log and replicas as deletes
+  }
+
+  /**
+   * Method parses the server mode from the args inputted by the user.
+   * The mode is the second arg, defaulting to "single", one client at a time.
+   * @param args inputted by user
+   * @return server mode
+   */
+  public static String parseMode(String[] args) {
+    if (args.length >= 2) {
+      return args[1].toLowerCase();
+    }
+    return "single";
+  }
+
+  /**
+   * Method parses the number of threads from the args inputted by the user.
+   * The thread count is the third arg, defaulting to the number of processors.
+   * It sizes the thread pools of the modes that serve many clients at once.
+   * @param args inputted by user
+   * @return number of threads
+   */
+  public static int parseThreads(String[] args) {
+    if (args.length >= 3) {
+      return Integer.parseInt(args[2]);
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
 
 }
@@ -0,0 +1,517 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Class to represent a key, value store that holds at most a budget of bytes, evicting
+ * entries to stay within it, for use as a look-aside cache. Each entry is weighed as the
+ * bytes of its key and value plus a fixed overhead for the map entry and Strings.
+ * Entries are evicted by W-TinyLFU: new entries enter a small LRU window, and those
+ * leaving the window only displace the oldest entry of the main area if a frequency
+ * sketch has seen them used more often recently, so a scan of keys read once passes
+ * through the window without flushing the entries that are used again. The main area
+ * is a segmented LRU, entries used again there are protected from eviction until they
+ * age out.
+ * Reads and writes go straight to a ConcurrentHashMap. Reads record the entry in a
+ * small per-thread-stripe buffer, dropping the record if it is full, and writes queue
+ * their change to the eviction policy, so neither waits for a lock. Whichever thread
+ * fills a buffer applies the recorded accesses and changes and evicts, under a lock that
+ * others never wait for, unless writes outrun it by a full queue.
+ */
+public class BoundedKeyValueStore implements KeyValueStore {
+
+  private static final int ENTRY_OVERHEAD = 160; // map entry, node and two Strings
+  private static final double WINDOW_SHARE = 0.01;
+  private static final double PROTECTED_SHARE = 0.8; // of the main area
+  private static final int READ_BUFFER_SIZE = 16; // power of two
+  private static final int WRITE_BUFFER_MAX = 1 << 14; // before writers wait for the policy
+  private static final byte WINDOW = 0;
+  private static final byte PROBATION = 1;
+  private static final byte PROTECTED = 2;
+
+  private final ConcurrentHashMap<String, Node> data;
+  private final long maximum;
+  private final long windowMaximum;
+  private final long protectedMaximum;
+  private final ReentrantLock evictionLock;
+  private final ReadBuffer[] readBuffers;
+  private final ConcurrentLinkedQueue<Runnable> writeBuffer;
+  private final AtomicInteger pendingWrites;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+  private final LongAdder evictedBytes;
+  // eviction policy, guarded by evictionLock
+  private final FrequencySketch sketch;
+  private final Node window; // sentinels of the three LRU queues, oldest first
+  private final Node probation;
+  private final Node protectedQueue;
+  private long windowSize;
+  private long protectedSize;
+  private volatile long weightedSize;
+  private volatile Consumer<String> evictionListener;
+
+  /**
+   * Constructor.
+   * @param maximumBytes budget for keys, values and their overhead
+   */
+  public BoundedKeyValueStore(long maximumBytes) {
+    if (maximumBytes <= 0) {
+      throw new IllegalArgumentException("Cache budget must be positive: " + maximumBytes);
+    }
+    this.data = new ConcurrentHashMap<String, Node>();
+    this.maximum = maximumBytes;
+    this.windowMaximum = (long) (maximumBytes * WINDOW_SHARE);
+    this.protectedMaximum = (long) ((maximumBytes - this.windowMaximum) * PROTECTED_SHARE);
+    this.evictionLock = new ReentrantLock();
+    int stripes = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+    this.readBuffers = new ReadBuffer[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.readBuffers[i] = new ReadBuffer();
+    }
+    this.writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+    this.pendingWrites = new AtomicInteger();
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+    this.evictedBytes = new LongAdder();
+    this.sketch = new FrequencySketch();
+    this.window = Node.sentinel();
+    this.probation = Node.sentinel();
+    this.protectedQueue = Node.sentinel();
+  }
+
+  @Override
+  public String put(String key, String value) {
+    int weight = weigh(key, value);
+    String[] old = new String[1];
+    // queued inside compute, so the changes to an entry reach the policy in order
+    this.data.compute(key, (k, node) -> {
+      if (node == null) {
+        Node added = new Node(k, value);
+        this.writeBuffer.add(() -> this.onAdd(added, weight));
+        return added;
+      }
+      old[0] = node.value;
+      node.value = value;
+      this.writeBuffer.add(() -> this.onUpdate(node, weight));
+      return node;
+    });
+    this.afterWrite();
+    return old[0];
+  }
+
+  @Override
+  public String get(String key) {
+    Node node = this.data.get(key);
+    if (node == null) {
+      this.misses.increment();
+      return null;
+    }
+    this.hits.increment();
+    if (this.readBuffers[stripe() & (this.readBuffers.length - 1)].offer(node)) {
+      this.tryMaintain(); // buffer full, apply the accesses recorded
+    }
+    return node.value;
+  }
+
+  @Override
+  public String delete(String key) {
+    Node node = this.data.remove(key);
+    if (node == null) {
+      return null;
+    }
+    this.writeBuffer.add(() -> this.onRemove(node));
+    this.afterWrite();
+    return node.value;
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return this.data.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return this.data.size();
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.data.forEach((key, node) -> action.accept(key, node.value));
+  }
+
+  /**
+   * Method sets an action told the key of every entry evicted. It runs holding the
+   * policy's lock, so it must not block or use this store.
+   * @param listener of evicted keys
+   */
+  public void setEvictionListener(Consumer<String> listener) {
+    this.evictionListener = listener;
+  }
+
+  public long getMaximumBytes() {
+    return this.maximum;
+  }
+
+  /**
+   * Method returns the bytes the policy has charged to the entries it holds. Briefly
+   * above the budget while queued writes wait to be applied.
+   * @return weighted size in bytes
+   */
+  public long getWeightedBytes() {
+    return this.weightedSize;
+  }
+
+  public long getHitCount() {
+    return this.hits.sum();
+  }
+
+  public long getMissCount() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Method returns the share of gets that found their key.
+   * @return hit ratio from 0 to 1, 0 before any get
+   */
+  public double getHitRatio() {
+    long hits = this.hits.sum();
+    long requests = hits + this.misses.sum();
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  public long getEvictionCount() {
+    return this.evictions.sum();
+  }
+
+  public long getEvictedBytes() {
+    return this.evictedBytes.sum();
+  }
+
+  /**
+   * Helper method to apply queued writes after one is queued, waiting for the policy
+   * only when writes have queued up faster than it keeps up with.
+   */
+  private void afterWrite() {
+    if (this.pendingWrites.incrementAndGet() > WRITE_BUFFER_MAX) {
+      this.evictionLock.lock();
+      try {
+        this.maintain();
+      } finally {
+        this.evictionLock.unlock();
+      }
+    }
+    this.tryMaintain();
+  }
+
+  /**
+   * Helper method to apply recorded reads and queued writes and evict, unless another
+   * thread is doing so. That thread checks for writes queued meanwhile once it is done,
+   * so none are left waiting.
+   */
+  private void tryMaintain() {
+    while (this.evictionLock.tryLock()) {
+      try {
+        this.maintain();
+      } finally {
+        this.evictionLock.unlock();
+      }
+      if (this.writeBuffer.isEmpty()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Helper method to bring the policy up to date and evict down to the budget.
+   * Called holding the eviction lock.
+   */
+  private void maintain() {
+    for (ReadBuffer buffer : this.readBuffers) {
+      buffer.drain(this);
+    }
+    Runnable write;
+    for (int i = 0; i < WRITE_BUFFER_MAX && (write = this.writeBuffer.poll()) != null; i++) {
+      write.run();
+      this.pendingWrites.decrementAndGet();
+    }
+    this.evict();
+  }
+
+  /**
+   * Helper method to start tracking a new entry, in the window.
+   * @param node of the entry
+   * @param weight of the entry
+   */
+  private void onAdd(Node node, int weight) {
+    node.weight = weight;
+    node.queue = WINDOW;
+    node.linked = true;
+    linkLast(this.window, node);
+    this.windowSize += weight;
+    this.weightedSize += weight;
+    this.sketch.increment(node.key);
+  }
+
+  /**
+   * Helper method to charge an entry its new weight and count the write as a use.
+   * @param node of the entry
+   * @param weight of the new value
+   */
+  private void onUpdate(Node node, int weight) {
+    if (node.linked) { // not evicted meanwhile
+      this.charge(node, weight - node.weight);
+      node.weight = weight;
+    }
+    this.onAccess(node);
+  }
+
+  /**
+   * Helper method to stop tracking a deleted entry.
+   * @param node of the entry
+   */
+  private void onRemove(Node node) {
+    if (node.linked) { // not evicted meanwhile
+      this.unlinkNode(node);
+    }
+  }
+
+  /**
+   * Helper method to count a use of an entry and move it to the end of its queue, or
+   * from probation to protected, demoting the oldest protected entries to make room.
+   * @param node of the entry
+   */
+  private void onAccess(Node node) {
+    this.sketch.increment(node.key);
+    if (!node.linked) {
+      return;
+    }
+    if (node.queue == WINDOW) {
+      unlink(node);
+      linkLast(this.window, node);
+    } else if (node.queue == PROTECTED) {
+      unlink(node);
+      linkLast(this.protectedQueue, node);
+    } else {
+      unlink(node);
+      node.queue = PROTECTED;
+      linkLast(this.protectedQueue, node);
+      this.protectedSize += node.weight;
+      while (this.protectedSize > this.protectedMaximum) {
+        Node demoted = this.protectedQueue.next;
+        unlink(demoted);
+        this.protectedSize -= demoted.weight;
+        demoted.queue = PROBATION;
+        linkLast(this.probation, demoted);
+      }
+    }
+  }
+
+  /**
+   * Helper method to move entries overflowing the window to probation as candidates,
+   * then evict until within the budget: each candidate against the oldest probation
+   * entry, keeping whichever the sketch says is used more often.
+   */
+  private void evict() {
+    this.sketch.ensureCapacity(this.data.size());
+    Node candidate = null;
+    while (this.windowSize > this.windowMaximum && this.window.next != this.window) {
+      Node node = this.window.next;
+      unlink(node);
+      this.windowSize -= node.weight;
+      node.queue = PROBATION;
+      linkLast(this.probation, node);
+      if (candidate == null) {
+        candidate = node;
+      }
+    }
+    while (this.weightedSize > this.maximum) {
+      Node victim = this.probation.next != this.probation ? this.probation.next
+              : this.protectedQueue.next != this.protectedQueue ? this.protectedQueue.next
+              : this.window.next;
+      if (victim == this.window) { // nothing left
+        return;
+      }
+      if (candidate != null && candidate != victim && candidate.queue == PROBATION &&
+              this.sketch.frequency(candidate.key) <= this.sketch.frequency(victim.key)) {
+        victim = candidate; // not admitted, evict it instead
+      }
+      if (victim == candidate) {
+        candidate = candidate.next != this.probation ? candidate.next : null;
+      }
+      this.evictNode(victim);
+    }
+  }
+
+  /**
+   * Helper method to remove an entry from the map and the policy.
+   * @param node of the entry
+   */
+  private void evictNode(Node node) {
+    if (this.data.remove(node.key, node)) { // else deleted already, its removal is queued
+      this.evictions.increment();
+      this.evictedBytes.add(node.weight);
+      Consumer<String> listener = this.evictionListener;
+      if (listener != null) {
+        listener.accept(node.key);
+      }
+    }
+    this.unlinkNode(node);
+  }
+
+  /**
+   * Helper method to unlink an entry from its queue and stop charging its weight.
+   * @param node of the entry
+   */
+  private void unlinkNode(Node node) {
+    unlink(node);
+    this.charge(node, -node.weight);
+    node.linked = false;
+  }
+
+  /**
+   * Helper method to change the weight charged to an entry's queue and the total.
+   * @param node of the entry
+   * @param delta bytes to add
+   */
+  private void charge(Node node, long delta) {
+    this.weightedSize += delta;
+    if (node.queue == WINDOW) {
+      this.windowSize += delta;
+    } else if (node.queue == PROTECTED) {
+      this.protectedSize += delta;
+    }
+  }
+
+  /**
+   * Helper method to weigh an entry, with one byte per character of Strings that fit in
+   * Latin-1 and two otherwise, as the JVM stores them.
+   * @param key of the entry
+   * @param value of the entry
+   * @return approximate bytes held by the entry
+   */
+  private static int weigh(String key, String value) {
+    return ENTRY_OVERHEAD + bytesOf(key) + bytesOf(value);
+  }
+
+  private static int bytesOf(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) > 0xFF) {
+        return 2 * s.length();
+      }
+    }
+    return s.length();
+  }
+
+  /**
+   * Helper method to pick the calling thread's read buffer.
+   * @return hash of the thread
+   */
+  private static int stripe() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static void linkLast(Node sentinel, Node node) {
+    node.prev = sentinel.prev;
+    node.next = sentinel;
+    sentinel.prev.next = node;
+    sentinel.prev = node;
+  }
+
+  private static void unlink(Node node) {
+    node.prev.next = node.next;
+    node.next.prev = node.prev;
+  }
+
+  /**
+   * An entry of the store, with its place in the eviction policy.
+   */
+  private static final class Node {
+
+    private final String key;
+    private volatile String value;
+    // guarded by evictionLock
+    private int weight; // as charged by the policy
+    private byte queue;
+    private boolean linked; // tracked by the policy, not yet removed or evicted
+    private Node prev;
+    private Node next;
+
+    private Node(String key, String value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    private static Node sentinel() {
+      Node sentinel = new Node(null, null);
+      sentinel.prev = sentinel;
+      sentinel.next = sentinel;
+      return sentinel;
+    }
+  }
+
+  /**
+   * A ring of reads recorded by the threads of one stripe, applied to the policy by the
+   * thread holding the eviction lock. Reads are dropped when it is full or contended,
+   * which only loses a little accuracy.
+   */
+  private static final class ReadBuffer {
+
+    private final AtomicReferenceArray<Node> slots;
+    private final AtomicLong writes; // reads recorded
+    private volatile long reads; // reads applied, written under the eviction lock
+
+    private ReadBuffer() {
+      this.slots = new AtomicReferenceArray<Node>(READ_BUFFER_SIZE);
+      this.writes = new AtomicLong();
+    }
+
+    /**
+     * Method records a read, unless the buffer is full or another thread is recording.
+     * @param node read
+     * @return true if the buffer is full and should be drained
+     */
+    private boolean offer(Node node) {
+      long tail = this.writes.get();
+      long size = tail - this.reads;
+      if (size >= READ_BUFFER_SIZE) {
+        return true;
+      }
+      if (this.writes.compareAndSet(tail, tail + 1)) {
+        this.slots.lazySet((int) tail & (READ_BUFFER_SIZE - 1), node);
+        return size + 1 >= READ_BUFFER_SIZE;
+      }
+      return false;
+    }
+
+    /**
+     * Method applies the reads recorded to the policy. Called holding the eviction lock.
+     * @param store owning the policy
+     */
+    private void drain(BoundedKeyValueStore store) {
+      long head = this.reads;
+      long tail = this.writes.get();
+      for (; head < tail; head++) {
+        int index = (int) head & (READ_BUFFER_SIZE - 1);
+        Node node = this.slots.get(index);
+        if (node == null) { // claimed but not yet written, the next drain gets it
+          break;
+        }
+        this.slots.lazySet(index, null);
+        store.onAccess(node);
+      }
+      this.reads = head;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Class to represent a pool of direct ByteBuffers of one size, so I/O threads
+ * can reuse buffers instead of allocating one per packet.
+ * When the pool is empty a new buffer is allocated, and buffers released into a
+ * full pool are left for the garbage collector, so the pool never blocks.
+ */
+public class BufferPool {
+
+  private final ArrayBlockingQueue<ByteBuffer> buffers;
+  private final int bufferSize;
+
+  /**
+   * Constructor. Allocates every buffer up front.
+   * @param capacity number of buffers kept in the pool
+   * @param bufferSize size of each buffer in bytes
+   */
+  public BufferPool(int capacity, int bufferSize) {
+    this.buffers = new ArrayBlockingQueue<ByteBuffer>(capacity);
+    this.bufferSize = bufferSize;
+    for (int i = 0; i < capacity; i++) {
+      this.buffers.add(ByteBuffer.allocateDirect(bufferSize));
+    }
+  }
+
+  /**
+   * Method takes a cleared buffer from the pool.
+   * @return buffer ready to be filled
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = this.buffers.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(this.bufferSize);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Method returns a buffer to the pool.
+   * @param buffer no longer in use
+   */
+  public void release(ByteBuffer buffer) {
+    this.buffers.offer(buffer);
+  }
+}
@@ -0,0 +1,55 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Class to represent a key, value store that can be shared by many threads.
+ * Backed by a ConcurrentHashMap, so every put, get and delete is one atomic lookup,
+ * reads never lock, and writes only contend on the same bin.
+ */
+public class ConcurrentKeyValueStore implements KeyValueStore {
+
+  private final ConcurrentHashMap<String, String> map;
+
+  /**
+   * Constructor.
+   */
+  public ConcurrentKeyValueStore() {
+    this.map = new ConcurrentHashMap<String, String>();
+  }
+
+  /**
+   * Constructor.
+   * @param expectedSize number of keys to size the table for
+   * @param concurrencyLevel estimated number of threads updating the store
+   */
+  public ConcurrentKeyValueStore(int expectedSize, int concurrencyLevel) {
+    this.map = new ConcurrentHashMap<String, String>(expectedSize, 0.75f, concurrencyLevel);
+  }
+
+  @Override
+  public String put(String key, String value) {
+    return this.map.put(key, value);
+  }
+
+  @Override
+  public String get(String key) {
+    return this.map.get(key);
+  }
+
+  @Override
+  public String delete(String key) {
+    return this.map.remove(key);
+  }
+
+  @Override
+  public int size() {
+    return this.map.size();
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.map.forEach(action);
+  }
+}
@@ -0,0 +1,129 @@
+package server;
+
+import common.BinaryFrame;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class to remember the responses to recent datagram mutations by client address, port
+ * and request id, so a request retransmitted because its response was lost is answered
+ * again without being applied twice. A request is marked in progress before it is
+ * served, so a copy arriving meanwhile, possibly at another worker, is dropped and the
+ * client's next retransmission gets the response. The oldest entries are evicted first
+ * once the cache is full, well after any client has stopped retransmitting them.
+ */
+public class DedupCache {
+
+  public static final List<BinaryFrame> IN_PROGRESS = List.of(); // being served, drop copies
+
+  private static final int DEFAULT_CAPACITY = 1 << 16; // requests remembered
+
+  private final int capacity;
+  private final ConcurrentHashMap<Key, List<BinaryFrame>> responses;
+  private final Queue<Key> order; // keys oldest first, for eviction
+  private final AtomicInteger size;
+
+  /**
+   * Constructor.
+   */
+  public DedupCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   * @param capacity requests remembered
+   */
+  public DedupCache(int capacity) {
+    this.capacity = capacity;
+    this.responses = new ConcurrentHashMap<Key, List<BinaryFrame>>();
+    this.order = new ConcurrentLinkedQueue<Key>();
+    this.size = new AtomicInteger();
+  }
+
+  /**
+   * Method claims a request for serving, unless it has been seen before.
+   * @param address of the client
+   * @param port of the client
+   * @param requestId of the request
+   * @return null if the request is new and now in progress, IN_PROGRESS if a copy is
+   *     being served, otherwise the response frames sent the first time
+   */
+  public List<BinaryFrame> begin(InetAddress address, int port, int requestId) {
+    Key key = new Key(address, port, requestId);
+    List<BinaryFrame> previous = this.responses.putIfAbsent(key, IN_PROGRESS);
+    if (previous != null) {
+      return previous;
+    }
+    this.order.offer(key);
+    if (this.size.incrementAndGet() > this.capacity) { // evict the oldest
+      Key oldest = this.order.poll();
+      if (oldest != null) {
+        this.responses.remove(oldest);
+        this.size.decrementAndGet();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Method records the response to a request claimed with begin.
+   * @param address of the client
+   * @param port of the client
+   * @param requestId of the request
+   * @param frames sent in response
+   */
+  public void complete(InetAddress address, int port, int requestId, List<BinaryFrame> frames) {
+    this.responses.replace(new Key(address, port, requestId), IN_PROGRESS, frames);
+  }
+
+  /**
+   * Method forgets a request claimed with begin that could not be served, so a
+   * retransmission is served again. Its place in the eviction order is given up too,
+   * which is a linear search, but failures to serve a request are rare.
+   * @param address of the client
+   * @param port of the client
+   * @param requestId of the request
+   */
+  public void abandon(InetAddress address, int port, int requestId) {
+    Key key = new Key(address, port, requestId);
+    if (this.responses.remove(key, IN_PROGRESS) && this.order.remove(key)) { // unless evicted
+      this.size.decrementAndGet();
+    }
+  }
+
+  /**
+   * Client address, port and request id.
+   */
+  private static final class Key {
+
+    private final InetAddress address;
+    private final int port;
+    private final int requestId;
+
+    private Key(InetAddress address, int port, int requestId) {
+      this.address = address;
+      this.port = port;
+      this.requestId = requestId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return this.requestId == other.requestId && this.port == other.port &&
+              this.address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+      return (this.requestId * 31 + this.port) * 31 + this.address.hashCode();
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Class to make a key, value store survive restarts by logging every PUT and DELETE
+ * to a write-ahead log before it is acknowledged.
+ * Snapshots of the whole store, snapshot-N.snap, are written next to the log in the
+ * background. Each one rolls the log to generation N first, so on startup the newest
+ * snapshot is loaded and only generations from N on are replayed, and older generations
+ * and snapshots are deleted once it is complete. Traffic continues while a snapshot is
+ * written: the copy may include mutations logged after the roll, which replaying them
+ * again on startup leaves unchanged, since every record sets or removes a whole value.
+ * A mutation is logged and applied under a lock striped by key, so the log holds
+ * mutations of the same key in the order they were applied, while mutations of
+ * different keys never wait for each other. Waiting for the disk happens after the
+ * lock is released, so concurrent writers share each fsync. A thread answering many
+ * requests, like the NIO event loop, defers that wait instead and holds its replies until
+ * the last record it logged is durable, so requests it reads together share one fsync.
+ */
+public class DurableKeyValueStore implements KeyValueStore {
+
+  private static final int STRIPES = 64; // power of two
+
+  private final KeyValueStore delegate;
+  private final WriteAheadLog log;
+  private final Object[] stripes;
+  private final ThreadLocal<long[]> deferred; // last sequence logged while deferring, or -1
+  private Map<String, Long> replayedDeadlines; // EXPIRE deadlines found replaying the log
+  private volatile Runnable rollListener; // logs state kept above the store after a roll
+  private volatile boolean changed; // mutated since the last snapshot
+  private ScheduledExecutorService snapshots;
+
+  /**
+   * Constructor. Loads the newest snapshot and replays the log after it into the store.
+   * @param delegate store holding the data
+   * @param log of mutations
+   * @throws IOException if the log can't be replayed
+   */
+  public DurableKeyValueStore(KeyValueStore delegate, WriteAheadLog log) throws IOException {
+    this.delegate = delegate;
+    this.log = log;
+    this.stripes = new Object[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Object();
+    }
+    this.deferred = ThreadLocal.withInitial(() -> new long[] {-1});
+    this.replayedDeadlines = new HashMap<String, Long>();
+    long fromGeneration = 0;
+    Path snapshot = this.newestSnapshot();
+    if (snapshot != null) {
+      long start = System.nanoTime();
+      long loaded = StoreSnapshot.load(snapshot, delegate,
+              Runtime.getRuntime().availableProcessors());
+      System.out.println("Loaded " + loaded + " keys from " + snapshot + " in " +
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+      fromGeneration = generationOf(snapshot);
+    }
+    long replayed = log.replay(fromGeneration, (op, key, value) -> {
+      if (op == WriteAheadLog.EXPIRE) {
+        this.replayedDeadlines.put(key, Long.parseLong(value));
+      } else if (op == WriteAheadLog.PUT) {
+        this.replayedDeadlines.remove(key); // a plain put clears the TTL
+        this.delegate.put(key, value);
+      } else {
+        this.replayedDeadlines.remove(key);
+        this.delegate.delete(key);
+      }
+    });
+    System.out.println("Replayed " + replayed + " logged mutations, " + delegate.size() +
+            " keys in store.");
+  }
+
+  @Override
+  public String put(String key, String value) {
+    String old;
+    long sequence;
+    try {
+      synchronized (this.stripeOf(key)) {
+        sequence = this.log.enqueue(WriteAheadLog.PUT, key, value);
+        old = this.delegate.put(key, value);
+      }
+      this.changed = true;
+      this.awaitOrDefer(sequence);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to log put for key " + key, e);
+    }
+    return old;
+  }
+
+  @Override
+  public String get(String key) {
+    return this.delegate.get(key);
+  }
+
+  @Override
+  public String delete(String key) {
+    String removed;
+    long sequence = 0;
+    try {
+      synchronized (this.stripeOf(key)) {
+        if (this.delegate.get(key) == null) { // nothing to delete, nothing to log
+          return null;
+        }
+        sequence = this.log.enqueue(WriteAheadLog.DELETE, key, null);
+        removed = this.delegate.delete(key);
+      }
+      this.changed = true;
+      this.awaitOrDefer(sequence);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to log delete for key " + key, e);
+    }
+    return removed;
+  }
+
+  @Override
+  public int size() {
+    return this.delegate.size();
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.delegate.forEach(action);
+  }
+
+  /**
+   * Method logs the deadline of a key with a time to live, replayed on startup with
+   * takeReplayedDeadlines. A later put or delete of the key clears it. Waits like put.
+   * @param key with a time to live
+   * @param deadlineMillis when the key expires, in epoch milliseconds
+   */
+  public void logExpire(String key, long deadlineMillis) {
+    long sequence;
+    try {
+      synchronized (this.stripeOf(key)) {
+        sequence = this.log.enqueue(WriteAheadLog.EXPIRE, key, Long.toString(deadlineMillis));
+      }
+      this.changed = true;
+      this.awaitOrDefer(sequence);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to log expiry for key " + key, e);
+    }
+  }
+
+  /**
+   * Method hands over the deadlines of keys whose time to live was logged and not
+   * cleared since, found replaying the log, for the store keeping TTLs to arm again.
+   * @return deadline in epoch milliseconds by key, empty after the first call
+   */
+  public Map<String, Long> takeReplayedDeadlines() {
+    Map<String, Long> deadlines = this.replayedDeadlines;
+    this.replayedDeadlines = new HashMap<String, Long>();
+    return deadlines;
+  }
+
+  /**
+   * Method sets an action run by each snapshot right after the log is rolled, to log
+   * again what the snapshot doesn't hold, like deadlines of keys with a time to live,
+   * so it is replayed with the generations the snapshot doesn't cover. The action
+   * returns once what it logged is durable.
+   * @param listener action, or null for none
+   */
+  public void setRollListener(Runnable listener) {
+    this.rollListener = listener;
+  }
+
+  /**
+   * Method stops the calling thread's puts and deletes from waiting for their records to
+   * be durable, so a server answering many requests on one thread can wait once for all
+   * of them before sending the replies. The thread must call takeDeferred afterwards.
+   */
+  public void deferDurability() {
+    long[] deferred = this.deferred.get();
+    deferred[0] = Math.max(deferred[0], 0);
+  }
+
+  /**
+   * Method tells whether the calling thread defers its waits.
+   * @return true between deferDurability and takeDeferred
+   */
+  public boolean isDeferring() {
+    return this.deferred.get()[0] >= 0;
+  }
+
+  /**
+   * Method ends deferring for the calling thread.
+   * @return sequence of the last record its puts and deletes logged since deferDurability,
+   *         for awaitDurable or whenDurable, or 0 if they logged nothing
+   */
+  public long takeDeferred() {
+    long[] deferred = this.deferred.get();
+    long sequence = Math.max(deferred[0], 0);
+    deferred[0] = -1;
+    return sequence;
+  }
+
+  /**
+   * Method waits until a logged record is durable.
+   * @param sequence returned by takeDeferred
+   * @throws IOException if the write failed
+   */
+  public void awaitDurable(long sequence) throws IOException {
+    this.log.awaitDurable(sequence);
+  }
+
+  /**
+   * Method runs an action once a logged record is durable, without blocking the caller.
+   * @param sequence returned by takeDeferred
+   * @param action given null once the record is durable, or the error if the write failed
+   */
+  public void whenDurable(long sequence, Consumer<IOException> action) {
+    this.log.whenDurable(sequence, action);
+  }
+
+  /**
+   * Method writes a snapshot of the store, then deletes the older snapshots and the
+   * log generations it covers. Writers only pause while the log is rolled.
+   * @return number of keys written
+   * @throws IOException
+   */
+  public synchronized long snapshot() throws IOException {
+    this.changed = false;
+    long generation = this.rollLocked(0);
+    Runnable listener = this.rollListener;
+    if (listener != null) {
+      try {
+        listener.run();
+      } catch (UncheckedIOException e) { // the snapshot would lose what wasn't logged
+        throw e.getCause();
+      }
+    }
+    Path path = this.snapshotPath(generation);
+    Path partial = path.resolveSibling(path.getFileName() + ".tmp");
+    long written = StoreSnapshot.write(partial, this.delegate);
+    Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+    try (FileChannel directory = FileChannel.open(this.log.getDirectory(),
+            StandardOpenOption.READ)) {
+      directory.force(true); // make the rename itself durable
+    } catch (IOException e) {
+      // not every platform can force a directory, the snapshot is still complete
+    }
+    for (Path older : this.snapshots()) {
+      if (generationOf(older) < generation) {
+        Files.deleteIfExists(older);
+      }
+    }
+    this.log.deleteBefore(generation);
+    return written;
+  }
+
+  /**
+   * Method starts writing a snapshot periodically in the background, skipping
+   * intervals with no puts or deletes.
+   * @param intervalSeconds between snapshots
+   */
+  public void startSnapshots(long intervalSeconds) {
+    this.snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.snapshots.scheduleWithFixedDelay(() -> {
+      if (!this.changed) {
+        return;
+      }
+      try {
+        long start = System.nanoTime();
+        long written = this.snapshot();
+        System.out.println("Snapshot of " + written + " keys written in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+      } catch (IOException e) {
+        System.err.println("Error writing snapshot: " + e.getMessage());
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Method returns the store holding the data.
+   * @return wrapped store
+   */
+  public KeyValueStore getDelegate() {
+    return this.delegate;
+  }
+
+  /**
+   * Method returns the log mutations are written to.
+   * @return write-ahead log
+   */
+  public WriteAheadLog getLog() {
+    return this.log;
+  }
+
+  /**
+   * Helper method to roll the log while holding every stripe lock, so no mutation is
+   * logged in one generation but applied to the store after the snapshot starts.
+   * @param stripe next stripe to lock
+   * @return new generation of the log
+   * @throws IOException
+   */
+  private long rollLocked(int stripe) throws IOException {
+    synchronized (this.stripes[stripe]) {
+      return stripe + 1 < STRIPES ? this.rollLocked(stripe + 1) : this.log.roll();
+    }
+  }
+
+  /**
+   * Helper method to find the newest snapshot in the log directory.
+   * @return path of the snapshot, or null if there is none
+   * @throws IOException
+   */
+  private Path newestSnapshot() throws IOException {
+    List<Path> snapshots = this.snapshots();
+    return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+  }
+
+  /**
+   * Helper method to list the complete snapshots in the log directory, oldest first.
+   * @return snapshot paths
+   * @throws IOException
+   */
+  private List<Path> snapshots() throws IOException {
+    List<Path> snapshots = new ArrayList<Path>();
+    try (Stream<Path> files = Files.list(this.log.getDirectory())) {
+      files.forEach(file -> {
+        String name = file.getFileName().toString();
+        if (name.startsWith("snapshot-") && name.endsWith(".snap")) {
+          snapshots.add(file);
+        }
+      });
+    }
+    snapshots.sort((a, b) -> Long.compare(generationOf(a), generationOf(b)));
+    return snapshots;
+  }
+
+  /**
+   * Helper method to name the snapshot covering the generations before a given one.
+   * @param generation of the log the snapshot was started at
+   * @return path of the snapshot
+   */
+  private Path snapshotPath(long generation) {
+    return this.log.getDirectory().resolve(String.format("snapshot-%08d.snap", generation));
+  }
+
+  /**
+   * Helper method to find the log generation a snapshot was started at.
+   * @param snapshot path
+   * @return generation
+   */
+  private static long generationOf(Path snapshot) {
+    String name = snapshot.getFileName().toString();
+    return Long.parseLong(name.substring(9, name.length() - 5));
+  }
+
+  /**
+   * Helper method to wait for a record to be durable, or only note its sequence if the
+   * calling thread defers durability.
+   * @param sequence returned by enqueue
+   * @throws IOException if the write failed
+   */
+  private void awaitOrDefer(long sequence) throws IOException {
+    long[] deferred = this.deferred.get();
+    if (deferred[0] >= 0) {
+      deferred[0] = Math.max(deferred[0], sequence);
+    } else {
+      this.log.awaitDurable(sequence);
+    }
+  }
+
+  /**
+   * Helper method to find the lock guarding a key.
+   * @param key of a mutation
+   * @return stripe lock
+   */
+  private Object stripeOf(String key) {
+    int hash = key.hashCode();
+    return this.stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+}
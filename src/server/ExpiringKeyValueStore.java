@@ -0,0 +1,302 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Class to give keys of a key, value store a time to live, after which they are deleted.
+ * Each key with a TTL has a timer in a TimerWheel, so setting, replacing or clearing a
+ * TTL and expiring a key each cost constant time, and the store is never scanned for
+ * expired keys. A read checks the key's deadline too, so an expired key is never returned
+ * in the tick or so before its timer fires. A plain PUT or DELETE clears the key's TTL.
+ * Expired keys are deleted through the store beneath, so placed over a durable or
+ * replicated store an expiry is logged and replicated as a DELETE. Over a durable store
+ * each TTL is logged too, as the key's deadline in wall clock time, logged again after
+ * every roll of the log so snapshots don't lose it, and armed again on restart.
+ * Writes of a key are ordered by a lock striped by key, held while the store beneath is
+ * written. Over a durable store that write only logs the mutation: the wait for the disk
+ * comes after the lock is released, and expiries don't wait for it at all.
+ */
+public class ExpiringKeyValueStore implements KeyValueStore {
+
+  private static final int STRIPES = 64; // power of two
+  private static final long TICK_MILLIS = 10;
+
+  private final KeyValueStore delegate;
+  private final DurableKeyValueStore durable; // the delegate if it logs mutations, or null
+  private final Object[] stripes;
+  private final ConcurrentHashMap<String, TimerWheel.Timer<String>> expirations;
+  private final TimerWheel<String> wheel;
+  private final LongAdder expired;
+
+  /**
+   * Constructor.
+   * @param delegate store holding the data
+   */
+  public ExpiringKeyValueStore(KeyValueStore delegate) {
+    this.delegate = delegate;
+    this.durable = delegate instanceof DurableKeyValueStore ?
+            (DurableKeyValueStore) delegate : null;
+    this.stripes = new Object[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Object();
+    }
+    this.expirations = new ConcurrentHashMap<String, TimerWheel.Timer<String>>();
+    this.wheel = new TimerWheel<String>("expiry", TICK_MILLIS,
+            timer -> this.expire(timer.getItem(), timer));
+    this.expired = new LongAdder();
+    if (this.durable != null) {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, Long> deadline : this.durable.takeReplayedDeadlines().entrySet()) {
+        if (delegate.get(deadline.getKey()) != null) { // due ones expire on the next tick
+          this.expirations.put(deadline.getKey(), this.wheel.schedule(deadline.getKey(),
+                  Math.max(0, deadline.getValue() - now)));
+        }
+      }
+      this.durable.setRollListener(this::relogDeadlines);
+    }
+  }
+
+  @Override
+  public String put(String key, String value) {
+    return this.locked(key, () -> {
+      TimerWheel.Timer<String> timer = this.clearTtl(key);
+      String old = this.delegate.put(key, value);
+      return timer != null && timer.isDue(System.nanoTime()) ? null : old;
+    });
+  }
+
+  /**
+   * Method puts the value for a key, to be deleted once a time to live has passed.
+   * @param key to store
+   * @param value to store
+   * @param ttlMillis time to live, positive
+   * @return previous value for key, or null if the key was new or had expired
+   */
+  public String put(String key, String value, long ttlMillis) {
+    return this.locked(key, () -> {
+      String old = this.delegate.put(key, value);
+      this.logDeadline(key, ttlMillis);
+      TimerWheel.Timer<String> previous = this.expirations.put(key,
+              this.wheel.schedule(key, ttlMillis));
+      if (previous != null) {
+        this.wheel.cancel(previous);
+        if (previous.isDue(System.nanoTime())) {
+          old = null;
+        }
+      }
+      return old;
+    });
+  }
+
+  /**
+   * Method sets the time to live of an existing key, replacing any it had.
+   * @param key to expire
+   * @param ttlMillis time to live, positive
+   * @return true if the key exists and will expire, false if it doesn't exist
+   */
+  public boolean expire(String key, long ttlMillis) {
+    return this.locked(key, () -> {
+      if (this.get(key) == null) {
+        return false;
+      }
+      this.logDeadline(key, ttlMillis);
+      TimerWheel.Timer<String> previous = this.expirations.put(key,
+              this.wheel.schedule(key, ttlMillis));
+      if (previous != null) {
+        this.wheel.cancel(previous);
+      }
+      return true;
+    });
+  }
+
+  @Override
+  public String get(String key) {
+    String value = this.delegate.get(key);
+    if (value != null && !this.expirations.isEmpty()) { // no TTLs, nothing to check
+      TimerWheel.Timer<String> timer = this.expirations.get(key);
+      if (timer != null && timer.isDue(System.nanoTime())) {
+        this.expire(key, timer);
+        return null;
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public String delete(String key) {
+    return this.locked(key, () -> {
+      TimerWheel.Timer<String> timer = this.clearTtl(key);
+      String removed = this.delegate.delete(key);
+      return timer != null && timer.isDue(System.nanoTime()) ? null : removed;
+    });
+  }
+
+  @Override
+  public int size() {
+    return this.delegate.size();
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.delegate.forEach((key, value) -> {
+      TimerWheel.Timer<String> timer = this.expirations.get(key);
+      if (timer == null || !timer.isDue(System.nanoTime())) {
+        action.accept(key, value);
+      }
+    });
+  }
+
+  /**
+   * Method returns the number of keys waiting to expire.
+   * @return keys with a TTL
+   */
+  public int getExpiringCount() {
+    return this.expirations.size();
+  }
+
+  /**
+   * Method returns the number of keys deleted because their TTL passed.
+   * @return expired keys
+   */
+  public long getExpiredCount() {
+    return this.expired.sum();
+  }
+
+  public KeyValueStore getDelegate() {
+    return this.delegate;
+  }
+
+  /**
+   * Helper method to delete a key whose timer is due, unless its TTL has been replaced
+   * or cleared since. Called by the wheel's thread, and by readers finding it first.
+   * Nothing waits for a durable store to log the delete: the key is gone from memory
+   * either way, and if the delete is lost in a crash the key only expires again.
+   * @param key to delete
+   * @param timer that was due
+   */
+  private void expire(String key, TimerWheel.Timer<String> timer) {
+    boolean defer = this.durable != null && !this.durable.isDeferring();
+    if (defer) {
+      this.durable.deferDurability();
+    }
+    try {
+      synchronized (this.stripeOf(key)) {
+        if (!this.expirations.remove(key, timer)) { // the key was written again
+          return;
+        }
+        this.wheel.cancel(timer);
+        this.delegate.delete(key);
+        this.expired.increment();
+      }
+    } finally {
+      if (defer) {
+        this.durable.takeDeferred();
+      }
+    }
+  }
+
+  /**
+   * Helper method to log the deadline of a TTL being set, if the store beneath is durable.
+   * Called holding the key's stripe.
+   * @param key getting a TTL
+   * @param ttlMillis time to live
+   */
+  private void logDeadline(String key, long ttlMillis) {
+    if (this.durable != null) {
+      this.durable.logExpire(key, System.currentTimeMillis() + ttlMillis);
+    }
+  }
+
+  /**
+   * Helper method to log the deadline of every key with a TTL again, run by the durable
+   * store right after it rolls the log for a snapshot. Each key's deadline is logged
+   * holding its stripe, so one cleared or replaced meanwhile is logged in order, and the
+   * method returns once all of them are durable.
+   */
+  private void relogDeadlines() {
+    this.durable.deferDurability();
+    long sequence;
+    try {
+      for (Map.Entry<String, TimerWheel.Timer<String>> entry : this.expirations.entrySet()) {
+        String key = entry.getKey();
+        synchronized (this.stripeOf(key)) {
+          TimerWheel.Timer<String> timer = this.expirations.get(key);
+          if (timer != null) {
+            this.durable.logExpire(key, System.currentTimeMillis() +
+                    timer.remainingMillis(System.nanoTime()));
+          }
+        }
+      }
+    } finally {
+      sequence = this.durable.takeDeferred();
+    }
+    try {
+      this.durable.awaitDurable(sequence);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to log deadlines", e);
+    }
+  }
+
+  /**
+   * Helper method to write a key holding its stripe. Over a durable store the write only
+   * logs the mutation while the stripe is held, and waits for it after releasing it, so
+   * writers of other keys on the stripe don't wait out this one's fsync. A thread that
+   * already defers its waits, like the event loop, is left to wait for all of them itself.
+   * @param key being written
+   * @param write of the key to the store beneath, and its TTL bookkeeping
+   * @param <T> type of the result
+   * @return result of the write
+   */
+  private <T> T locked(String key, Supplier<T> write) {
+    if (this.durable == null || this.durable.isDeferring()) {
+      synchronized (this.stripeOf(key)) {
+        return write.get();
+      }
+    }
+    T result;
+    long sequence;
+    this.durable.deferDurability();
+    try {
+      synchronized (this.stripeOf(key)) {
+        result = write.get();
+      }
+    } finally {
+      sequence = this.durable.takeDeferred();
+    }
+    try {
+      this.durable.awaitDurable(sequence);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to log write of key " + key, e);
+    }
+    return result;
+  }
+
+  /**
+   * Helper method to remove the TTL of a key. Called holding the key's stripe.
+   * @param key losing its TTL
+   * @return timer removed, or null if the key had no TTL
+   */
+  private TimerWheel.Timer<String> clearTtl(String key) {
+    TimerWheel.Timer<String> timer = this.expirations.remove(key);
+    if (timer != null) {
+      this.wheel.cancel(timer);
+    }
+    return timer;
+  }
+
+  /**
+   * Helper method to find the lock ordering writes of a key.
+   * @param key being written
+   * @return stripe lock
+   */
+  private Object stripeOf(String key) {
+    int h = key.hashCode();
+    return this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+}
@@ -0,0 +1,129 @@
+package server;
+
+/**
+ * Class to estimate how often each key has been used recently, in little memory.
+ * A count-min sketch of 4-bit counters, sixteen to a long: a key increments one
+ * counter in each of four rows, and its estimate is the smallest of the four, so
+ * collisions only ever overestimate. Once as many increments as ten times the table's
+ * counters per row have been made, every counter is halved, so old popularity fades.
+ * Not thread safe, the owner serializes access.
+ */
+class FrequencySketch {
+
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+          0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final int MAX_LENGTH = 1 << 24;
+
+  private long[] table;
+  private int sampleSize; // increments between halvings
+  private int size; // increments since the last halving
+
+  /**
+   * Constructor.
+   */
+  FrequencySketch() {
+    this.ensureCapacity(16);
+  }
+
+  /**
+   * Method grows the sketch for the number of keys tracked, forgetting all counts
+   * if it grows.
+   * @param keys expected to be tracked
+   */
+  void ensureCapacity(long keys) {
+    int length = (int) Math.min(MAX_LENGTH, Long.highestOneBit(Math.max(keys, 16) - 1) << 1);
+    if (this.table != null && length <= this.table.length) {
+      return;
+    }
+    this.table = new long[length];
+    this.sampleSize = 10 * length;
+    this.size = 0;
+  }
+
+  /**
+   * Method estimates the number of recent uses of a key.
+   * @param key to look up
+   * @return uses, from 0 to 15
+   */
+  int frequency(String key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      int index = this.indexOf(hash, i);
+      int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Method counts a use of a key, halving every counter once enough uses are counted.
+   * @param key used
+   */
+  void increment(String key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= this.incrementAt(this.indexOf(hash, i), start + i);
+    }
+    if (added && ++this.size == this.sampleSize) {
+      this.reset();
+    }
+  }
+
+  /**
+   * Helper method to increment a counter unless it is saturated.
+   * @param index of the long holding the counter
+   * @param counter within the long, 0 to 15
+   * @return true if the counter was incremented
+   */
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((this.table[index] & mask) != mask) {
+      this.table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Helper method to halve every counter, so counts reflect recent use.
+   */
+  private void reset() {
+    int odd = 0; // counters losing a half use to rounding
+    for (int i = 0; i < this.table.length; i++) {
+      odd += Long.bitCount(this.table[i] & ONE_MASK);
+      this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+    }
+    this.size = (this.size >>> 1) - (odd >>> 2);
+  }
+
+  /**
+   * Helper method to find the long holding a key's counter in a row.
+   * @param hash of the key, spread
+   * @param row 0 to 3
+   * @return index into the table
+   */
+  private int indexOf(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return (int) h & (this.table.length - 1);
+  }
+
+  /**
+   * Helper method to mix the bits of a hash code, so keys with similar hash codes use
+   * unrelated counters.
+   * @param x hash code
+   * @return spread hash
+   */
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+/**
+ * Class to keep the keys of a key, value store in order next to it, so keys can be
+ * scanned by prefix or range while point lookups still go straight to the store beneath.
+ * The keys are held in a ConcurrentSkipListSet, added when a key is created and removed
+ * when it is deleted, under a lock striped by key so the index agrees with the store,
+ * while writes of different keys never wait for each other. Scans read the index without
+ * locking and look each key's value up in the store, skipping keys deleted meanwhile.
+ * Over a BoundedKeyValueStore, keys it evicts are removed from the index after the write
+ * that caused the eviction.
+ */
+public class IndexedKeyValueStore implements KeyValueStore {
+
+  private static final int STRIPES = 64; // power of two
+
+  private final KeyValueStore delegate;
+  private final Object[] stripes;
+  private final ConcurrentSkipListSet<String> index;
+  private final ConcurrentLinkedQueue<String> evicted; // keys to check and unindex
+
+  /**
+   * Constructor.
+   * @param delegate store holding the data, empty
+   */
+  public IndexedKeyValueStore(KeyValueStore delegate) {
+    this.delegate = delegate;
+    this.stripes = new Object[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Object();
+    }
+    this.index = new ConcurrentSkipListSet<String>();
+    this.evicted = new ConcurrentLinkedQueue<String>();
+    if (delegate instanceof BoundedKeyValueStore) {
+      ((BoundedKeyValueStore) delegate).setEvictionListener(this.evicted::add);
+    }
+  }
+
+  @Override
+  public String put(String key, String value) {
+    String old;
+    synchronized (this.stripeOf(key)) {
+      old = this.delegate.put(key, value);
+      if (old == null) {
+        this.index.add(key);
+      }
+    }
+    this.unindexEvicted();
+    return old;
+  }
+
+  @Override
+  public String get(String key) {
+    return this.delegate.get(key);
+  }
+
+  @Override
+  public String delete(String key) {
+    String removed;
+    synchronized (this.stripeOf(key)) {
+      removed = this.delegate.delete(key);
+      if (removed != null) {
+        this.index.remove(key);
+      }
+    }
+    this.unindexEvicted();
+    return removed;
+  }
+
+  @Override
+  public int size() {
+    return this.delegate.size();
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.delegate.forEach(action);
+  }
+
+  /**
+   * Method passes keys in order, with their values, to an action: those from a key
+   * on and before another, optionally only those starting with a prefix, and resuming
+   * after the last key of an earlier page. Keys written while this runs may or may not
+   * be seen, but each key is passed at most once.
+   * @param from first key, inclusive, or null to start at the first key
+   * @param to key to stop before, or null for no upper bound
+   * @param prefix keys must start with, or null for any
+   * @param after last key of the previous page, or null for the first page
+   * @param limit of keys to pass
+   * @param maxChars of keys and values to pass, checked before each key after the first,
+   *        so a page of large values ends early but a single larger one is still passed
+   * @param action receiving each key and value
+   * @return last key passed if more keys may follow it, or null if the scan is complete
+   */
+  public String scan(String from, String to, String prefix, String after, int limit,
+                     long maxChars, BiConsumer<String, String> action) {
+    String start = from;
+    if (prefix != null && (start == null || prefix.compareTo(start) > 0)) {
+      start = prefix;
+    }
+    NavigableSet<String> keys = this.index;
+    if (after != null && (start == null || after.compareTo(start) >= 0)) {
+      keys = this.index.tailSet(after, false);
+    } else if (start != null) {
+      keys = this.index.tailSet(start, true);
+    }
+    String last = null;
+    int passed = 0;
+    long chars = 0;
+    for (String key : keys) {
+      if ((to != null && key.compareTo(to) >= 0) ||
+              (prefix != null && !key.startsWith(prefix))) { // keys run in order, past the end
+        return null;
+      }
+      if (passed == limit) {
+        return last;
+      }
+      String value = this.delegate.get(key);
+      if (value != null) { // else deleted since it was read from the index
+        chars += key.length() + value.length();
+        if (passed > 0 && chars > maxChars) {
+          return last;
+        }
+        action.accept(key, value);
+        last = key;
+        passed++;
+      }
+    }
+    return null;
+  }
+
+  public KeyValueStore getDelegate() {
+    return this.delegate;
+  }
+
+  /**
+   * Helper method to remove the keys evicted by the store beneath from the index, unless
+   * they have been written again since.
+   */
+  private void unindexEvicted() {
+    String key;
+    while ((key = this.evicted.poll()) != null) {
+      synchronized (this.stripeOf(key)) {
+        if (!this.delegate.containsKey(key)) {
+          this.index.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Helper method to find the lock ordering writes of a key.
+   * @param key being written
+   * @return stripe lock
+   */
+  private Object stripeOf(String key) {
+    int h = key.hashCode();
+    return this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+}
@@ -0,0 +1,55 @@
+package server;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Interface for the key, value store behind the server.
+ * Each operation is a single atomic step, so one store can be shared
+ * by every thread serving clients.
+ */
+public interface KeyValueStore {
+
+  /**
+   * Method puts the value for a key, replacing any existing value.
+   * @param key to store
+   * @param value to store
+   * @return previous value for key, or null if the key was new
+   */
+  String put(String key, String value);
+
+  /**
+   * Method returns the value for a key.
+   * @param key to look up
+   * @return value for key, or null if the key doesn't exist
+   */
+  String get(String key);
+
+  /**
+   * Method removes a key from the store.
+   * @param key to remove
+   * @return removed value, or null if the key didn't exist
+   */
+  String delete(String key);
+
+  /**
+   * Method checks if a key is in the store, without counting it as a read.
+   * @param key to look up
+   * @return true if the key exists
+   */
+  default boolean containsKey(String key) {
+    return this.get(key) != null;
+  }
+
+  /**
+   * Method returns the number of keys in the store.
+   * @return number of keys
+   */
+  int size();
+
+  /**
+   * Method passes every key and value in the store to an action. Writes made while
+   * this runs may or may not be seen, but each key is passed at most once.
+   * @param action receiving each key and value
+   */
+  void forEach(BiConsumer<String, String> action);
+}
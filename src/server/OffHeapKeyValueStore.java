@@ -0,0 +1,478 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Class to represent a key, value store that keeps its data outside the Java heap.
+ * Keys and values are stored as UTF-8 bytes in direct ByteBuffer slabs, so the heap only
+ * holds a few arrays per segment no matter how many entries there are, and the garbage
+ * collector never has to trace them.
+ * The store is split into segments by key hash, each with its own read/write lock,
+ * open-addressing index and slab allocator. The index is two arrays, the address of each
+ * record and its key hash, probed linearly and compacted by shifting entries back on
+ * delete, so it never fills up with tombstones. Records are carved from 1 MB slabs in
+ * size classes about 25% apart, and freed records go onto a free list of their class
+ * kept inside the freed memory itself, to be reused by the next record of that size.
+ * A record too large for the size classes gets a slab of its own, released on delete.
+ * Record: int key length, int value length, key, value.
+ */
+public class OffHeapKeyValueStore implements KeyValueStore {
+
+  private static final int SLAB_BYTES = 1 << 20;
+  private static final int MIN_CHUNK = 32; // holds a free list link
+  private static final int[] CHUNK_SIZES = chunkSizes();
+  private static final int HUGE = -1; // class of records with a slab of their own
+
+  private final Segment[] segments;
+  private final int segmentShift;
+
+  /**
+   * Constructor.
+   */
+  public OffHeapKeyValueStore() {
+    this(64);
+  }
+
+  /**
+   * Constructor.
+   * @param segments number of independently locked segments, rounded up to a power of two
+   */
+  public OffHeapKeyValueStore(int segments) {
+    int count = segments <= 1 ? 1 : Integer.highestOneBit((segments - 1) << 1);
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      this.segments[i] = new Segment();
+    }
+    this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+  }
+
+  @Override
+  public String put(String key, String value) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(key);
+    Segment segment = this.segmentOf(hash);
+    segment.lock.writeLock().lock();
+    try {
+      return segment.put(hash, keyBytes, valueBytes);
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public String get(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(key);
+    Segment segment = this.segmentOf(hash);
+    segment.lock.readLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      return slot < 0 ? null : segment.valueOf(segment.addresses[slot]);
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String delete(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(key);
+    Segment segment = this.segmentOf(hash);
+    segment.lock.writeLock().lock();
+    try {
+      return segment.delete(hash, keyBytes);
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : this.segments) {
+      size += segment.count;
+    }
+    return size;
+  }
+
+  /**
+   * Method passes every entry to an action. Each segment is copied out under its
+   * read lock and passed on after the lock is released, so a slow action doesn't
+   * hold up writers.
+   * @param action receiving each key and value
+   */
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    List<String> entries = new ArrayList<String>();
+    for (Segment segment : this.segments) {
+      segment.lock.readLock().lock();
+      try {
+        for (long address : segment.addresses) {
+          if (address != 0) {
+            entries.add(segment.keyOf(address));
+            entries.add(segment.valueOf(address));
+          }
+        }
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+      for (int i = 0; i < entries.size(); i += 2) {
+        action.accept(entries.get(i), entries.get(i + 1));
+      }
+      entries.clear();
+    }
+  }
+
+  /**
+   * Method returns the off-heap memory taken from the operating system for slabs.
+   * @return bytes allocated
+   */
+  public long getAllocatedBytes() {
+    long bytes = 0;
+    for (Segment segment : this.segments) {
+      bytes += segment.allocatedBytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * Method returns the off-heap memory taken up by live records, rounded up to their
+   * size classes.
+   * @return bytes used
+   */
+  public long getUsedBytes() {
+    long bytes = 0;
+    for (Segment segment : this.segments) {
+      bytes += segment.usedBytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * Helper method to find the segment holding a hash.
+   * @param hash of a key
+   * @return segment
+   */
+  private Segment segmentOf(int hash) {
+    return this.segments[this.segmentShift == 32 ? 0 : hash >>> this.segmentShift];
+  }
+
+  /**
+   * Helper method to hash a key, spreading the bits of String.hashCode.
+   * @param key to hash
+   * @return hash, never 0
+   */
+  private static int hash(String key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    h ^= h >>> 16;
+    return h == 0 ? 1 : h;
+  }
+
+  /**
+   * Helper method to build the chunk sizes of the size classes, each about 25% larger
+   * than the last and a multiple of 8, up to a quarter of a slab.
+   * @return chunk sizes
+   */
+  private static int[] chunkSizes() {
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (int size = MIN_CHUNK; size <= SLAB_BYTES / 4; size = (size + size / 4 + 7) & ~7) {
+      sizes.add(size);
+    }
+    int[] chunkSizes = new int[sizes.size()];
+    for (int i = 0; i < chunkSizes.length; i++) {
+      chunkSizes[i] = sizes.get(i);
+    }
+    return chunkSizes;
+  }
+
+  /**
+   * Helper method to find the smallest size class a record fits in.
+   * @param recordLength bytes of the record
+   * @return size class, or HUGE
+   */
+  private static int classOf(int recordLength) {
+    int low = 0;
+    int high = CHUNK_SIZES.length - 1;
+    if (recordLength > CHUNK_SIZES[high]) {
+      return HUGE;
+    }
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (CHUNK_SIZES[mid] < recordLength) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * One independently locked part of the store. An address packs the slab number plus
+   * one in the high int and the offset in the slab in the low int, so 0 means empty.
+   */
+  private static class Segment {
+
+    private final ReentrantReadWriteLock lock;
+    private long[] addresses; // index of record addresses, 0 for an empty slot
+    private int[] hashes; // key hash of each slot
+    private volatile int count;
+    private final List<ByteBuffer> slabs; // null where a huge record's slab was released
+    private final List<Integer> freeSlabs; // numbers of released slabs, to reuse
+    private final long[] freeChunks; // head of each size class's free list
+    private final long[] carveSlab; // address of the next unused chunk of each class
+    private long allocatedBytes;
+    private long usedBytes;
+
+    private Segment() {
+      this.lock = new ReentrantReadWriteLock();
+      this.addresses = new long[64];
+      this.hashes = new int[64];
+      this.slabs = new ArrayList<ByteBuffer>();
+      this.freeSlabs = new ArrayList<Integer>();
+      this.freeChunks = new long[CHUNK_SIZES.length];
+      this.carveSlab = new long[CHUNK_SIZES.length];
+    }
+
+    /**
+     * Method puts a record, updating it in place if the new one fits the same chunk.
+     * @param hash of the key
+     * @param key bytes
+     * @param value bytes
+     * @return previous value, or null
+     */
+    private String put(int hash, byte[] key, byte[] value) {
+      int length = 8 + key.length + value.length;
+      int slot = this.find(hash, key);
+      if (slot >= 0) {
+        long address = this.addresses[slot];
+        String old = this.valueOf(address);
+        int oldClass = classOf(this.recordLength(address));
+        if (oldClass != HUGE && oldClass == classOf(length)) { // reuse the same chunk
+          this.write(address, key, value);
+        } else {
+          this.free(address);
+          this.addresses[slot] = this.allocate(length);
+          this.write(this.addresses[slot], key, value);
+        }
+        return old;
+      }
+      if (this.count + 1 > this.addresses.length * 3 / 4) {
+        this.resize();
+      }
+      long address = this.allocate(length);
+      this.write(address, key, value);
+      int mask = this.addresses.length - 1;
+      int i = hash & mask;
+      while (this.addresses[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      this.addresses[i] = address;
+      this.hashes[i] = hash;
+      this.count++;
+      return null;
+    }
+
+    /**
+     * Method removes a record, shifting later entries of its probe run back.
+     * @param hash of the key
+     * @param key bytes
+     * @return removed value, or null
+     */
+    private String delete(int hash, byte[] key) {
+      int slot = this.find(hash, key);
+      if (slot < 0) {
+        return null;
+      }
+      long address = this.addresses[slot];
+      String removed = this.valueOf(address);
+      this.free(address);
+      int mask = this.addresses.length - 1;
+      int hole = slot;
+      int i = slot;
+      while (true) {
+        i = (i + 1) & mask;
+        if (this.addresses[i] == 0) {
+          break;
+        }
+        int home = this.hashes[i] & mask;
+        // move the entry back if the hole lies between its home slot and where it is
+        boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+        if (movable) {
+          this.addresses[hole] = this.addresses[i];
+          this.hashes[hole] = this.hashes[i];
+          hole = i;
+        }
+      }
+      this.addresses[hole] = 0;
+      this.hashes[hole] = 0;
+      this.count--;
+      return removed;
+    }
+
+    /**
+     * Method finds the slot of a key.
+     * @param hash of the key
+     * @param key bytes
+     * @return slot, or -1 if the key isn't stored
+     */
+    private int find(int hash, byte[] key) {
+      int mask = this.addresses.length - 1;
+      int i = hash & mask;
+      while (this.addresses[i] != 0) {
+        if (this.hashes[i] == hash && this.keyEquals(this.addresses[i], key)) {
+          return i;
+        }
+        i = (i + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * Method doubles the index, reinserting every entry.
+     */
+    private void resize() {
+      long[] oldAddresses = this.addresses;
+      int[] oldHashes = this.hashes;
+      this.addresses = new long[oldAddresses.length * 2];
+      this.hashes = new int[oldHashes.length * 2];
+      int mask = this.addresses.length - 1;
+      for (int j = 0; j < oldAddresses.length; j++) {
+        if (oldAddresses[j] != 0) {
+          int i = oldHashes[j] & mask;
+          while (this.addresses[i] != 0) {
+            i = (i + 1) & mask;
+          }
+          this.addresses[i] = oldAddresses[j];
+          this.hashes[i] = oldHashes[j];
+        }
+      }
+    }
+
+    /**
+     * Method takes a chunk for a record from the free list of its size class, the
+     * unused end of the class's current slab, or a new slab.
+     * @param length of the record
+     * @return address of the chunk
+     */
+    private long allocate(int length) {
+      int sizeClass = classOf(length);
+      if (sizeClass == HUGE) {
+        this.usedBytes += length;
+        this.allocatedBytes += length;
+        return address(this.addSlab(ByteBuffer.allocateDirect(length)), 0);
+      }
+      int chunk = CHUNK_SIZES[sizeClass];
+      this.usedBytes += chunk;
+      long address = this.freeChunks[sizeClass];
+      if (address != 0) { // unlink the head of the free list
+        this.freeChunks[sizeClass] = this.slabOf(address).getLong(offsetOf(address));
+        return address;
+      }
+      address = this.carveSlab[sizeClass];
+      if (address == 0 || offsetOf(address) + chunk > SLAB_BYTES) {
+        this.allocatedBytes += SLAB_BYTES;
+        address = address(this.addSlab(ByteBuffer.allocateDirect(SLAB_BYTES)), 0);
+      }
+      this.carveSlab[sizeClass] = address + chunk;
+      return address;
+    }
+
+    /**
+     * Method returns a record's chunk to the free list of its size class, or releases
+     * the slab of a huge record.
+     * @param address of the record
+     */
+    private void free(long address) {
+      int length = this.recordLength(address);
+      int sizeClass = classOf(length);
+      if (sizeClass == HUGE) {
+        int slab = (int) (address >>> 32) - 1;
+        this.slabs.set(slab, null);
+        this.freeSlabs.add(slab);
+        this.usedBytes -= length;
+        this.allocatedBytes -= length;
+        return;
+      }
+      this.usedBytes -= CHUNK_SIZES[sizeClass];
+      this.slabOf(address).putLong(offsetOf(address), this.freeChunks[sizeClass]);
+      this.freeChunks[sizeClass] = address;
+    }
+
+    /**
+     * Method adds a slab, reusing the number of a released one if there is one.
+     * @param slab memory
+     * @return slab number
+     */
+    private int addSlab(ByteBuffer slab) {
+      if (!this.freeSlabs.isEmpty()) {
+        int number = this.freeSlabs.remove(this.freeSlabs.size() - 1);
+        this.slabs.set(number, slab);
+        return number;
+      }
+      this.slabs.add(slab);
+      return this.slabs.size() - 1;
+    }
+
+    private void write(long address, byte[] key, byte[] value) {
+      ByteBuffer slab = this.slabOf(address);
+      int offset = offsetOf(address);
+      slab.putInt(offset, key.length).putInt(offset + 4, value.length);
+      slab.put(offset + 8, key).put(offset + 8 + key.length, value);
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+      ByteBuffer slab = this.slabOf(address);
+      int offset = offsetOf(address);
+      if (slab.getInt(offset) != key.length) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (slab.get(offset + 8 + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private String keyOf(long address) {
+      ByteBuffer slab = this.slabOf(address);
+      int offset = offsetOf(address);
+      byte[] bytes = new byte[slab.getInt(offset)];
+      slab.get(offset + 8, bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String valueOf(long address) {
+      ByteBuffer slab = this.slabOf(address);
+      int offset = offsetOf(address);
+      byte[] bytes = new byte[slab.getInt(offset + 4)];
+      slab.get(offset + 8 + slab.getInt(offset), bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int recordLength(long address) {
+      ByteBuffer slab = this.slabOf(address);
+      int offset = offsetOf(address);
+      return 8 + slab.getInt(offset) + slab.getInt(offset + 4);
+    }
+
+    private ByteBuffer slabOf(long address) {
+      return this.slabs.get((int) (address >>> 32) - 1);
+    }
+
+    private static int offsetOf(long address) {
+      return (int) address;
+    }
+
+    private static long address(int slab, int offset) {
+      return ((long) (slab + 1) << 32) | offset;
+    }
+  }
+}
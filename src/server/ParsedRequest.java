@@ -0,0 +1,60 @@
+package server;
+
+/**
+ * Class to hold one text request decoded by a RequestParser.
+ * Instances are reused for every request handled by a thread, so parsing allocates nothing.
+ * The key and value are kept lower cased in scratch arrays and only become Strings
+ * when the store is called.
+ */
+public class ParsedRequest {
+
+  // commands
+  public static final int PUT = 1;
+  public static final int GET = 2;
+  public static final int DELETE = 3;
+
+  protected int command;
+  protected char[] key;
+  protected int keyLength;
+  protected char[] value;
+  protected int valueLength;
+
+  /**
+   * Constructor.
+   */
+  public ParsedRequest() {
+    this.key = new char[64];
+    this.value = new char[64];
+  }
+
+  public int getCommand() {
+    return this.command;
+  }
+
+  /**
+   * Method returns the lower cased key of the request.
+   * @return key
+   */
+  public String key() {
+    return new String(this.key, 0, this.keyLength);
+  }
+
+  /**
+   * Method returns the lower cased value of a put request.
+   * @return value
+   */
+  public String value() {
+    return new String(this.value, 0, this.valueLength);
+  }
+
+  /**
+   * Method to make sure the scratch arrays can hold a field of the given length.
+   * @param length of the longest field
+   */
+  protected void ensureCapacity(int length) {
+    if (this.key.length < length) {
+      this.key = new char[length];
+      this.value = new char[length];
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Class to publish every PUT and DELETE applied to a key, value store, numbered in
+ * order, to the replicas following it. A mutation is applied and published under a
+ * lock striped by key, so each replica receives the mutations of a key in the order
+ * they were applied, while mutations of different keys never wait for each other.
+ * Placed under a DurableKeyValueStore, mutations are published once applied, which may
+ * be before they are on disk, as asynchronous replication allows.
+ */
+public class ReplicatedKeyValueStore implements KeyValueStore {
+
+  private static final int STRIPES = 64; // power of two
+
+  private final KeyValueStore delegate;
+  private final Object[] stripes;
+  private final AtomicLong sequence; // of the last mutation published
+  private final List<Consumer<Mutation>> subscribers;
+
+  /**
+   * Constructor.
+   * @param delegate store holding the data
+   */
+  public ReplicatedKeyValueStore(KeyValueStore delegate) {
+    this.delegate = delegate;
+    this.stripes = new Object[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Object();
+    }
+    this.sequence = new AtomicLong();
+    this.subscribers = new CopyOnWriteArrayList<Consumer<Mutation>>();
+  }
+
+  @Override
+  public String put(String key, String value) {
+    synchronized (this.stripeOf(key)) {
+      String old = this.delegate.put(key, value);
+      this.publish(Mutation.PUT, key, value);
+      return old;
+    }
+  }
+
+  @Override
+  public String get(String key) {
+    return this.delegate.get(key);
+  }
+
+  @Override
+  public String delete(String key) {
+    synchronized (this.stripeOf(key)) {
+      String removed = this.delegate.delete(key);
+      if (removed != null) { // nothing removed, nothing to replicate
+        this.publish(Mutation.DELETE, key, null);
+      }
+      return removed;
+    }
+  }
+
+  @Override
+  public int size() {
+    return this.delegate.size();
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, String> action) {
+    this.delegate.forEach(action);
+  }
+
+  /**
+   * Method starts sending every mutation applied from now on to a subscriber.
+   * Mutations applied before this call are in the store for forEach to read, so
+   * reading the store after subscribing and then applying the mutations received
+   * leaves a copy equal to the store, with some mutations possibly applied twice.
+   * @param subscriber called on the mutating thread, must not block
+   * @return sequence number of the last mutation before subscribing
+   */
+  public long subscribe(Consumer<Mutation> subscriber) {
+    this.subscribers.add(subscriber);
+    return this.sequence.get();
+  }
+
+  /**
+   * Method stops sending mutations to a subscriber.
+   * @param subscriber to remove
+   */
+  public void unsubscribe(Consumer<Mutation> subscriber) {
+    this.subscribers.remove(subscriber);
+  }
+
+  public long getSequence() {
+    return this.sequence.get();
+  }
+
+  public KeyValueStore getDelegate() {
+    return this.delegate;
+  }
+
+  /**
+   * Helper method to number a mutation and hand it to every subscriber.
+   * Called holding the key's stripe.
+   * @param op Mutation.PUT or DELETE
+   * @param key mutated
+   * @param value stored, null for DELETE
+   */
+  private void publish(byte op, String key, String value) {
+    if (this.subscribers.isEmpty()) { // only numbered, nobody is following
+      this.sequence.incrementAndGet();
+      return;
+    }
+    Mutation mutation = new Mutation(op, this.sequence.incrementAndGet(),
+            System.currentTimeMillis(), key, value);
+    for (Consumer<Mutation> subscriber : this.subscribers) {
+      subscriber.accept(mutation);
+    }
+  }
+
+  /**
+   * Helper method to find the lock ordering mutations of a key.
+   * @param key being mutated
+   * @return stripe lock
+   */
+  private Object stripeOf(String key) {
+    int h = key.hashCode();
+    return this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * A numbered PUT or DELETE, as sent to replicas.
+   */
+  public static final class Mutation {
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+
+    private final byte op;
+    private final long sequence;
+    private final long commitMillis; // primary's clock when applied
+    private final String key;
+    private final String value;
+
+    /**
+     * Constructor.
+     * @param op PUT or DELETE
+     * @param sequence number of the mutation
+     * @param commitMillis when the mutation was applied, by the primary's clock
+     * @param key mutated
+     * @param value stored, null for DELETE
+     */
+    public Mutation(byte op, long sequence, long commitMillis, String key, String value) {
+      this.op = op;
+      this.sequence = sequence;
+      this.commitMillis = commitMillis;
+      this.key = key;
+      this.value = value;
+    }
+
+    public byte getOp() {
+      return this.op;
+    }
+
+    public long getSequence() {
+      return this.sequence;
+    }
+
+    public long getCommitMillis() {
+      return this.commitMillis;
+    }
+
+    public String getKey() {
+      return this.key;
+    }
+
+    public String getValue() {
+      return this.value;
+    }
+  }
+}
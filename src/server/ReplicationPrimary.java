@@ -0,0 +1,232 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Class to stream a primary server's mutations to its replicas over a dedicated TCP port.
+ * Each replica that connects first receives a copy of the whole store, then every
+ * mutation applied since it connected, in order, in batches of whatever has queued up
+ * while the last batch was written. An idle stream carries a heartbeat every second, so
+ * replicas can tell how far behind they are. Mutations are queued per replica without
+ * blocking the writers; a replica that falls too far behind is disconnected and copies
+ * the store again when it reconnects.
+ * Stream records: SNAPSHOT key value, SNAPSHOT_END sequence, MUTATIONS primary sequence,
+ * primary millis, count, then op, sequence, commit millis, key and, for PUT, value, and
+ * HEARTBEAT primary sequence, primary millis. Strings are int length prefixed UTF-8.
+ */
+public class ReplicationPrimary implements Runnable {
+
+  static final byte SNAPSHOT = 'S';
+  static final byte SNAPSHOT_END = 'E';
+  static final byte MUTATIONS = 'M';
+  static final byte HEARTBEAT = 'H';
+
+  private static final int MAX_BATCH = 4096; // mutations per batch
+  private static final int MAX_PENDING = 1 << 20; // mutations queued per replica
+  private static final long HEARTBEAT_MILLIS = 1000;
+
+  private final ReplicatedKeyValueStore store;
+  private final ServerSocket serverSocket;
+  private final ServerLogger logger;
+  private final List<Session> sessions;
+
+  /**
+   * Constructor. Opens the replication port.
+   * @param store publishing the mutations to replicate
+   * @param port for replicas to connect to
+   * @param logger of the server
+   * @throws IOException if the port can't be opened
+   */
+  public ReplicationPrimary(ReplicatedKeyValueStore store, int port, ServerLogger logger)
+          throws IOException {
+    this.store = store;
+    this.serverSocket = new ServerSocket(port);
+    this.logger = logger;
+    this.sessions = new CopyOnWriteArrayList<Session>();
+  }
+
+  /**
+   * Method starts accepting replicas on a background thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "replication-primary");
+    thread.setDaemon(true);
+    thread.start();
+    this.logger.logMessage("Accepting replicas on port " + this.serverSocket.getLocalPort() +
+            ".");
+  }
+
+  /**
+   * Method to accept replicas until the port is closed, streaming to each on its own thread.
+   */
+  @Override
+  public void run() {
+    while (!this.serverSocket.isClosed()) {
+      try {
+        Socket socket = this.serverSocket.accept();
+        Thread thread = new Thread(new Session(socket), "replication-" +
+                socket.getRemoteSocketAddress());
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        if (!this.serverSocket.isClosed()) {
+          this.logger.logMessage("Error accepting replica: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Method describes the primary and its replicas for stats requests.
+   * @return status
+   */
+  public String status() {
+    StringBuilder status = new StringBuilder("replication primary, sequence ")
+            .append(this.store.getSequence()).append(", ").append(this.sessions.size())
+            .append(" replicas");
+    for (Session session : this.sessions) {
+      status.append(", ").append(session.socket.getInetAddress()).append(" port ")
+              .append(session.socket.getPort()).append(" pending ")
+              .append(session.queue.size());
+    }
+    return status.toString();
+  }
+
+  /**
+   * Method stops accepting replicas. Connected replicas are dropped with the process.
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    this.serverSocket.close();
+  }
+
+  /**
+   * Helper method to write an int length prefixed UTF-8 string.
+   * @param out stream to write to
+   * @param text to write
+   * @throws IOException
+   */
+  static void writeString(DataOutputStream out, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Stream to one replica.
+   */
+  private class Session implements Runnable, Consumer<ReplicatedKeyValueStore.Mutation> {
+
+    private final Socket socket;
+    private final BlockingQueue<ReplicatedKeyValueStore.Mutation> queue;
+
+    /**
+     * Constructor.
+     * @param socket connected to the replica
+     */
+    private Session(Socket socket) {
+      this.socket = socket;
+      this.queue = new ArrayBlockingQueue<ReplicatedKeyValueStore.Mutation>(MAX_PENDING);
+    }
+
+    /**
+     * Method queues a mutation for the replica, called by the thread that applied it.
+     * @param mutation to send
+     */
+    @Override
+    public void accept(ReplicatedKeyValueStore.Mutation mutation) {
+      if (!this.queue.offer(mutation)) { // too far behind, it resyncs on reconnecting
+        ReplicationPrimary.this.store.unsubscribe(this);
+        try {
+          this.socket.close();
+        } catch (IOException e) {
+          System.err.println("Error closing replica connection: " + e.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Method to send the store, then mutations, until the replica disconnects.
+     */
+    @Override
+    public void run() {
+      ReplicatedKeyValueStore store = ReplicationPrimary.this.store;
+      ServerLogger logger = ReplicationPrimary.this.logger;
+      ReplicationPrimary.this.sessions.add(this);
+      long sequence = store.subscribe(this);
+      logger.logMessage("Replica " + this.socket.getRemoteSocketAddress() +
+              " connected, sending " + store.size() + " keys.");
+      try (Socket s = this.socket;
+           DataOutputStream out = new DataOutputStream(
+                   new BufferedOutputStream(s.getOutputStream(), 1 << 16))) {
+        try {
+          store.forEach((key, value) -> {
+            try {
+              out.writeByte(SNAPSHOT);
+              writeString(out, key);
+              writeString(out, value);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+        out.writeByte(SNAPSHOT_END);
+        out.writeLong(sequence);
+        out.flush();
+        List<ReplicatedKeyValueStore.Mutation> batch =
+                new ArrayList<ReplicatedKeyValueStore.Mutation>(MAX_BATCH);
+        while (true) {
+          ReplicatedKeyValueStore.Mutation first = this.queue.poll(HEARTBEAT_MILLIS,
+                  TimeUnit.MILLISECONDS);
+          if (first == null) {
+            out.writeByte(HEARTBEAT);
+            out.writeLong(store.getSequence());
+            out.writeLong(System.currentTimeMillis());
+            out.flush();
+            continue;
+          }
+          batch.add(first);
+          this.queue.drainTo(batch, MAX_BATCH - 1);
+          out.writeByte(MUTATIONS);
+          out.writeLong(store.getSequence());
+          out.writeLong(System.currentTimeMillis());
+          out.writeInt(batch.size());
+          for (ReplicatedKeyValueStore.Mutation mutation : batch) {
+            out.writeByte(mutation.getOp());
+            out.writeLong(mutation.getSequence());
+            out.writeLong(mutation.getCommitMillis());
+            writeString(out, mutation.getKey());
+            if (mutation.getOp() == ReplicatedKeyValueStore.Mutation.PUT) {
+              writeString(out, mutation.getValue());
+            }
+          }
+          out.flush();
+          batch.clear();
+        }
+      } catch (IOException e) {
+        logger.logMessage("Replica " + this.socket.getRemoteSocketAddress() +
+                " disconnected: " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        store.unsubscribe(this);
+        ReplicationPrimary.this.sessions.remove(this);
+      }
+    }
+  }
+}
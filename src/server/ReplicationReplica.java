@@ -0,0 +1,216 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class to keep a replica server's store a copy of a primary's, by following the
+ * primary's replication stream. On connecting, the store is overwritten with the
+ * primary's copy, and keys the primary no longer has are removed; from then on every
+ * mutation the primary applies is applied here in the same order per key. A lost
+ * connection is retried every second, copying the store again.
+ * Lag is measured by the primary's clock: how much older the newest mutation applied
+ * here is than the last batch or heartbeat received, while the primary reports more
+ * mutations than have been applied, so clocks of different machines are never compared.
+ */
+public class ReplicationReplica implements Runnable, ReplicationReplicaMXBean {
+
+  private static final long RETRY_MILLIS = 1000;
+
+  private final KeyValueStore store;
+  private final String host;
+  private final int port;
+  private final ServerLogger logger;
+  private volatile boolean connected;
+  private volatile long appliedSequence;
+  private volatile long primarySequence; // as of the last batch or heartbeat
+  private volatile long primaryMillis; // primary's clock at the last batch or heartbeat
+  private volatile long appliedMillis; // primary's clock when the newest mutation applied
+
+  /**
+   * Constructor.
+   * @param store to keep a copy of the primary's in
+   * @param host of the primary
+   * @param port of the primary's replication port
+   * @param logger of the server
+   */
+  public ReplicationReplica(KeyValueStore store, String host, int port, ServerLogger logger) {
+    this.store = store;
+    this.host = host;
+    this.port = port;
+    this.logger = logger;
+  }
+
+  /**
+   * Method starts following the primary on a background thread, and publishes the
+   * replication state over JMX as "server:type=ReplicationReplica".
+   */
+  public void start() {
+    Thread thread = new Thread(this, "replication-replica");
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+              new ObjectName("server:type=ReplicationReplica"));
+    } catch (JMException e) {
+      this.logger.logMessage("Unable to publish replication state over JMX: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Method to follow the primary, reconnecting whenever the connection is lost.
+   */
+  @Override
+  public void run() {
+    while (true) {
+      try (Socket socket = new Socket(this.host, this.port)) {
+        this.logger.logMessage("Connected to primary " + this.host + ":" + this.port + ".");
+        this.follow(new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                1 << 16)));
+      } catch (IOException e) {
+        this.logger.logMessage("Lost primary " + this.host + ":" + this.port + ": " +
+                e.getMessage());
+      } finally {
+        this.connected = false;
+      }
+      try {
+        Thread.sleep(RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Method describes the replica's state for stats requests.
+   * @return status
+   */
+  public String status() {
+    return "replica of " + this.host + " port " + this.port + ", " + // no ':' in replies
+            (this.connected ? "connected" : "disconnected") + ", applied " +
+            this.appliedSequence + " of " + this.primarySequence + ", lag " +
+            this.getLagMutations() + " mutations, " + this.getLagMillis() + " ms";
+  }
+
+  @Override
+  public boolean isConnected() {
+    return this.connected;
+  }
+
+  @Override
+  public long getAppliedSequence() {
+    return this.appliedSequence;
+  }
+
+  @Override
+  public long getPrimarySequence() {
+    return this.primarySequence;
+  }
+
+  @Override
+  public long getLagMutations() {
+    return Math.max(0, this.primarySequence - this.appliedSequence);
+  }
+
+  @Override
+  public long getLagMillis() {
+    if (this.getLagMutations() == 0) {
+      return 0;
+    }
+    return Math.max(0, this.primaryMillis - this.appliedMillis);
+  }
+
+  /**
+   * Helper method to copy the primary's store, then apply its mutations until the
+   * connection is lost.
+   * @param in stream from the primary
+   * @throws IOException if the connection is lost or the stream is malformed
+   */
+  private void follow(DataInputStream in) throws IOException {
+    Set<String> copied = new HashSet<String>();
+    while (true) {
+      byte type = in.readByte();
+      if (type == ReplicationPrimary.SNAPSHOT) {
+        String key = readString(in);
+        this.store.put(key, readString(in));
+        copied.add(key);
+      } else if (type == ReplicationPrimary.SNAPSHOT_END) {
+        long sequence = in.readLong();
+        this.removeAllBut(copied);
+        this.logger.logMessage("Copied " + copied.size() + " keys from primary, sequence " +
+                sequence + ".");
+        copied = null;
+        this.appliedSequence = sequence;
+        this.primarySequence = Math.max(this.primarySequence, sequence);
+        this.connected = true;
+      } else if (type == ReplicationPrimary.MUTATIONS) {
+        long primarySequence = in.readLong();
+        long primaryMillis = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          byte op = in.readByte();
+          long sequence = in.readLong();
+          long commitMillis = in.readLong();
+          String key = readString(in);
+          if (op == ReplicatedKeyValueStore.Mutation.PUT) {
+            this.store.put(key, readString(in));
+          } else {
+            this.store.delete(key);
+          }
+          this.appliedMillis = commitMillis;
+          this.appliedSequence = Math.max(this.appliedSequence, sequence);
+        }
+        this.primaryMillis = primaryMillis;
+        this.primarySequence = primarySequence;
+      } else if (type == ReplicationPrimary.HEARTBEAT) {
+        this.primarySequence = in.readLong();
+        this.primaryMillis = in.readLong();
+      } else {
+        throw new IOException("Unknown replication record " + type + ".");
+      }
+    }
+  }
+
+  /**
+   * Helper method to remove every key not copied from the primary, left from before
+   * the connection was lost.
+   * @param copied keys copied from the primary
+   */
+  private void removeAllBut(Set<String> copied) {
+    List<String> stale = new ArrayList<String>();
+    this.store.forEach((key, value) -> {
+      if (!copied.contains(key)) {
+        stale.add(key);
+      }
+    });
+    for (String key : stale) {
+      this.store.delete(key);
+    }
+  }
+
+  /**
+   * Helper method to read an int length prefixed UTF-8 string.
+   * @param in stream to read from
+   * @return string
+   * @throws IOException
+   */
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Negative string length in replication stream.");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,17 @@
+package server;
+
+/**
+ * Interface for the replication state of a replica published over JMX.
+ */
+public interface ReplicationReplicaMXBean {
+
+  boolean isConnected();
+
+  long getAppliedSequence();
+
+  long getPrimarySequence();
+
+  long getLagMutations();
+
+  long getLagMillis();
+}
@@ -0,0 +1,173 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Class to parse text packets of the form "checksum:command, key[, value]" straight
+ * from the received bytes. One pass finds the checksum, the command and the key and
+ * value slices, commands are matched case insensitively byte by byte, and the
+ * checksum is computed over the raw bytes, so nothing is allocated per request.
+ * A parser and its ParsedRequest are reused by one thread, they are not thread safe.
+ * Only well formed, intact, ASCII put, get and delete requests are accepted; anything
+ * else is left to the String based path in AbstractServer, which reports the error.
+ */
+public class RequestParser {
+
+  private static final byte[] PUT = {'p', 'u', 't'};
+  private static final byte[] GET = {'g', 'e', 't'};
+  private static final byte[] DELETE = {'d', 'e', 'l', 'e', 't', 'e'};
+
+  private final CRC32 crc;
+  private final int[] commas; // positions of the field separators
+
+  /**
+   * Constructor.
+   */
+  public RequestParser() {
+    this.crc = new CRC32();
+    this.commas = new int[2];
+  }
+
+  /**
+   * Method parses a text packet into the given request.
+   * The buffer's position and limit are left as they were.
+   * @param buffer holding the packet
+   * @param offset of the first byte of the packet
+   * @param length of the packet
+   * @param request to fill in
+   * @return true if the packet is a valid put, get or delete with a matching checksum
+   */
+  public boolean parse(ByteBuffer buffer, int offset, int length, ParsedRequest request) {
+    int end = offset + length;
+    // checksum header, decimal digits up to the only ':'
+    long checksum = 0;
+    int colon = -1;
+    for (int i = offset; i < end && i - offset <= 10; i++) {
+      byte b = buffer.get(i);
+      if (b == ':') {
+        colon = i;
+        break;
+      }
+      if (b < '0' || b > '9' || (checksum == 0 && i > offset)) { // no leading zeros
+        return false;
+      }
+      checksum = checksum * 10 + (b - '0');
+    }
+    if (colon <= offset) {
+      return false;
+    }
+    // request, single pass for separators and non ASCII bytes
+    int start = colon + 1;
+    int separators = 0;
+    for (int i = start; i < end; i++) {
+      byte b = buffer.get(i);
+      if (b < 0 || b == ':') { // other encodings and extra colons take the String path
+        return false;
+      }
+      if (b == ',') {
+        if (separators == 2) {
+          return false;
+        }
+        this.commas[separators++] = i;
+      }
+    }
+    if (separators == 0 || this.commas[separators - 1] == end - 1 ||
+            this.checksum(buffer, start, end) != checksum) { // trailing empty field is malformed
+      return false;
+    }
+    int command = matchCommand(buffer, start, this.commas[0]);
+    if (command == 0 || (command == ParsedRequest.PUT) != (separators == 2)) {
+      return false;
+    }
+    request.command = command;
+    request.ensureCapacity(end - start);
+    int keyEnd = separators == 2 ? this.commas[1] : end;
+    request.keyLength = copyLowerCase(buffer, this.commas[0] + 1, keyEnd, request.key);
+    request.valueLength = separators == 2
+            ? copyLowerCase(buffer, this.commas[1] + 1, end, request.value) : 0;
+    return true;
+  }
+
+  /**
+   * Helper method to compute the CRC32 of a slice without moving the buffer.
+   * @param buffer holding the slice
+   * @param start of the slice
+   * @param end of the slice, exclusive
+   * @return checksum
+   */
+  private long checksum(ByteBuffer buffer, int start, int end) {
+    this.crc.reset();
+    if (buffer.hasArray()) {
+      this.crc.update(buffer.array(), buffer.arrayOffset() + start, end - start);
+    } else {
+      int position = buffer.position();
+      int limit = buffer.limit();
+      buffer.limit(end).position(start);
+      this.crc.update(buffer);
+      buffer.limit(limit).position(position);
+    }
+    return this.crc.getValue();
+  }
+
+  /**
+   * Helper method to match the command slice, ignoring case. Like the String path,
+   * whitespace around the command is not allowed.
+   * @param buffer holding the packet
+   * @param start of the command
+   * @param end of the command, exclusive
+   * @return command constant, or 0 if not a known command
+   */
+  private static int matchCommand(ByteBuffer buffer, int start, int end) {
+    if (matches(buffer, start, end, PUT)) {
+      return ParsedRequest.PUT;
+    } else if (matches(buffer, start, end, GET)) {
+      return ParsedRequest.GET;
+    } else if (matches(buffer, start, end, DELETE)) {
+      return ParsedRequest.DELETE;
+    }
+    return 0;
+  }
+
+  /**
+   * Helper method to compare a slice to a lower case word, ignoring case.
+   * @param buffer holding the slice
+   * @param start of the slice
+   * @param end of the slice, exclusive
+   * @param word lower case letters
+   * @return true if equal
+   */
+  private static boolean matches(ByteBuffer buffer, int start, int end, byte[] word) {
+    if (end - start != word.length) {
+      return false;
+    }
+    for (int i = 0; i < word.length; i++) {
+      if ((buffer.get(start + i) | 0x20) != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Helper method to copy a slice into a char array, trimmed and lower cased.
+   * @param buffer holding the slice
+   * @param start of the slice
+   * @param end of the slice, exclusive
+   * @param target to copy into
+   * @return number of chars copied
+   */
+  private static int copyLowerCase(ByteBuffer buffer, int start, int end, char[] target) {
+    while (start < end && buffer.get(start) <= ' ') {
+      start++;
+    }
+    while (end > start && buffer.get(end - 1) <= ' ') {
+      end--;
+    }
+    for (int i = start; i < end; i++) {
+      byte b = buffer.get(i);
+      target[i - start] = (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+    }
+    return end - start;
+  }
+}
@@ -0,0 +1,277 @@
+package server;
+
+import common.LatencyHistogram;
+import common.LatencyRecorder;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class to count what the server does: requests and their latency per operation,
+ * malformed requests, checksum failures, store errors, retransmitted datagrams answered
+ * from the dedup cache, bytes in and out, and connections.
+ * Counters are LongAdders and latencies go to striped LatencyRecorders, so recording
+ * takes no lock and threads serving different clients rarely touch the same counter.
+ * The totals are read through report(), answered to "stats" requests, and over JMX.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+  /**
+   * Operations with their own request count and latency histogram.
+   */
+  public enum Operation { PUT, GET, DELETE, MGET, MPUT, MDELETE, EXPIRE, SCAN }
+
+  private static final double[] PERCENTILES = {50, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p99.9"};
+
+  private final long startNanos;
+  private final LatencyRecorder[] latencies; // by operation, in nanoseconds
+  private final LongAdder malformed;
+  private final LongAdder checksumFailures;
+  private final LongAdder errors;
+  private final LongAdder duplicates;
+  private final LongAdder bytesIn;
+  private final LongAdder bytesOut;
+  private final LongAdder activeConnections;
+  private final LongAdder totalConnections;
+
+  /**
+   * Constructor.
+   */
+  public ServerMetrics() {
+    this.startNanos = System.nanoTime();
+    this.latencies = new LatencyRecorder[Operation.values().length];
+    for (int i = 0; i < this.latencies.length; i++) {
+      this.latencies[i] = new LatencyRecorder();
+    }
+    this.malformed = new LongAdder();
+    this.checksumFailures = new LongAdder();
+    this.errors = new LongAdder();
+    this.duplicates = new LongAdder();
+    this.bytesIn = new LongAdder();
+    this.bytesOut = new LongAdder();
+    this.activeConnections = new LongAdder();
+    this.totalConnections = new LongAdder();
+  }
+
+  /**
+   * Method records a served request and how long it took.
+   * @param operation requested
+   * @param startNanos System.nanoTime() when serving the request started
+   */
+  public void record(Operation operation, long startNanos) {
+    this.latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+  }
+
+  public void malformed() {
+    this.malformed.increment();
+  }
+
+  public void checksumFailure() {
+    this.checksumFailures.increment();
+  }
+
+  public void error() {
+    this.errors.increment();
+  }
+
+  public void duplicate() {
+    this.duplicates.increment();
+  }
+
+  public void bytesIn(long bytes) {
+    this.bytesIn.add(bytes);
+  }
+
+  public void bytesOut(long bytes) {
+    this.bytesOut.add(bytes);
+  }
+
+  public void connectionOpened() {
+    this.activeConnections.increment();
+    this.totalConnections.increment();
+  }
+
+  public void connectionClosed() {
+    this.activeConnections.decrement();
+  }
+
+  /**
+   * Method wraps a stream from a client so every byte read is counted.
+   * @param in stream to count
+   * @return counting stream
+   */
+  public InputStream countIn(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          ServerMetrics.this.bytesIn.increment();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+          ServerMetrics.this.bytesIn.add(read);
+        }
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Method wraps a stream to a client so every byte written is counted.
+   * @param out stream to count
+   * @return counting stream
+   */
+  public OutputStream countOut(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        this.out.write(b);
+        ServerMetrics.this.bytesOut.increment();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        this.out.write(b, off, len);
+        ServerMetrics.this.bytesOut.add(len);
+      }
+    };
+  }
+
+  /**
+   * Method publishes the metrics over JMX under "server:type=ServerMetrics,name=" + name.
+   * Failing to publish is logged and otherwise ignored, the server runs without it.
+   * @param name distinguishing this server, such as its protocol and port
+   * @param logger to report failures to
+   */
+  public void register(String name, ServerLogger logger) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+              new ObjectName("server:type=ServerMetrics,name=" + ObjectName.quote(name)));
+    } catch (JMException e) {
+      logger.logMessage("Unable to publish metrics over JMX: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Method summarizes every metric on one line, as answered to a "stats" request.
+   * @return summary
+   */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    report.append("uptime ").append(this.getUptimeSeconds()).append("s; connections ")
+            .append(this.activeConnections.sum()).append(" active, ")
+            .append(this.totalConnections.sum()).append(" total; bytes ")
+            .append(this.bytesIn.sum()).append(" in, ").append(this.bytesOut.sum())
+            .append(" out; malformed ").append(this.malformed.sum())
+            .append("; checksum failures ").append(this.checksumFailures.sum())
+            .append("; errors ").append(this.errors.sum())
+            .append("; duplicates ").append(this.duplicates.sum());
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = this.latencies[operation.ordinal()].snapshot();
+      report.append("; ").append(operation).append(' ').append(histogram.getTotalCount())
+              .append(" requests");
+      if (histogram.getTotalCount() > 0) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+          report.append(", ").append(PERCENTILE_NAMES[i]).append(' ')
+                  .append(toMicros(histogram.getValueAtPercentile(PERCENTILES[i]))).append("us");
+        }
+        report.append(", max ").append(toMicros(histogram.getMax())).append("us");
+      }
+    }
+    return report.append('.').toString();
+  }
+
+  @Override
+  public long getUptimeSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.startNanos);
+  }
+
+  @Override
+  public long getActiveConnections() {
+    return this.activeConnections.sum();
+  }
+
+  @Override
+  public long getTotalConnections() {
+    return this.totalConnections.sum();
+  }
+
+  @Override
+  public long getBytesIn() {
+    return this.bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return this.bytesOut.sum();
+  }
+
+  @Override
+  public long getMalformedCount() {
+    return this.malformed.sum();
+  }
+
+  @Override
+  public long getChecksumFailureCount() {
+    return this.checksumFailures.sum();
+  }
+
+  @Override
+  public long getErrorCount() {
+    return this.errors.sum();
+  }
+
+  @Override
+  public long getDuplicateCount() {
+    return this.duplicates.sum();
+  }
+
+  @Override
+  public Map<String, Long> getRequestCounts() {
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    for (Operation operation : Operation.values()) {
+      counts.put(operation.name(),
+              this.latencies[operation.ordinal()].snapshot().getTotalCount());
+    }
+    return counts;
+  }
+
+  @Override
+  public Map<String, Long> getLatencyMicros() {
+    Map<String, Long> latency = new LinkedHashMap<String, Long>();
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = this.latencies[operation.ordinal()].snapshot();
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        latency.put(operation + " " + PERCENTILE_NAMES[i],
+                toMicros(histogram.getValueAtPercentile(PERCENTILES[i])));
+      }
+      latency.put(operation + " max", toMicros(histogram.getMax()));
+    }
+    return latency;
+  }
+
+  /**
+   * Helper method to convert nanoseconds to microseconds.
+   * @param nanos to convert
+   * @return microseconds
+   */
+  private static long toMicros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
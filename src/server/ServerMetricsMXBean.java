@@ -0,0 +1,40 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * Interface for the server metrics published over JMX, for jconsole or any JMX client.
+ * Latencies are in microseconds.
+ */
+public interface ServerMetricsMXBean {
+
+  long getUptimeSeconds();
+
+  long getActiveConnections();
+
+  long getTotalConnections();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getMalformedCount();
+
+  long getChecksumFailureCount();
+
+  long getErrorCount();
+
+  long getDuplicateCount();
+
+  /**
+   * Method returns the number of requests served for each operation.
+   * @return request count by operation name
+   */
+  Map<String, Long> getRequestCounts();
+
+  /**
+   * Method returns the latency percentiles of each operation, keyed like "GET p99".
+   * @return latency in microseconds by operation and percentile
+   */
+  Map<String, Long> getLatencyMicros();
+}
@@ -1,24 +1,37 @@
 package server;
 
+import common.BinaryFrame;
+import common.ChunkAssembler;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 // Helper Class for Server
 public class ServerTCP extends AbstractServer {
 
+  private static final int REPLY_BUFFER = 8192; // queued replies, written through when full
+
   private ServerSocket socket;
   private Socket s;
   private InputStream sIn;
   private DataInputStream dis;
   private OutputStream sout;
   private DataOutputStream dos;
+  private ServerSocketChannel serverChannel; // used when serving many clients
+  private long unflushed; // most bytes queued since the last flush, to see when it writes
 
   /**
    * Constructor.
@@ -27,6 +40,14 @@ public class ServerTCP extends AbstractServer {
     super();
   }
 
+  /**
+   * Constructor.
+   * @param store to serve requests from
+   */
+  public ServerTCP(KeyValueStore store) {
+    super(store);
+  }
+
   /**
    * Method initializes a new socket and waits for a client.
    * @param port of socket
@@ -44,6 +65,7 @@ public class ServerTCP extends AbstractServer {
    */
   public void acknowledgeConnectionWithClient() {
     this.clientAddress = this.socket.getInetAddress();
+    this.metrics.connectionOpened();
     this.logger.logMessage("Connection with " + this.clientAddress + " established.");
     System.out.println("Connection with Client Established");
   }
@@ -56,7 +78,7 @@ public class ServerTCP extends AbstractServer {
    */
   public String[] receiveData() throws IOException {
     // get input
-    this.sIn = this.s.getInputStream();
+    this.sIn = this.metrics.countIn(this.s.getInputStream());
     this.dis = new DataInputStream(sIn);
     String packet = new String(this.dis.readUTF()); // decode response
     String[] parsedPacket = this.extractChecksum(packet);
@@ -81,7 +103,7 @@ public class ServerTCP extends AbstractServer {
   public String sendPacket(String result) throws IOException {
     this.logger.logMessage("Sending to client: " + result);
 
-    this.sout = this.s.getOutputStream();
+    this.sout = this.metrics.countOut(this.s.getOutputStream());
     this.dos = new DataOutputStream(sout);
     String packagedResult = this.getChecksum(result);
     // send note back to client.client
@@ -89,11 +111,80 @@ public class ServerTCP extends AbstractServer {
     return result;
   }
 
+  /**
+   * Method to queue a response to the client without sending it yet.
+   * Queued responses go out together on the next flushPackets.
+   * @param result message for client
+   * @throws IOException
+   */
+  public void queuePacket(String result) throws IOException {
+    this.logger.logMessage("Sending to client: " + result);
+    if (this.sout == null) {
+      this.sout = new BufferedOutputStream(this.metrics.countOut(this.s.getOutputStream()),
+              REPLY_BUFFER);
+      this.dos = new DataOutputStream(this.sout);
+    }
+    String packet = this.getChecksum(result);
+    this.reserve(2 + 3L * packet.length());
+    this.dos.writeUTF(packet);
+  }
+
+  /**
+   * Method sends queued responses once no more requests are waiting to be read,
+   * so a client pipelining requests gets its replies in one write.
+   * @param force to flush even if requests are waiting
+   * @throws IOException
+   */
+  public void flushPackets(boolean force) throws IOException {
+    if (force || this.s.getInputStream().available() == 0) {
+      this.awaitQueued();
+      this.dos.flush();
+      this.unflushed = 0;
+    }
+  }
+
+  /**
+   * Helper method to make room for a reply. Puts and deletes don't wait for the
+   * write-ahead log one by one: the replies queued since the last flush only wait, once,
+   * before they can reach the client, at the flush or when the buffer fills up.
+   * @param bytes the reply may take
+   * @throws IOException if the write-ahead log failed
+   */
+  private void reserve(long bytes) throws IOException {
+    if (this.unflushed + bytes > REPLY_BUFFER) { // the buffer may write through
+      this.awaitQueued();
+    }
+    this.unflushed += bytes;
+  }
+
+  /**
+   * Helper method to wait until the mutations answered by the queued replies are
+   * durable, then go on deferring.
+   * @throws IOException if the write-ahead log failed
+   */
+  private void awaitQueued() throws IOException {
+    this.awaitDurable(this.takeDeferred());
+    this.deferDurability();
+  }
+
   /**
    * Method to run accepting multiple inputs from a given client.
    * @throws IOException
    */
   public void acceptNotesFromClient() throws IOException, InterruptedException {
+    this.deferDurability();
+    try {
+      this.serveNotes();
+    } finally {
+      this.takeDeferred();
+    }
+  }
+
+  /**
+   * Helper method to serve the client's notes, then its binary frames if it switches.
+   * @throws IOException
+   */
+  private void serveNotes() throws IOException {
     String result = "";
     Boolean flag = true;
 
@@ -104,6 +195,11 @@ public class ServerTCP extends AbstractServer {
         result = "Quit requested. Server shutting down.";
         System.out.println(result);
         this.logger.logMessage(result);
+      } else if (this.isNegotiateRequest(parsedPacket)) { // rest of session is binary
+        this.queuePacket(this.negotiate(parsedPacket));
+        this.flushPackets(true);
+        this.acceptFramesFromClient();
+        return;
       } else {
         if (this.validateMessage(parsedPacket)) { // confirm checksum matches
           result = this.processRequest(parsedPacket); // confirm request is ok and process
@@ -112,7 +208,112 @@ public class ServerTCP extends AbstractServer {
         }
       }
       this.logger.logMessage(result);
-      this.sendPacket(result);
+      this.queuePacket(result);
+      this.flushPackets(!flag);
+    }
+  }
+
+  /**
+   * Method to run accepting binary frames from a given client until it disconnects.
+   * @throws IOException
+   */
+  public void acceptFramesFromClient() throws IOException {
+    this.logger.logMessage("Connection with " + this.clientAddress +
+            " switched to binary frames.");
+    ChunkAssembler chunks = new ChunkAssembler(MAX_CHUNKED_BYTES);
+    while (true) {
+      BinaryFrame request;
+      try {
+        request = chunks.add(BinaryFrame.read(this.dis));
+      } catch (EOFException e) { // client closed the connection
+        System.out.println("Client disconnected. Server shutting down.");
+        this.logger.logMessage("Client disconnected. Server shutting down.");
+        return;
+      }
+      if (request == null) { // more chunks of a value to come
+        continue;
+      }
+      for (BinaryFrame response : this.respondToStream(request, this.clientAddress)) {
+        this.logger.logMessage("Sending to client: " + this.describeResponse(response));
+        this.reserve(4 + response.length());
+        response.write(this.dos);
+      }
+      this.flushPackets(false);
+    }
+  }
+
+  /**
+   * Method runs the server with non-blocking event loops, serving any number of clients
+   * at once. This thread accepts connections and hands them round robin to the loops,
+   * which share this server's key, value store. A "q" only ends the sending client's session.
+   * @param port of socket
+   * @param loops number of event loop threads
+   * @throws IOException
+   */
+  public void runEventLoops(int port, int loops) throws IOException {
+    this.port = port;
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(new InetSocketAddress(port), 1024);
+    ServerTCPEventLoop[] eventLoops = new ServerTCPEventLoop[loops];
+    for (int i = 0; i < loops; i++) {
+      eventLoops[i] = new ServerTCPEventLoop(this);
+      Thread thread = new Thread(eventLoops[i], "event-loop-" + i);
+      thread.start();
+    }
+    System.out.println("Server accepting connections on port " + port + " with " + loops +
+            " event loops.");
+    this.logger.logMessage("Server accepting connections on port " + port + " with " + loops +
+            " event loops.");
+    int next = 0;
+    try {
+      while (this.serverChannel.isOpen()) {
+        SocketChannel channel = this.serverChannel.accept();
+        eventLoops[next].register(channel);
+        next = (next + 1) % loops;
+      }
+    } finally {
+      for (ServerTCPEventLoop eventLoop : eventLoops) {
+        eventLoop.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Method runs the server with one blocking session per client. This thread accepts
+   * connections and submits each one to the executor, where it runs on its own thread
+   * against this server's key, value store. A "q" only ends the sending client's session.
+   * @param port of socket
+   * @param executor running the client sessions
+   * @throws IOException
+   */
+  public void runSessions(int port, ExecutorService executor) throws IOException {
+    this.port = port;
+    this.socket = new ServerSocket(port, 1024);
+    System.out.println("Server accepting connections on port " + port + ".");
+    this.logger.logMessage("Server accepting connections on port " + port + ".");
+    try {
+      while (!this.socket.isClosed()) {
+        Socket client = this.socket.accept();
+        executor.execute(new ServerTCPSession(this, client));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Method creates an executor that starts a new virtual thread for every session.
+   * Virtual threads need Java 21, older runtimes fall back to a platform thread per session.
+   * @return executor for client sessions
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+              .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      System.out.println("Virtual threads unavailable on this Java version. " +
+              "Using a platform thread per connection.");
+      return Executors.newCachedThreadPool();
     }
   }
 
@@ -121,8 +322,17 @@ public class ServerTCP extends AbstractServer {
    * @throws IOException
    */
   public void closeAll() throws IOException {
+    if (this.serverChannel != null) {
+      this.serverChannel.close();
+      return;
+    }
+    if (this.s == null) { // serving sessions, each one closes its own socket
+      this.socket.close();
+      return;
+    }
     this.socket.close();
     this.s.close();
+    this.metrics.connectionClosed();
     this.dos.close();
     this.sout.close();
   }
@@ -135,8 +345,24 @@ public class ServerTCP extends AbstractServer {
   public static void main(String[] args ) throws IOException, InterruptedException {
     // parse input args
     int port = AbstractServer.parseArgs(args);
+    String mode = AbstractServer.parseMode(args);
+    ServerTCP serverTCP = new ServerTCP(AbstractServer.createStore());
+    serverTCP.metrics.register("tcp-" + port, serverTCP.logger);
+    serverTCP.startReplication();
+    if (mode.equals("nio")) { // serve many clients on event loops until killed
+      serverTCP.runEventLoops(port, AbstractServer.parseThreads(args));
+      serverTCP.closeAll();
+      return;
+    } else if (mode.equals("virtual")) { // a virtual thread per client
+      serverTCP.runSessions(port, ServerTCP.newVirtualThreadExecutor());
+      serverTCP.closeAll();
+      return;
+    } else if (mode.equals("pool")) { // a bounded pool of platform threads
+      serverTCP.runSessions(port, Executors.newFixedThreadPool(AbstractServer.parseThreads(args)));
+      serverTCP.closeAll();
+      return;
+    }
     // initialize new ServerSocket and wait for connection
-    ServerTCP serverTCP = new ServerTCP();
     serverTCP.initializeServerSocket(port);
     // acknowledge connection
     serverTCP.acknowledgeConnectionWithClient();
@@ -0,0 +1,552 @@
+package server;
+
+import common.BinaryFrame;
+import common.ChunkAssembler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class to represent one non-blocking event loop of the TCP server.
+ * Each loop owns a Selector and multiplexes many client connections, decoding the
+ * writeUTF framed packets sent by the client, or length prefixed binary frames once a
+ * connection has switched to them, and replying through the shared server.
+ * Response frames are queued as they are and encoded only as the socket drains, into
+ * direct buffers pooled by the loop, so a large value is written in chunks straight from
+ * its bytes, without an encoded copy of the whole response or the copy the channel makes
+ * of a heap buffer.
+ * With a durable store the loop never waits for the write-ahead log: the replies to the
+ * requests of one read are held until the last mutation among them is durable, and the
+ * log's committer wakes the loop to send them, so the loop keeps serving other
+ * connections and the mutations it read together share one fsync.
+ */
+public class ServerTCPEventLoop implements Runnable {
+
+  private static final int IN_BUFFER_LENGTH = 4096; // each connection's first, grown on demand
+  private static final int WRITE_BUFFERS = 16; // pooled for connections with frames to write
+  private static final int WRITE_BUFFER_LENGTH = 2 * (4 + BinaryFrame.MIN_LENGTH +
+          BinaryFrame.CHUNK_LENGTH); // a chunk frame and room for the next
+
+  private final AbstractServer server; // shared key, value store and request handling
+  private final Selector selector;
+  private final Queue<SocketChannel> pending; // accepted channels waiting to be registered
+  private final Queue<SelectionKey> released; // connections whose held replies are durable
+  private final RequestParser parser; // parses text requests in place, reused by this loop
+  private final ParsedRequest request;
+  private final BufferPool writeBuffers;
+  private volatile boolean running;
+
+  /**
+   * Constructor.
+   * @param server that handles requests for every connection of this loop
+   * @throws IOException
+   */
+  public ServerTCPEventLoop(AbstractServer server) throws IOException {
+    this.server = server;
+    this.selector = Selector.open();
+    this.pending = new ConcurrentLinkedQueue<SocketChannel>();
+    this.released = new ConcurrentLinkedQueue<SelectionKey>();
+    this.parser = new RequestParser();
+    this.request = new ParsedRequest();
+    this.writeBuffers = new BufferPool(WRITE_BUFFERS, WRITE_BUFFER_LENGTH);
+    this.running = true;
+  }
+
+  /**
+   * Method hands an accepted connection over to this loop.
+   * Called from the accepting thread.
+   * @param channel accepted from the server socket
+   */
+  public void register(SocketChannel channel) {
+    this.pending.add(channel);
+    this.selector.wakeup();
+  }
+
+  /**
+   * Method to stop the loop and close all of its connections.
+   */
+  public void shutdown() {
+    this.running = false;
+    this.selector.wakeup();
+  }
+
+  /**
+   * Method to run the loop until shut down.
+   */
+  @Override
+  public void run() {
+    while (this.running) {
+      try {
+        this.selector.select();
+        this.registerPending();
+        this.flushReleased();
+        Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              this.read(key, connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+              this.flush(key, connection);
+            }
+          } catch (IOException e) { // drop only the failing connection
+            this.server.logger.logMessage("Connection with " + connection.address +
+                    " closed: " + e.getMessage());
+            this.close(key);
+          } catch (RuntimeException e) { // a bad request must not take down the loop
+            this.server.metrics.error();
+            this.server.logger.logMessage("Connection with " + connection.address +
+                    " closed after an error: " + e);
+            this.close(key);
+          }
+        }
+      } catch (IOException e) {
+        this.server.logger.logMessage("Event loop error: " + e.getMessage());
+      }
+    }
+    for (SelectionKey key : this.selector.keys()) {
+      this.close(key);
+    }
+    try {
+      this.selector.close();
+    } catch (IOException e) {
+      System.err.println("Error closing selector: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Helper method to register all connections handed over since the last select. A
+   * connection that fails to register is closed without affecting the others.
+   */
+  private void registerPending() {
+    SocketChannel channel;
+    while ((channel = this.pending.poll()) != null) {
+      try {
+        channel.configureBlocking(false);
+        InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        channel.register(this.selector, SelectionKey.OP_READ, new Connection(address));
+        this.server.metrics.connectionOpened();
+        this.server.logger.logMessage("Connection with " + address + " established.");
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Error registering connection: " + e.getMessage());
+        try {
+          channel.close();
+        } catch (IOException closing) {
+          System.err.println("Error closing connection: " + closing.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Helper method to write the replies of connections whose mutations became durable
+   * since the last select, or close them if the write-ahead log failed.
+   */
+  private void flushReleased() {
+    SelectionKey key;
+    while ((key = this.released.poll()) != null) {
+      Connection connection = (Connection) key.attachment();
+      if (!key.isValid()) {
+        continue;
+      }
+      try {
+        if (connection.failure != null) { // the writes were never acknowledged
+          throw connection.failure;
+        }
+        this.flush(key, connection);
+      } catch (IOException e) {
+        this.server.logger.logMessage("Connection with " + connection.address +
+                " closed: " + e.getMessage());
+        this.close(key);
+      }
+    }
+  }
+
+  /**
+   * Helper method to hold a connection's replies until the mutations they answer are
+   * durable. The write-ahead log's committer releases them.
+   * @param key of the connection
+   * @param connection state
+   * @param sequence of the last mutation logged for the replies
+   */
+  private void hold(SelectionKey key, Connection connection, long sequence) {
+    connection.held = Math.max(connection.held, sequence);
+    this.server.whenDurable(sequence, failure -> {
+      if (failure != null) {
+        connection.failure = failure;
+      } else {
+        connection.durable.accumulateAndGet(sequence, Math::max);
+      }
+      this.released.add(key);
+      this.selector.wakeup();
+    });
+  }
+
+  /**
+   * Helper method to read what is available from a connection, handle every
+   * complete packet back to back, and queue the replies.
+   * @param key of the connection
+   * @param connection state
+   * @throws IOException
+   */
+  private void read(SelectionKey key, Connection connection) throws IOException {
+    SocketChannel channel = (SocketChannel) key.channel();
+    int read = channel.read(connection.in);
+    if (read < 0) { // client hung up
+      this.server.logger.logMessage("Connection with " + connection.address + " closed.");
+      this.close(key);
+      return;
+    }
+    this.server.metrics.bytesIn(read);
+    ByteBuffer in = connection.in;
+    in.flip();
+    this.server.deferDurability();
+    try {
+      in = this.handleAll(connection, in);
+    } finally {
+      long sequence = this.server.takeDeferred();
+      if (sequence > 0) {
+        this.hold(key, connection, sequence);
+      }
+    }
+    if (connection.grown > 0 && in.remaining() < IN_BUFFER_LENGTH) { // large frame consumed
+      this.server.releaseReceiveBuffer(connection.grown);
+      connection.grown = 0;
+      connection.in = ByteBuffer.allocate(IN_BUFFER_LENGTH).put(in);
+    } else {
+      in.compact();
+    }
+    this.flush(key, connection);
+  }
+
+  /**
+   * Helper method to make room for the rest of a packet or frame being received. The
+   * buffer only grows once the packet fills it, doubling up to the packet's length, so a
+   * client announcing a large frame gets memory only as fast as it sends the bytes.
+   * @param connection receiving the packet
+   * @param in incoming buffer in read mode, the packet starting at its position
+   * @param needed bytes of the whole packet
+   * @return incoming buffer, replaced if it had to grow
+   * @throws IOException if the server is already receiving too many large frames
+   */
+  private ByteBuffer grow(Connection connection, ByteBuffer in, int needed)
+          throws IOException {
+    if (in.remaining() < in.capacity()) { // compacting makes room to read more first
+      return in;
+    }
+    int length = (int) Math.min(needed, 2L * in.capacity());
+    if (!this.server.reserveReceiveBuffer(length - in.capacity())) {
+      throw new IOException("Receiving too many large frames, " + needed +
+              " bytes refused.");
+    }
+    connection.grown += length - in.capacity();
+    ByteBuffer larger = ByteBuffer.allocate(length);
+    larger.put(in);
+    larger.flip();
+    connection.in = larger;
+    return larger;
+  }
+
+  /**
+   * Helper method to handle every complete packet or frame in the incoming buffer.
+   * @param connection state
+   * @param in incoming buffer in read mode
+   * @return incoming buffer, replaced if it had to grow
+   * @throws IOException
+   */
+  private ByteBuffer handleAll(Connection connection, ByteBuffer in) throws IOException {
+    while (!connection.closing) {
+      if (connection.binary) {
+        if (in.remaining() < 4) {
+          break;
+        }
+        int length = in.getInt(in.position());
+        if (length < BinaryFrame.MIN_LENGTH || length > BinaryFrame.MAX_FRAME_LENGTH) {
+          throw new IOException("Invalid binary frame length " + length + ".");
+        }
+        if (in.remaining() < 4 + length) { // wait for the rest of the frame
+          in = this.grow(connection, in, 4 + length);
+          break;
+        }
+        ByteBuffer frame = in.duplicate();
+        frame.position(in.position() + 4).limit(in.position() + 4 + length);
+        in.position(in.position() + 4 + length);
+        BinaryFrame request = connection.chunks.add(BinaryFrame.decode(frame));
+        if (request != null) { // else more chunks of a value to come
+          this.handle(connection, request);
+        }
+      } else {
+        if (in.remaining() < 2) {
+          break;
+        }
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (in.remaining() < 2 + length) { // wait for the rest of the packet
+          in = this.grow(connection, in, 2 + length);
+          break;
+        }
+        if (this.parser.parse(in, in.position() + 2, length, this.request)) { // common case
+          this.reply(connection, this.server.respond(this.request, connection.address));
+        } else {
+          this.handle(connection, decode(in.array(), in.position(), 2 + length));
+        }
+        in.position(in.position() + 2 + length);
+      }
+    }
+    return in;
+  }
+
+  /**
+   * Helper method to process a single binary frame and queue its response frames.
+   * @param connection that sent the frame
+   * @param request whole frame, its chunks put back together
+   */
+  private void handle(Connection connection, BinaryFrame request) {
+    for (BinaryFrame response : this.server.respondToStream(request, connection.address)) {
+      this.server.logger.logMessage("Sending to client: " +
+              this.server.describeResponse(response));
+      connection.frames.add(response);
+    }
+  }
+
+  /**
+   * Helper method to process a single packet and queue its reply.
+   * @param connection that sent the packet
+   * @param packet with checksum header
+   * @throws IOException
+   */
+  private void handle(Connection connection, String packet) throws IOException {
+    String[] parsedPacket = this.server.extractChecksum(packet);
+    String result;
+    if (this.server.isQuitRequest(parsedPacket)) { // only this client's session ends
+      result = "Quit requested. Closing connection.";
+      this.server.logger.logMessage(result);
+      connection.closing = true;
+    } else if (this.server.isNegotiateRequest(parsedPacket)) { // rest of session is binary
+      result = this.server.negotiate(parsedPacket);
+      connection.binary = true;
+    } else {
+      result = this.server.respond(parsedPacket, connection.address);
+    }
+    this.reply(connection, result);
+  }
+
+  /**
+   * Helper method to queue a text reply with its checksum header.
+   * @param connection to reply to
+   * @param result of the request
+   * @throws IOException
+   */
+  private void reply(Connection connection, String result) throws IOException {
+    this.server.logger.logMessage("Sending to client: " + result);
+    connection.queueText(this.server.getChecksum(result));
+  }
+
+  /**
+   * Helper method to write queued replies, waiting for OP_WRITE if the socket is full.
+   * @param key of the connection
+   * @param connection state
+   * @throws IOException
+   */
+  private void flush(SelectionKey key, Connection connection) throws IOException {
+    if (connection.held > connection.durable.get()) { // released by the committer
+      key.interestOps(SelectionKey.OP_READ);
+      return;
+    }
+    SocketChannel channel = (SocketChannel) key.channel();
+    ByteBuffer out = connection.out;
+    out.flip();
+    this.server.metrics.bytesOut(channel.write(out));
+    out.compact();
+    boolean full = out.position() > 0;
+    while (!full && (connection.framed != null || !connection.frames.isEmpty())) {
+      if (connection.framed == null) {
+        connection.framed = this.writeBuffers.acquire();
+      }
+      connection.encodeFrames(this.writeBuffers);
+      ByteBuffer framed = connection.framed;
+      framed.flip();
+      this.server.metrics.bytesOut(channel.write(framed));
+      framed.compact();
+      full = framed.position() > 0;
+      if (!full && connection.frames.isEmpty()) { // all written, the buffer goes back
+        if (framed.capacity() == WRITE_BUFFER_LENGTH) {
+          this.writeBuffers.release(framed);
+        }
+        connection.framed = null;
+      }
+    }
+    if (full) { // socket buffer full, finish later
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    } else if (connection.closing) {
+      this.close(key);
+    } else {
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   * Helper method to close a connection and cancel its key.
+   * @param key of the connection
+   */
+  private void close(SelectionKey key) {
+    if (key.channel().isOpen()) { // closed connections aren't counted twice
+      this.server.metrics.connectionClosed();
+    }
+    Connection connection = (Connection) key.attachment();
+    if (connection != null && connection.grown > 0) { // hand its large buffer back
+      this.server.releaseReceiveBuffer(connection.grown);
+      connection.grown = 0;
+      connection.in = ByteBuffer.allocate(0);
+    }
+    if (connection != null && connection.framed != null) { // replies left unwritten
+      if (connection.framed.capacity() == WRITE_BUFFER_LENGTH) {
+        this.writeBuffers.release(connection.framed);
+      }
+      connection.framed = null;
+    }
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      System.err.println("Error closing connection: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Helper method to decode a writeUTF framed packet.
+   * @param buffer holding the packet
+   * @param offset of the length header
+   * @param length of header and payload
+   * @return decoded packet
+   * @throws IOException
+   */
+  private static String decode(byte[] buffer, int offset, int length) throws IOException {
+    return new DataInputStream(new ByteArrayInputStream(buffer, offset, length)).readUTF();
+  }
+
+  /**
+   * Helper method to frame a reply the same way DataOutputStream.writeUTF does.
+   * @param packet with checksum header
+   * @return framed bytes
+   * @throws IOException
+   */
+  private static byte[] encode(String packet) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(packet.length() + 2);
+    new DataOutputStream(bytes).writeUTF(packet);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * State kept for each connection of the loop.
+   */
+  private static class Connection {
+
+    private final InetAddress address; // client address
+    private ByteBuffer in; // partially received packets
+    private long grown; // bytes in grew by past its first size, reserved with the server
+    private ByteBuffer out; // replies not yet written, kept in write mode
+    private boolean closing; // quit received, close once replies are written
+    private boolean binary; // switched to binary frames
+    private final ChunkAssembler chunks; // values of requests still arriving in chunks
+    private final ArrayDeque<BinaryFrame> frames; // response frames not yet encoded
+    private ByteBuffer framed; // frames encoded but not yet written, in write mode, or null
+    private long held; // replies wait until the log is durable up to this sequence
+    private final AtomicLong durable; // sequence the log is known durable up to
+    private volatile IOException failure; // the log failed before the replies were durable
+
+    private Connection(InetAddress address) {
+      this.address = address;
+      this.in = ByteBuffer.allocate(IN_BUFFER_LENGTH);
+      this.out = ByteBuffer.allocate(1024);
+      this.chunks = new ChunkAssembler(AbstractServer.MAX_CHUNKED_BYTES);
+      this.frames = new ArrayDeque<BinaryFrame>();
+      this.durable = new AtomicLong();
+    }
+
+    /**
+     * Method encodes queued frames, each preceded by its length, while they fit in the
+     * framed buffer. A frame too large for an empty pooled buffer, such as a batch slice
+     * holding one large result, gets a heap buffer of its own, which the garbage
+     * collector reclaims once written, and the pooled buffer goes back to the pool.
+     * @param pool the framed buffer was acquired from
+     */
+    private void encodeFrames(BufferPool pool) {
+      BinaryFrame frame;
+      while ((frame = this.frames.peek()) != null) {
+        if (this.framed.remaining() < 4 + frame.length()) {
+          if (this.framed.position() > 0) { // write what is encoded first
+            return;
+          }
+          if (this.framed.capacity() == WRITE_BUFFER_LENGTH) {
+            pool.release(this.framed);
+          }
+          this.framed = ByteBuffer.allocate(4 + frame.length());
+        }
+        this.framed.putInt(frame.length());
+        frame.encode(this.framed);
+        this.frames.poll();
+      }
+    }
+
+    /**
+     * Method appends a reply to the outgoing buffer, growing it if needed.
+     * @param reply framed bytes
+     */
+    private void queue(byte[] reply) {
+      this.reserve(reply.length);
+      this.out.put(reply);
+    }
+
+    /**
+     * Method appends a text reply framed as writeUTF would. ASCII replies, the usual case,
+     * are copied straight into the outgoing buffer without an intermediate array.
+     * @param packet with checksum header
+     * @throws IOException
+     */
+    private void queueText(String packet) throws IOException {
+      int length = packet.length();
+      for (int i = 0; i < length; i++) {
+        char c = packet.charAt(i);
+        if (c == 0 || c >= 0x80 || length > 65535) { // needs modified UTF-8
+          this.queue(encode(packet));
+          return;
+        }
+      }
+      this.reserve(2 + length);
+      this.out.putShort((short) length);
+      for (int i = 0; i < length; i++) {
+        this.out.put((byte) packet.charAt(i));
+      }
+    }
+
+    /**
+     * Method grows the outgoing buffer so the given number of bytes fit.
+     * @param needed bytes about to be appended
+     */
+    private void reserve(int needed) {
+      if (this.out.remaining() < needed) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(this.out.capacity() * 2,
+                this.out.position() + needed));
+        this.out.flip();
+        larger.put(this.out);
+        this.out = larger;
+      }
+    }
+  }
+}
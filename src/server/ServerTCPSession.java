@@ -0,0 +1,143 @@
+package server;
+
+import common.BinaryFrame;
+import common.ChunkAssembler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Class to represent one client's session with the TCP server when each connection
+ * is served by its own thread. Runs the same blocking receive, process, send loop as
+ * the single client server, against the key, value store shared by every session.
+ */
+public class ServerTCPSession implements Runnable {
+
+  private final AbstractServer server; // shared key, value store and request handling
+  private final Socket socket;
+  private final InetAddress address; // client address
+  private final byte[] packet; // last received packet, writeUTF length header included
+  private final ByteBuffer packetBuffer;
+  private final RequestParser parser; // parses text requests in place, reused by this session
+  private final ParsedRequest request;
+
+  /**
+   * Constructor.
+   * @param server that handles requests for the session
+   * @param socket accepted for the client
+   */
+  public ServerTCPSession(AbstractServer server, Socket socket) {
+    this.server = server;
+    this.socket = socket;
+    this.address = socket.getInetAddress();
+    this.packet = new byte[2 + 65535];
+    this.packetBuffer = ByteBuffer.wrap(this.packet);
+    this.parser = new RequestParser();
+    this.request = new ParsedRequest();
+  }
+
+  /**
+   * Method to serve the client until it quits or disconnects.
+   */
+  @Override
+  public void run() {
+    this.server.logger.logMessage("Connection with " + this.address + " established.");
+    ServerMetrics metrics = this.server.metrics;
+    metrics.connectionOpened();
+    try (Socket s = this.socket;
+         DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                 metrics.countIn(s.getInputStream())));
+         DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                 metrics.countOut(s.getOutputStream())))) {
+      boolean flag = true;
+      while (flag) {
+        int length = dis.readUnsignedShort();
+        dis.readFully(this.packet, 2, length);
+        String result;
+        if (this.parser.parse(this.packetBuffer, 2, length, this.request)) { // common case
+          result = this.server.respond(this.request, this.address);
+          this.server.logger.logMessage("Sending to client: " + result);
+          dos.writeUTF(this.server.getChecksum(result));
+          flushIfIdle(dis, dos);
+          continue;
+        }
+        this.packet[0] = (byte) (length >>> 8);
+        this.packet[1] = (byte) length;
+        String packet = new DataInputStream(new ByteArrayInputStream(this.packet, 0, 2 + length))
+                .readUTF();
+        String[] parsedPacket = this.server.extractChecksum(packet);
+        if (this.server.isQuitRequest(parsedPacket)) { // only this session ends
+          flag = false;
+          result = "Quit requested. Closing connection.";
+          this.server.logger.logMessage(result);
+        } else if (this.server.isNegotiateRequest(parsedPacket)) { // rest of session is binary
+          dos.writeUTF(this.server.getChecksum(this.server.negotiate(parsedPacket)));
+          dos.flush();
+          this.serveFrames(dis, dos);
+          return;
+        } else {
+          result = this.server.respond(parsedPacket, this.address);
+        }
+        this.server.logger.logMessage("Sending to client: " + result);
+        dos.writeUTF(this.server.getChecksum(result));
+        if (flag) {
+          flushIfIdle(dis, dos);
+        } else {
+          dos.flush();
+        }
+      }
+      this.server.logger.logMessage("Connection with " + this.address + " closed.");
+    } catch (EOFException e) { // client hung up without quitting
+      this.server.logger.logMessage("Connection with " + this.address + " closed.");
+    } catch (IOException e) {
+      this.server.logger.logMessage("Connection with " + this.address + " closed: " +
+              e.getMessage());
+    } finally {
+      metrics.connectionClosed();
+    }
+  }
+
+  /**
+   * Helper method to serve binary frames until the client disconnects.
+   * @param dis stream from the client
+   * @param dos stream to the client
+   * @throws IOException
+   */
+  private void serveFrames(DataInputStream dis, DataOutputStream dos) throws IOException {
+    this.server.logger.logMessage("Connection with " + this.address +
+            " switched to binary frames.");
+    ChunkAssembler chunks = new ChunkAssembler(AbstractServer.MAX_CHUNKED_BYTES);
+    while (true) {
+      BinaryFrame request = chunks.add(BinaryFrame.read(dis));
+      if (request == null) { // more chunks of a value to come
+        continue;
+      }
+      for (BinaryFrame response : this.server.respondToStream(request, this.address)) {
+        this.server.logger.logMessage("Sending to client: " +
+                this.server.describeResponse(response));
+        response.write(dos);
+      }
+      flushIfIdle(dis, dos);
+    }
+  }
+
+  /**
+   * Helper method to flush replies only once every pipelined request that has
+   * arrived is answered, so a batch of requests gets its replies in one write.
+   * @param dis stream from the client
+   * @param dos stream to the client
+   * @throws IOException
+   */
+  private static void flushIfIdle(DataInputStream dis, DataOutputStream dos) throws IOException {
+    if (dis.available() == 0) {
+      dos.flush();
+    }
+  }
+}
@@ -1,10 +1,14 @@
 package server;
 
+import common.BinaryFrame;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -24,6 +28,14 @@ public class ServerUDP extends AbstractServer {
     super();
   }
 
+  /**
+   * Constructor.
+   * @param store to serve requests from
+   */
+  public ServerUDP(KeyValueStore store) {
+    super(store);
+  }
+
   /**
    * Method initializes a new socket and waits for a client.
    * @param port of socket
@@ -32,7 +44,7 @@ public class ServerUDP extends AbstractServer {
   public void initializeUDPServerSocket(int port) throws SocketException {
     // to do
     this.serverSocket = new DatagramSocket(port);
-    this.receiveData = new byte[1024];
+    this.receiveData = new byte[BinaryFrame.MAX_DATAGRAM_LENGTH];
     //return new DatagramSocket(port);
   }
 
@@ -45,13 +57,32 @@ public class ServerUDP extends AbstractServer {
    * @throws IOException
    */
   public String[] receiveData() throws IOException {
-    this.receiveData = new byte[1024];
+    return this.parsePacket(this.receivePacket());
+  }
+
+  /**
+   * Method to take in the next datagram from a client and record its sender.
+   * @return received datagram
+   * @throws IOException
+   */
+  public DatagramPacket receivePacket() throws IOException {
+    this.receiveData = new byte[BinaryFrame.MAX_DATAGRAM_LENGTH];
     // receive
     DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
     this.serverSocket.receive(receivePacket);
+    this.metrics.bytesIn(receivePacket.getLength());
     // log address and origin port
     this.address = receivePacket.getAddress();
     this.portOrigin = receivePacket.getPort();
+    return receivePacket;
+  }
+
+  /**
+   * Method to decode a text datagram and extract out the checksum.
+   * @param receivePacket datagram from client
+   * @return parsed packet with checksum header and request separated
+   */
+  public String[] parsePacket(DatagramPacket receivePacket) {
     // decode
     String packet = new String(receivePacket.getData(), 0, receivePacket.getLength());
     String[] parsedPacket = this.extractChecksum(packet);
@@ -60,6 +91,30 @@ public class ServerUDP extends AbstractServer {
     return parsedPacket;
   }
 
+  /**
+   * Method to answer a binary frame datagram.
+   * @param receivePacket datagram holding the frame
+   * @throws IOException
+   */
+  public void respondToFrame(DatagramPacket receivePacket) throws IOException {
+    BinaryFrame request;
+    try {
+      request = BinaryFrame.decode(ByteBuffer.wrap(receivePacket.getData(),
+              receivePacket.getOffset(), receivePacket.getLength()));
+    } catch (IOException e) { // too damaged to answer
+      this.metrics.malformed();
+      this.logger.logMessage("Received malformed binary frame of length " +
+              receivePacket.getLength() + " from address " + this.address + ": " + e.getMessage());
+      return;
+    }
+    for (BinaryFrame frame : this.respondToDatagram(request, this.address, this.portOrigin)) {
+      byte[] sendData = frame.toBytes();
+      this.serverSocket.send(new DatagramPacket(sendData, sendData.length,
+              this.address, this.portOrigin));
+      this.metrics.bytesOut(sendData.length);
+    }
+  }
+
   /**
    * Method to send a response to the client based on their request.
    * @param result message from client
@@ -74,6 +129,7 @@ public class ServerUDP extends AbstractServer {
     DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length,
             this.address, this.portOrigin);
     this.serverSocket.send(sendPacket);
+    this.metrics.bytesOut(sendData.length);
     return result;
   }
 
@@ -86,7 +142,13 @@ public class ServerUDP extends AbstractServer {
     Boolean flag = true;
 
     while (flag) {
-      String[] parsedPacket = this.receiveData(); // get message and extract checksum
+      DatagramPacket receivePacket = this.receivePacket();
+      if (BinaryFrame.isFrame(receivePacket.getData(), receivePacket.getOffset(),
+              receivePacket.getLength())) { // binary frames are answered in kind
+        this.respondToFrame(receivePacket);
+        continue;
+      }
+      String[] parsedPacket = this.parsePacket(receivePacket); // extract checksum
       if (parsedPacket[1].toLowerCase().equals("q")) { // kill if receive q
         flag = false;
         result = "Quit requested. Server shutting down.";
@@ -104,6 +166,36 @@ public class ServerUDP extends AbstractServer {
     }
   }
 
+  /**
+   * Method also accepts TCP connections on a port, served by an event loop against this
+   * server's store, and from then on answers a datagram request whose response is too
+   * large for a datagram with a REDIRECT to that port, so the client can repeat it there.
+   * @param tcpPort for TCP connections
+   * @throws IOException if the port can't be opened
+   */
+  public void startTcpFallback(int tcpPort) throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.bind(new InetSocketAddress(tcpPort), 1024);
+    ServerTCPEventLoop eventLoop = new ServerTCPEventLoop(this);
+    Thread loop = new Thread(eventLoop, "tcp-fallback-loop");
+    loop.setDaemon(true);
+    loop.start();
+    Thread acceptor = new Thread(() -> {
+      try {
+        while (channel.isOpen()) {
+          eventLoop.register(channel.accept());
+        }
+      } catch (IOException e) {
+        this.logger.logMessage("TCP fallback stopped: " + e.getMessage());
+      }
+    }, "tcp-fallback-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    this.redirectPort = tcpPort;
+    this.logger.logMessage("Accepting TCP connections for large values on port " + tcpPort +
+            ".");
+  }
+
   /**
    * Method to close socket.
    * @throws IOException
@@ -120,8 +212,20 @@ public class ServerUDP extends AbstractServer {
   public static void main(String[] args) throws IOException, InterruptedException {
     // parse input args
     int port = AbstractServer.parseArgs(args);
+    String mode = AbstractServer.parseMode(args);
+    ServerUDP serverUDP = new ServerUDP(AbstractServer.createStore());
+    serverUDP.metrics.register("udp-" + port, serverUDP.logger);
+    serverUDP.startReplication();
+    if (System.getProperty("udp.tcp.port") != null) { // large values go over TCP
+      serverUDP.startTcpFallback(Integer.parseInt(System.getProperty("udp.tcp.port")));
+    }
+    if (mode.equals("channel")) { // serve every client from a pool of threads until killed
+      int threads = AbstractServer.parseThreads(args);
+      serverUDP.port = port;
+      new ServerUDPEngine(serverUDP, threads, threads).start(port);
+      return;
+    }
     // initialize UDP server
-    ServerUDP serverUDP = new ServerUDP();
     serverUDP.initializeUDPServerSocket(port);
     // communicate with client
     serverUDP.acceptNotesFromClient();
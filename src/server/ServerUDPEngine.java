@@ -0,0 +1,197 @@
+package server;
+
+import common.BinaryFrame;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class to serve UDP clients from many threads at once.
+ * Receiver threads read datagrams from DatagramChannels into pooled direct buffers and
+ * hand them, together with the sender's address, to a pool of worker threads that
+ * process them against the shared server and reply to that sender. Nothing about a
+ * request is kept in shared fields, so any number of requests can be in flight.
+ * Where the platform supports SO_REUSEPORT, each receiver gets its own socket bound to
+ * the port and the kernel spreads datagrams across them; otherwise the receivers share one.
+ */
+public class ServerUDPEngine {
+
+  // larger datagrams are truncated and rejected
+  public static final int MAX_DATAGRAM = BinaryFrame.MAX_DATAGRAM_LENGTH;
+  private static final int QUEUE_CAPACITY = 1024; // datagrams waiting for a worker
+
+  private final AbstractServer server; // shared key, value store and request handling
+  private final int receivers;
+  private final ThreadPoolExecutor workers;
+  private final BufferPool pool;
+  private final ThreadLocal<WorkerState> workerState;
+  private DatagramChannel[] channels;
+  private volatile boolean running;
+
+  /**
+   * Constructor.
+   * @param server that handles requests
+   * @param receivers number of receiving threads
+   * @param workers number of processing threads
+   */
+  public ServerUDPEngine(AbstractServer server, int receivers, int workers) {
+    this.server = server;
+    this.receivers = receivers;
+    // a full queue makes the receiver process the datagram itself, slowing intake
+    this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    this.pool = new BufferPool(QUEUE_CAPACITY + receivers + workers, MAX_DATAGRAM);
+    this.workerState = ThreadLocal.withInitial(WorkerState::new);
+  }
+
+  /**
+   * Method binds the channels and starts the receiver threads.
+   * @param port to listen on
+   * @throws IOException
+   */
+  public void start(int port) throws IOException {
+    boolean reusePort;
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    }
+    int sockets = reusePort ? this.receivers : 1;
+    this.channels = new DatagramChannel[sockets];
+    for (int i = 0; i < sockets; i++) {
+      this.channels[i] = DatagramChannel.open();
+      if (reusePort) {
+        this.channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      this.channels[i].setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+      this.channels[i].bind(new InetSocketAddress(port));
+    }
+    this.running = true;
+    for (int i = 0; i < this.receivers; i++) {
+      DatagramChannel channel = this.channels[i % sockets];
+      Thread thread = new Thread(() -> this.receiveLoop(channel), "udp-receiver-" + i);
+      thread.start();
+    }
+    String note = "UDP server listening on port " + port + " with " + this.receivers +
+            " receivers on " + sockets + (sockets == 1 ? " socket" : " sockets") + " and " +
+            this.workers.getCorePoolSize() + " workers.";
+    System.out.println(note);
+    this.server.logger.logMessage(note);
+  }
+
+  /**
+   * Method stops receiving, lets queued datagrams finish, and closes the channels.
+   * @throws IOException
+   */
+  public void shutdown() throws IOException {
+    this.running = false;
+    for (DatagramChannel channel : this.channels) {
+      channel.close();
+    }
+    this.workers.shutdown();
+  }
+
+  /**
+   * Helper method run by each receiver thread.
+   * @param channel to receive from
+   */
+  private void receiveLoop(DatagramChannel channel) {
+    while (this.running) {
+      ByteBuffer buffer = this.pool.acquire();
+      try {
+        SocketAddress sender = channel.receive(buffer);
+        buffer.flip();
+        this.server.metrics.bytesIn(buffer.remaining());
+        this.workers.execute(() -> this.handle(channel, sender, buffer));
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        this.pool.release(buffer);
+        this.server.logger.logMessage("Error receiving datagram: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Helper method run by a worker to answer one datagram.
+   * @param channel to reply on
+   * @param sender to reply to
+   * @param buffer holding the datagram, released when done
+   */
+  private void handle(DatagramChannel channel, SocketAddress sender, ByteBuffer buffer) {
+    WorkerState state = this.workerState.get();
+    InetAddress address = ((InetSocketAddress) sender).getAddress();
+    ByteBuffer reply = state.reply;
+    reply.clear();
+    try {
+      if (buffer.hasRemaining() && buffer.get(0) == BinaryFrame.MAGIC) {
+        for (BinaryFrame frame : this.server.respondToDatagram(BinaryFrame.decode(buffer),
+                address, ((InetSocketAddress) sender).getPort())) { // one per datagram
+          reply.clear();
+          frame.encode(reply);
+          reply.flip();
+          this.server.metrics.bytesOut(channel.send(reply, sender));
+        }
+      } else {
+        String result;
+        if (state.parser.parse(buffer, 0, buffer.limit(), state.request)) { // common case
+          result = this.server.respond(state.request, address);
+        } else {
+          result = this.respondToText(buffer, address);
+        }
+        byte[] sendData = this.server.getChecksum(result).getBytes();
+        if (sendData.length > reply.capacity()) {
+          result = "Response too large.";
+          sendData = this.server.getChecksum(result).getBytes();
+        }
+        this.server.logger.logMessage("Sending to client: " + result);
+        reply.put(sendData);
+        reply.flip();
+        this.server.metrics.bytesOut(channel.send(reply, sender));
+      }
+    } catch (IOException e) {
+      this.server.logger.logMessage("Unable to answer datagram from " + sender + ": " +
+              e.getMessage());
+    } catch (RuntimeException e) { // a bad request must not take down the thread running it
+      this.server.metrics.error();
+      this.server.logger.logMessage("Error answering datagram from " + sender + ": " + e);
+    } finally {
+      this.pool.release(buffer);
+    }
+  }
+
+  /**
+   * Helper method to answer a text datagram the parser left to the String path.
+   * A quit request is acknowledged but does not stop the server, other clients are using it.
+   * @param buffer holding the datagram
+   * @param address of the sender
+   * @return result to send back
+   */
+  private String respondToText(ByteBuffer buffer, InetAddress address) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    String[] parsedPacket = this.server.extractChecksum(new String(data));
+    if (this.server.isQuitRequest(parsedPacket)) {
+      this.server.logger.logMessage("Quit requested by " + address + ". Server keeps running.");
+      return "Quit requested.";
+    }
+    return this.server.respond(parsedPacket, address);
+  }
+
+  /**
+   * Per worker state, reused for every datagram the worker handles.
+   */
+  private static class WorkerState {
+
+    private final RequestParser parser = new RequestParser();
+    private final ParsedRequest request = new ParsedRequest();
+    private final ByteBuffer reply = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+  }
+}
@@ -0,0 +1,279 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Class to write and load point-in-time copies of a key, value store through
+ * memory-mapped files.
+ * A snapshot is a header, a run of independent blocks of about a megabyte, and a footer
+ * indexing where each block starts, so blocks can be loaded by many threads at once.
+ * Header: int MAGIC, int VERSION.
+ * Block: int entry count, int length of the entries, entries, int CRC32 of the entries,
+ * where each entry is int key length, key, int value length, value, in UTF-8.
+ * Footer: int block count, long offset of each block, long entry count,
+ * long offset of the footer, int MAGIC.
+ */
+public class StoreSnapshot {
+
+  public static final int MAGIC = 0x4B56534E; // "KVSN"
+  public static final int VERSION = 1;
+
+  private static final int BLOCK_BYTES = 1 << 20; // target size of each block
+  private static final long REGION_BYTES = 64L << 20; // mapped at a time while writing
+
+  private StoreSnapshot() {
+  }
+
+  /**
+   * Method writes every key and value of a store to a new snapshot file.
+   * The store can keep changing while it is written.
+   * @param path of the file, replaced if it exists
+   * @param store to copy
+   * @return number of entries written
+   * @throws IOException
+   */
+  public static long write(Path path, KeyValueStore store) throws IOException {
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      MappedWriter writer = new MappedWriter(file);
+      ByteBuffer header = ByteBuffer.allocate(8);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      writer.write(header);
+      List<Long> offsets = new ArrayList<Long>();
+      ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+      int[] blockEntries = new int[1];
+      long[] entries = new long[1];
+      IOException[] failure = new IOException[1];
+      block.position(8); // room for the entry count and length
+      store.forEach((key, value) -> {
+        if (failure[0] != null) {
+          return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int needed = 8 + keyBytes.length + valueBytes.length;
+        try {
+          if (block.remaining() < needed + 4 && blockEntries[0] > 0) { // block is full
+            offsets.add(writer.position());
+            writeBlock(writer, block, blockEntries[0]);
+            blockEntries[0] = 0;
+          }
+        } catch (IOException e) {
+          failure[0] = e;
+          return;
+        }
+        ByteBuffer target = block.remaining() < needed + 4
+                ? ByteBuffer.allocate(8 + needed + 4).position(8) : block; // one large entry
+        target.putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+        if (target != block) {
+          try {
+            offsets.add(writer.position());
+            writeBlock(writer, target, 1);
+          } catch (IOException e) {
+            failure[0] = e;
+          }
+        } else {
+          blockEntries[0]++;
+        }
+        entries[0]++;
+      });
+      if (failure[0] != null) {
+        throw failure[0];
+      }
+      if (blockEntries[0] > 0) {
+        offsets.add(writer.position());
+        writeBlock(writer, block, blockEntries[0]);
+      }
+      long footerOffset = writer.position();
+      ByteBuffer footer = ByteBuffer.allocate(4 + 8 * offsets.size() + 8 + 8 + 4);
+      footer.putInt(offsets.size());
+      for (long offset : offsets) {
+        footer.putLong(offset);
+      }
+      footer.putLong(entries[0]).putLong(footerOffset).putInt(MAGIC).flip();
+      writer.write(footer);
+      writer.finish();
+      return entries[0];
+    }
+  }
+
+  /**
+   * Method loads a snapshot into a store, decoding its blocks in parallel.
+   * The store must accept puts from several threads at once.
+   * @param path of the snapshot
+   * @param store to load into
+   * @param threads decoding blocks
+   * @return number of entries loaded
+   * @throws IOException if the file is not a complete snapshot or a block is corrupt
+   */
+  public static long load(Path path, KeyValueStore store, int threads) throws IOException {
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = file.size();
+      if (size < 8 + 24) {
+        throw new IOException("Snapshot " + path + " is too short.");
+      }
+      ByteBuffer trailer = file.map(FileChannel.MapMode.READ_ONLY, size - 12, 12);
+      long footerOffset = trailer.getLong();
+      ByteBuffer header = file.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+      if (trailer.getInt() != MAGIC || header.getInt() != MAGIC || header.getInt() != VERSION
+              || footerOffset < 8 || footerOffset > size - 24) {
+        throw new IOException("Snapshot " + path + " is incomplete or not a snapshot.");
+      }
+      ByteBuffer footer = file.map(FileChannel.MapMode.READ_ONLY, footerOffset,
+              size - footerOffset);
+      int blocks = footer.getInt();
+      if (blocks < 0 || blocks > (footer.remaining() - 20) / 8) {
+        throw new IOException("Snapshot " + path + " has a corrupt footer.");
+      }
+      long[] offsets = new long[blocks + 1];
+      for (int i = 0; i < blocks; i++) {
+        offsets[i] = footer.getLong();
+      }
+      offsets[blocks] = footerOffset;
+      long expected = footer.getLong();
+      List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(blocks);
+      for (int i = 0; i < blocks; i++) {
+        long start = offsets[i];
+        long length = offsets[i + 1] - start;
+        tasks.add(() -> loadBlock(file.map(FileChannel.MapMode.READ_ONLY, start, length), store));
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+      long loaded = 0;
+      try {
+        for (Future<Long> result : pool.invokeAll(tasks)) {
+          loaded += result.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted loading snapshot " + path + ".");
+      } catch (ExecutionException e) {
+        throw new IOException("Snapshot " + path + " is corrupt: " + e.getCause().getMessage());
+      } finally {
+        pool.shutdown();
+      }
+      if (loaded != expected) {
+        throw new IOException("Snapshot " + path + " has " + loaded + " entries, expected " +
+                expected + ".");
+      }
+      return loaded;
+    }
+  }
+
+  /**
+   * Helper method to fill in a block's header and CRC and write it out.
+   * The block is cleared for reuse afterwards.
+   * @param writer of the snapshot
+   * @param block holding the entries after 8 bytes of header room
+   * @param count of entries in the block
+   * @throws IOException
+   */
+  private static void writeBlock(MappedWriter writer, ByteBuffer block, int count)
+          throws IOException {
+    int length = block.position() - 8;
+    CRC32 crc = new CRC32();
+    crc.update(block.array(), 8, length);
+    block.putInt((int) crc.getValue());
+    block.putInt(0, count).putInt(4, length).flip();
+    writer.write(block);
+    block.clear().position(8);
+  }
+
+  /**
+   * Helper method to decode one block into the store.
+   * @param block mapped from the file
+   * @param store to load into
+   * @return number of entries loaded
+   * @throws IOException if the block is corrupt
+   */
+  private static long loadBlock(ByteBuffer block, KeyValueStore store) throws IOException {
+    int count = block.getInt();
+    int length = block.getInt();
+    if (length < 0 || length != block.remaining() - 4) {
+      throw new IOException("block length " + length + " does not match the index");
+    }
+    ByteBuffer entries = block.slice().limit(length);
+    CRC32 crc = new CRC32();
+    crc.update(entries.duplicate());
+    if (block.getInt(8 + length) != (int) crc.getValue()) {
+      throw new IOException("block checksum mismatch");
+    }
+    for (int i = 0; i < count; i++) {
+      String key = readString(entries);
+      store.put(key, readString(entries));
+    }
+    return count;
+  }
+
+  /**
+   * Helper method to read a length prefixed UTF-8 string.
+   * @param data positioned at the length
+   * @return string
+   */
+  private static String readString(ByteBuffer data) {
+    byte[] bytes = new byte[data.getInt()];
+    data.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a file sequentially through a window of memory-mapped pages,
+   * mapping the next window as each one fills.
+   */
+  private static class MappedWriter {
+
+    private final FileChannel file;
+    private MappedByteBuffer region; // mapped window being written
+    private long regionStart; // file offset of the window
+
+    private MappedWriter(FileChannel file) throws IOException {
+      this.file = file;
+      this.region = file.map(FileChannel.MapMode.READ_WRITE, 0, REGION_BYTES);
+    }
+
+    private long position() {
+      return this.regionStart + this.region.position();
+    }
+
+    /**
+     * Method copies bytes into the file, mapping a new window if they don't fit.
+     * @param data to write
+     * @throws IOException
+     */
+    private void write(ByteBuffer data) throws IOException {
+      if (this.region.remaining() < data.remaining()) {
+        long position = this.position();
+        this.region.force();
+        this.region = this.file.map(FileChannel.MapMode.READ_WRITE, position,
+                Math.max(REGION_BYTES, data.remaining()));
+        this.regionStart = position;
+      }
+      this.region.put(data);
+    }
+
+    /**
+     * Method forces the written pages to disk and cuts off the unused end of the mapping.
+     * @throws IOException
+     */
+    private void finish() throws IOException {
+      long end = this.position();
+      this.region.force();
+      this.file.truncate(end);
+      this.file.force(true);
+    }
+  }
+}
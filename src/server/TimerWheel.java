@@ -0,0 +1,267 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Class to run an action for each of very many items once its delay has passed. Timers
+ * are kept in a hierarchical timing wheel: four wheels of 256 slots, the first with a
+ * slot per tick and each of the others with a slot per turn of the wheel before it.
+ * Scheduling or cancelling a timer links or unlinks it in one slot, in constant time.
+ * Each tick fires only the timers in its slot of the first wheel, and once per turn of a
+ * wheel the timers in the next slot of the wheel after it move inward, so no step does
+ * work in proportion to the number of timers waiting. A timer fires within a tick after
+ * its delay. A daemon thread, started with the first timer, advances the wheels and runs
+ * the action outside the wheel's lock.
+ * @param <T> type of the items
+ */
+public class TimerWheel<T> {
+
+  private static final int BITS = 8;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+  private static final long SPAN = 1L << (BITS * LEVELS); // ticks the wheels cover
+
+  private final long tickNanos;
+  private final long origin; // System.nanoTime() of tick 0
+  private final Consumer<Timer<T>> action;
+  private final Timer<T>[][] slots; // sentinel of each slot's circular list
+  private final String name;
+  private long currentTick; // last tick fired, guarded by this
+  private int size; // timers scheduled, guarded by this
+  private Thread thread; // guarded by this
+  private volatile boolean closed;
+
+  /**
+   * Constructor.
+   * @param name of the thread advancing the wheels
+   * @param tickMillis length of a tick, the precision of the timers
+   * @param action run for each timer once its delay has passed
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TimerWheel(String name, long tickMillis, Consumer<Timer<T>> action) {
+    this.name = name;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.origin = System.nanoTime();
+    this.action = action;
+    this.slots = new Timer[LEVELS][SLOTS];
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        Timer<T> sentinel = new Timer<T>(null, 0, 0);
+        sentinel.next = sentinel;
+        sentinel.prev = sentinel;
+        this.slots[level][slot] = sentinel;
+      }
+    }
+  }
+
+  /**
+   * Method schedules the action for an item after a delay.
+   * @param item passed to the action with its timer
+   * @param delayMillis before the action runs
+   * @return timer, to cancel it
+   */
+  public Timer<T> schedule(T item, long delayMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    // rounded up, so a timer never fires before its deadline
+    Timer<T> timer = new Timer<T>(item, deadline,
+            (deadline - this.origin + this.tickNanos - 1) / this.tickNanos);
+    synchronized (this) {
+      if (this.closed) {
+        throw new IllegalStateException("Timer wheel closed.");
+      }
+      if (this.size == 0) { // nothing was waiting, catch up without visiting every tick
+        this.currentTick = Math.max(this.currentTick,
+                (System.nanoTime() - this.origin) / this.tickNanos);
+      }
+      this.place(timer, this.currentTick + 1);
+      this.size++;
+      if (this.thread == null) {
+        this.thread = new Thread(this::run, this.name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+      } else if (this.size == 1) {
+        LockSupport.unpark(this.thread);
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * Method cancels a timer that has not fired yet.
+   * @param timer to cancel
+   * @return true if the timer was waiting and will not fire
+   */
+  public synchronized boolean cancel(Timer<T> timer) {
+    if (timer.prev == null) { // fired or cancelled already
+      return false;
+    }
+    this.unlink(timer);
+    this.size--;
+    return true;
+  }
+
+  /**
+   * Method returns the number of timers waiting.
+   * @return timers
+   */
+  public synchronized int size() {
+    return this.size;
+  }
+
+  /**
+   * Method stops the thread advancing the wheels; waiting timers never fire.
+   */
+  public void close() {
+    this.closed = true;
+    Thread running;
+    synchronized (this) {
+      running = this.thread;
+    }
+    if (running != null) {
+      LockSupport.unpark(running);
+    }
+  }
+
+  /**
+   * Helper method run by the wheel's thread: fires the timers of each tick as it passes,
+   * and sleeps while no timer is waiting.
+   */
+  private void run() {
+    List<Timer<T>> due = new ArrayList<Timer<T>>();
+    while (!this.closed) {
+      long nextTick;
+      synchronized (this) {
+        this.advance((System.nanoTime() - this.origin) / this.tickNanos, due);
+        nextTick = this.size > 0 ? this.currentTick + 1 : -1;
+      }
+      for (Timer<T> timer : due) {
+        try {
+          this.action.accept(timer);
+        } catch (RuntimeException e) { // a failed action must not stop the other timers
+        }
+      }
+      due.clear();
+      if (nextTick < 0) {
+        LockSupport.park(this);
+      } else {
+        LockSupport.parkNanos(this, this.origin + nextTick * this.tickNanos - System.nanoTime());
+      }
+    }
+  }
+
+  /**
+   * Helper method to fire every tick up to the given one, moving timers of the outer
+   * wheels inward as their slots come up.
+   * @param tick to advance to
+   * @param due receives the timers fired
+   */
+  private void advance(long tick, List<Timer<T>> due) {
+    while (this.currentTick < tick && this.size > 0) {
+      this.currentTick++;
+      int index = (int) (this.currentTick & MASK);
+      // at the end of each turn, bring in the next slot of the wheel after it
+      for (int level = 1; level < LEVELS && index == 0; level++) {
+        index = (int) ((this.currentTick >>> (BITS * level)) & MASK);
+        Timer<T> sentinel = this.slots[level][index];
+        while (sentinel.next != sentinel) {
+          Timer<T> timer = sentinel.next;
+          this.unlink(timer);
+          this.place(timer, this.currentTick);
+        }
+      }
+      Timer<T> sentinel = this.slots[0][(int) (this.currentTick & MASK)];
+      Timer<T> timer = sentinel.next;
+      while (timer != sentinel) {
+        Timer<T> next = timer.next;
+        this.unlink(timer);
+        if (timer.tick > this.currentTick) { // delay longer than the wheels, wait another turn
+          this.place(timer, this.currentTick + 1);
+        } else {
+          this.size--;
+          due.add(timer);
+        }
+        timer = next;
+      }
+    }
+    if (this.size == 0) { // skip idle ticks
+      this.currentTick = Math.max(this.currentTick, tick);
+    }
+  }
+
+  /**
+   * Helper method to link a timer into the slot for its tick, as seen from the current tick.
+   * @param timer to place
+   * @param earliest tick it may fire at, overdue timers fire then
+   */
+  private void place(Timer<T> timer, long earliest) {
+    long tick = Math.max(timer.tick, earliest);
+    tick = Math.min(tick, this.currentTick + SPAN - 1); // beyond the wheels, wait in the last
+    long delta = tick - this.currentTick;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+      level++;
+    }
+    Timer<T> sentinel = this.slots[level][(int) ((tick >>> (BITS * level)) & MASK)];
+    timer.prev = sentinel.prev;
+    timer.next = sentinel;
+    sentinel.prev.next = timer;
+    sentinel.prev = timer;
+  }
+
+  /**
+   * Helper method to unlink a timer from its slot.
+   * @param timer to unlink
+   */
+  private void unlink(Timer<T> timer) {
+    timer.prev.next = timer.next;
+    timer.next.prev = timer.prev;
+    timer.prev = null;
+    timer.next = null;
+  }
+
+  /**
+   * A scheduled action for an item.
+   * @param <T> type of the item
+   */
+  public static final class Timer<T> {
+
+    private final T item;
+    private final long deadline; // System.nanoTime()
+    private final long tick; // first tick at or after the deadline
+    private Timer<T> prev; // neighbours in its slot, guarded by the wheel
+    private Timer<T> next;
+
+    private Timer(T item, long deadline, long tick) {
+      this.item = item;
+      this.deadline = deadline;
+      this.tick = tick;
+    }
+
+    public T getItem() {
+      return this.item;
+    }
+
+    /**
+     * Method checks if the timer's delay has passed, whether or not it has fired.
+     * @param now System.nanoTime()
+     * @return true once the deadline is reached
+     */
+    public boolean isDue(long now) {
+      return now - this.deadline >= 0;
+    }
+
+    /**
+     * Method returns the time left before the deadline.
+     * @param now System.nanoTime()
+     * @return milliseconds, 0 once due
+     */
+    public long remainingMillis(long now) {
+      return Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.deadline - now));
+    }
+  }
+}
@@ -0,0 +1,500 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Class to represent an append-only log of the store's PUT and DELETE mutations, and the
+ * EXPIRE deadlines of keys with a time to live, replayed on startup to rebuild the store
+ * after a restart.
+ * Appending threads only copy their record into a shared in-memory batch. A single
+ * committer thread writes each batch with one call and, depending on the fsync policy,
+ * forces it to disk once for every write in the batch (group commit), so many concurrent
+ * writers share one fsync instead of paying for one each.
+ * The log is kept as numbered generation files, wal-N.log, in one directory. Rolling
+ * to a new generation lets a snapshot cover everything logged before it, so the
+ * older generations can be deleted.
+ * Each record is: int length, op byte, int key length, key, int value length, value,
+ * int CRC32 of everything after the length. A torn record at the end of the last
+ * generation, left by a crash, is dropped on replay. A bad record in an older generation,
+ * which was complete when the log rolled past it, is corruption: replay fails rather than
+ * skip acknowledged writes, and the file is left as it is.
+ */
+public class WriteAheadLog {
+
+  /**
+   * When written records are forced to disk.
+   */
+  public enum FsyncPolicy {
+    ALWAYS, // every write waits until its batch is on disk
+    INTERVAL, // batches are forced every few milliseconds, writes don't wait for it
+    OS // the operating system decides when written batches reach disk
+  }
+
+  public static final byte PUT = 1;
+  public static final byte DELETE = 2;
+  public static final byte EXPIRE = 3; // value is the deadline in epoch milliseconds
+
+  /**
+   * Receives records during replay.
+   */
+  public interface Replayer {
+
+    void apply(byte op, String key, String value);
+  }
+
+  private final Path directory;
+  private final FsyncPolicy policy;
+  private final long intervalNanos;
+  private final ReentrantLock lock;
+  private final Condition pending; // a batch is waiting to be written
+  private final Condition durable; // a batch has been written and forced
+  private ByteBuffer batch; // records appended since the last write
+  private ByteBuffer spare; // buffer being written by the committer
+  private long appendedSequence; // sequence of the last appended record
+  private long durableSequence; // sequence of the last record written, and forced if ALWAYS
+  private long generation; // generation being appended to
+  private long rollTo; // generation the committer should switch to, 0 if none
+  private int rollPosition; // batch position of the first record of that generation
+  private FileChannel channel;
+  private final Thread committer;
+  private volatile boolean running;
+  private IOException failure; // a failed write stops the log
+  private final PriorityQueue<Waiter> waiters; // callbacks for records not yet durable
+
+  /**
+   * Constructor. Opens the newest generation of the log for appending,
+   * creating the directory if needed. Call replay before appending.
+   * @param directory holding the generation files
+   * @param policy for forcing writes to disk
+   * @param intervalMillis between forces with the INTERVAL policy
+   * @throws IOException
+   */
+  public WriteAheadLog(Path directory, FsyncPolicy policy, long intervalMillis)
+          throws IOException {
+    this.directory = directory;
+    this.policy = policy;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    this.lock = new ReentrantLock();
+    this.pending = this.lock.newCondition();
+    this.durable = this.lock.newCondition();
+    this.waiters = new PriorityQueue<Waiter>((a, b) -> Long.compare(a.sequence, b.sequence));
+    this.batch = ByteBuffer.allocate(1 << 20);
+    this.spare = ByteBuffer.allocate(1 << 20);
+    Files.createDirectories(directory);
+    List<Long> generations = this.generations();
+    this.generation = generations.isEmpty() ? 1 : generations.get(generations.size() - 1);
+    this.channel = FileChannel.open(this.pathOf(this.generation), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+    this.channel.position(this.channel.size());
+    this.running = true;
+    this.committer = new Thread(this::commitLoop, "wal-committer");
+    this.committer.setDaemon(true);
+    this.committer.start();
+  }
+
+  /**
+   * Method copies a mutation into the current batch without waiting for it to be written.
+   * Callers that need to apply mutations in log order do so while holding their own lock
+   * around this call, and wait with awaitDurable afterwards, outside that lock.
+   * @param op PUT, DELETE or EXPIRE
+   * @param key of the mutation
+   * @param value of a PUT, deadline of an EXPIRE, or null
+   * @return sequence of the record, for awaitDurable
+   * @throws IOException if the log can no longer be written
+   */
+  public long enqueue(byte op, String key, String value) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    int length = 1 + 4 + keyBytes.length + 4 + valueBytes.length;
+    this.lock.lock();
+    try {
+      if (this.failure != null) {
+        throw this.failure;
+      }
+      this.reserve(4 + length + 4);
+      int start = this.batch.position();
+      this.batch.putInt(length).put(op);
+      this.batch.putInt(keyBytes.length).put(keyBytes);
+      this.batch.putInt(valueBytes.length).put(valueBytes);
+      CRC32 crc = new CRC32();
+      crc.update(this.batch.array(), start + 4, length);
+      this.batch.putInt((int) crc.getValue());
+      this.appendedSequence++;
+      this.pending.signal();
+      return this.appendedSequence;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Method runs an action once a record is as durable as awaitDurable would wait for,
+   * without blocking the caller. The action runs on the calling thread if the record is
+   * already durable, otherwise on the committer thread, so it must be short.
+   * @param sequence returned by enqueue
+   * @param action given null once the record is durable, or the error if the write failed
+   */
+  public void whenDurable(long sequence, Consumer<IOException> action) {
+    IOException failure = null;
+    this.lock.lock();
+    try {
+      if (this.durableSequence < sequence) {
+        if (this.failure == null) {
+          this.waiters.add(new Waiter(sequence, action));
+          return;
+        }
+        failure = this.failure;
+      }
+    } finally {
+      this.lock.unlock();
+    }
+    action.accept(failure);
+  }
+
+  /**
+   * Method waits until a record has been handed to the operating system, which
+   * survives the server process crashing. With the ALWAYS policy it also waits until
+   * the record is forced to disk, which survives the machine crashing.
+   * @param sequence returned by enqueue
+   * @throws IOException if the write failed
+   */
+  public void awaitDurable(long sequence) throws IOException {
+    this.lock.lock();
+    try {
+      while (this.durableSequence < sequence) {
+        if (this.failure != null) {
+          throw this.failure;
+        }
+        this.durable.awaitUninterruptibly();
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Method replays every record in the log, oldest generation first.
+   * @param replayer receiving each record
+   * @return number of records replayed
+   * @throws IOException
+   */
+  public long replay(Replayer replayer) throws IOException {
+    return this.replay(0, replayer);
+  }
+
+  /**
+   * Method replays the records of a generation and every later one, oldest first.
+   * @param fromGeneration first generation to replay
+   * @param replayer receiving each record
+   * @return number of records replayed
+   * @throws IOException
+   */
+  public long replay(long fromGeneration, Replayer replayer) throws IOException {
+    long count = 0;
+    for (long generation : this.generations()) {
+      if (generation >= fromGeneration) {
+        count += this.replayGeneration(generation, replayer);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Method starts a new generation. Records enqueued before this call stay in the
+   * older generations, and every record enqueued after it goes to the new one.
+   * Returns once the older generations have been written and forced to disk.
+   * @return new generation
+   * @throws IOException if the log can no longer be written
+   */
+  public long roll() throws IOException {
+    this.lock.lock();
+    try {
+      while (this.rollTo != 0) { // another roll is still being written
+        this.durable.awaitUninterruptibly();
+      }
+      if (this.failure != null) {
+        throw this.failure;
+      }
+      long next = ++this.generation;
+      this.rollTo = next;
+      this.rollPosition = this.batch.position();
+      this.pending.signal();
+      while (this.rollTo == next && this.failure == null) {
+        this.durable.awaitUninterruptibly();
+      }
+      if (this.failure != null) {
+        throw this.failure;
+      }
+      return next;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Method deletes the generations older than the given one, once a snapshot covers them.
+   * @param generation oldest generation to keep
+   * @throws IOException
+   */
+  public void deleteBefore(long generation) throws IOException {
+    for (long older : this.generations()) {
+      if (older < generation) {
+        Files.deleteIfExists(this.pathOf(older));
+      }
+    }
+  }
+
+  public Path getDirectory() {
+    return this.directory;
+  }
+
+  /**
+   * Method writes out everything appended so far, forces it to disk and stops the committer.
+   */
+  public void close() {
+    this.running = false;
+    this.lock.lock();
+    try {
+      this.pending.signal();
+    } finally {
+      this.lock.unlock();
+    }
+    try {
+      this.committer.join(TimeUnit.SECONDS.toMillis(5));
+      this.channel.force(false);
+      this.channel.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      System.err.println("Error closing write-ahead log: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Helper method run by the committer thread, writing one batch per pass.
+   */
+  private void commitLoop() {
+    long lastForce = System.nanoTime();
+    while (true) {
+      ByteBuffer toWrite;
+      long sequence;
+      long rollTo;
+      int rollPosition;
+      this.lock.lock();
+      try {
+        while (this.batch.position() == 0 && this.rollTo == 0 && this.running) {
+          if (this.policy == FsyncPolicy.INTERVAL) {
+            this.pending.awaitNanos(this.intervalNanos);
+            break;
+          }
+          this.pending.await();
+        }
+        if (this.batch.position() == 0 && this.rollTo == 0 && !this.running) {
+          return;
+        }
+        // swap buffers so appenders keep filling one while the other is written
+        toWrite = this.batch;
+        this.batch = this.spare;
+        this.spare = toWrite;
+        sequence = this.appendedSequence;
+        rollTo = this.rollTo;
+        rollPosition = this.rollPosition;
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        this.lock.unlock();
+      }
+      IOException error = null;
+      try {
+        toWrite.flip();
+        if (rollTo != 0) { // finish the old generation, then switch files
+          ByteBuffer older = toWrite.duplicate().limit(rollPosition);
+          while (older.hasRemaining()) {
+            this.channel.write(older);
+          }
+          this.channel.force(false);
+          this.channel.close();
+          this.channel = FileChannel.open(this.pathOf(rollTo), StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE);
+          toWrite.position(rollPosition);
+        }
+        while (toWrite.hasRemaining()) {
+          this.channel.write(toWrite);
+        }
+        long now = System.nanoTime();
+        if (this.policy == FsyncPolicy.ALWAYS ||
+                (this.policy == FsyncPolicy.INTERVAL && now - lastForce >= this.intervalNanos)) {
+          this.channel.force(false);
+          lastForce = now;
+        }
+      } catch (IOException e) {
+        error = e;
+      }
+      toWrite.clear();
+      List<Waiter> ready = new ArrayList<Waiter>();
+      this.lock.lock();
+      try {
+        if (error != null) {
+          this.failure = error;
+          ready.addAll(this.waiters);
+          this.waiters.clear();
+        } else {
+          while (!this.waiters.isEmpty() && this.waiters.peek().sequence <= sequence) {
+            ready.add(this.waiters.poll());
+          }
+          this.durableSequence = sequence;
+          if (rollTo != 0) {
+            this.rollTo = 0;
+          }
+        }
+        this.durable.signalAll();
+      } finally {
+        this.lock.unlock();
+      }
+      for (Waiter waiter : ready) {
+        waiter.action.accept(error);
+      }
+      if (error != null) {
+        System.err.println("Error writing write-ahead log: " + error.getMessage());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Helper method to make room in the current batch, growing both buffers if a record
+   * would not fit. Called with the lock held.
+   * @param needed bytes about to be appended
+   */
+  private void reserve(int needed) {
+    if (this.batch.remaining() < needed) {
+      int capacity = Math.max(this.batch.capacity() * 2, this.batch.position() + needed);
+      ByteBuffer larger = ByteBuffer.allocate(capacity);
+      this.batch.flip();
+      larger.put(this.batch);
+      this.batch = larger;
+    }
+  }
+
+  /**
+   * Helper method to replay one generation file. A bad record in the generation being
+   * appended to is a write torn by a crash, and it and anything after it are truncated.
+   * @param generation to replay
+   * @param replayer receiving each record
+   * @return number of records replayed
+   * @throws IOException if an older generation holds a bad record, naming its offset
+   */
+  private long replayGeneration(long generation, Replayer replayer) throws IOException {
+    Path path = this.pathOf(generation);
+    boolean newest = generation == this.generation;
+    long count = 0;
+    try (FileChannel file = newest
+            ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+      long good = 0;
+      while (data.remaining() >= 4) {
+        int length = data.getInt();
+        if (length < 9 || length > data.remaining() - 4) { // torn write
+          break;
+        }
+        int start = data.position();
+        CRC32 crc = new CRC32();
+        ByteBuffer record = data.duplicate();
+        record.limit(start + length);
+        crc.update(record);
+        data.position(start + length);
+        if (data.getInt() != (int) crc.getValue()) {
+          break;
+        }
+        data.position(start);
+        byte op = data.get();
+        String key = readString(data);
+        String value = readString(data);
+        data.position(start + length + 4);
+        replayer.apply(op, key, op != DELETE ? value : null);
+        good = data.position();
+        count++;
+      }
+      if (good < file.size()) {
+        if (!newest) { // complete when the log rolled, so not a torn write
+          throw new IOException("Corrupt record in write-ahead log " + path + " at offset " +
+                  good + ".");
+        }
+        System.out.println("Dropping " + (file.size() - good) + " bytes of incomplete records " +
+                "from " + path + ".");
+        file.truncate(good);
+        this.channel.position(good); // append right after the last good record
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Helper method to read a length prefixed UTF-8 string.
+   * @param data positioned at the length
+   * @return string
+   */
+  private static String readString(ByteBuffer data) {
+    byte[] bytes = new byte[data.getInt()];
+    data.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Helper method to list the generations in the directory, oldest first.
+   * @return generation numbers
+   * @throws IOException
+   */
+  private List<Long> generations() throws IOException {
+    List<Long> generations = new ArrayList<Long>();
+    try (Stream<Path> files = Files.list(this.directory)) {
+      files.forEach(file -> {
+        String name = file.getFileName().toString();
+        if (name.startsWith("wal-") && name.endsWith(".log")) {
+          generations.add(Long.parseLong(name.substring(4, name.length() - 4)));
+        }
+      });
+    }
+    generations.sort(null);
+    return generations;
+  }
+
+  /**
+   * Helper method to name a generation file.
+   * @param generation number
+   * @return path of the file
+   */
+  private Path pathOf(long generation) {
+    return this.directory.resolve(String.format("wal-%08d.log", generation));
+  }
+
+  /**
+   * An action waiting for a record to become durable.
+   */
+  private static final class Waiter {
+
+    private final long sequence;
+    private final Consumer<IOException> action;
+
+    private Waiter(long sequence, Consumer<IOException> action) {
+      this.sequence = sequence;
+      this.action = action;
+    }
+  }
+}